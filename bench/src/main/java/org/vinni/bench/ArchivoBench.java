@@ -0,0 +1,104 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vinni.servidor.ServidorChat;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FILE de un cliente a otro a través de un servidor real en loopback, por
+ * tamaño de archivo: el servidor lo reenvía por bloques mientras llega. Además
+ * de archivos por segundo, JMH informa "bytes" como bytes por segundo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ArchivoBench {
+
+    @Param({"hilos", "nio"})
+    String motor;
+
+    @Param({"false", "true"})
+    boolean binario;
+
+    @Param({"4096", "65536", "1048576", "16777216"})
+    long tam;
+
+    private ServidorChat servidor;
+    private ClienteBench remitente;
+    private ClienteBench destinatario;
+    private long destinoId;
+    private final byte[] bloque = new byte[64 * 1024];
+    private final Semaphore recibidos = new Semaphore(0);
+    private Thread lector;
+
+    /** Bytes reenviados, que JMH normaliza por segundo. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reiniciar() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        servidor = ReenvioBench.iniciarServidor(motor);
+        int puerto = servidor.getPuerto();
+        destinatario = new ClienteBench(puerto, "rx", binario);
+        remitente = new ClienteBench(puerto, "tx", binario);
+        destinoId = servidor.idDe("rx");
+
+        // El destinatario lee en su hilo: si no, un archivo grande llenaría los
+        // buffers y el servidor frenaría al remitente, que es este mismo hilo
+        lector = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (true) {
+                    destinatario.recibirArchivo(buffer);
+                    recibidos.release();
+                }
+            } catch (IOException ignored) {
+                // cerrado en el TearDown
+            }
+        }, "bench-rx");
+        lector.setDaemon(true);
+        lector.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws InterruptedException {
+        remitente.close();
+        destinatario.close();
+        servidor.detener();
+        lector.join(1000);
+    }
+
+    @Benchmark
+    public void archivo(Bytes contador) throws IOException, InterruptedException {
+        remitente.enviarArchivo("rx", destinoId, tam, bloque);
+        recibidos.acquire();
+        contador.bytes += tam;
+    }
+}
@@ -0,0 +1,29 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main del jar de benchmarks: igual que el de JMH, pero si no se pide otra cosa
+ * los resultados quedan en jmh-result.json, para comparar corridas entre versiones.
+ */
+public final class Bench {
+
+    private Bench() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers()
+                || cli.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder opciones = new OptionsBuilder().parent(cli);
+        // Sin -rf, JMH no deja archivo; con formato y sin -rff lo nombra jmh-result.<formato>
+        if (!cli.getResultFormat().hasValue()) opciones.resultFormat(ResultFormatType.JSON);
+        new Runner(opciones.build()).run();
+    }
+}
@@ -0,0 +1,130 @@
+package org.vinni.bench;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.LectorBinario;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Cliente mínimo de los benchmarks con sockets: hace el saludo, negocia el
+ * protocolo binario si se pide y manda/espera MSG y FILE como el cliente real,
+ * sin GUI. Lo que no es lo esperado (LISTA, DELTA...) se saltea.
+ */
+final class ClienteBench implements AutoCloseable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final LectorBinario lector;     // null = protocolo de texto
+
+    ClienteBench(int puerto, String nombre, boolean binario) throws IOException {
+        socket = new Socket("localhost", puerto);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+        String prompt = in.readUTF();
+        if (!"INGRESE_NOMBRE".equals(prompt)) throw new IOException("Saludo inesperado: " + prompt);
+        out.writeUTF(nombre);
+        // Versión 1: los archivos van en línea, que es lo que miden los benchmarks
+        if (binario) out.writeUTF(CodecBinario.OFERTA_V1);
+        out.flush();
+        if (binario) {
+            String linea;
+            while (!(linea = in.readUTF()).equals(CodecBinario.CONFIRMACION)) {
+                if (linea.startsWith("MSG:") || linea.startsWith("FILE:")) throw new IOException("Trama antes de negociar: " + linea);
+            }
+            lector = new LectorBinario(in);
+        } else {
+            lector = null;
+        }
+    }
+
+    void enviarMensaje(String destino, long destinoId, String texto) throws IOException {
+        if (lector != null) escribir(CodecBinario.mensaje(destinoId, texto));
+        else out.writeUTF("MSG:" + destino + ":" + texto);
+        out.flush();
+    }
+
+    /** Cabecera FILE y los bytes de {@code bloque} repetidos hasta {@code tam}. */
+    void enviarArchivo(String destino, long destinoId, long tam, byte[] bloque) throws IOException {
+        if (lector != null) escribir(CodecBinario.archivo(destinoId, "bench.bin", tam, 0));
+        else out.writeUTF("FILE:" + destino + ":bench.bin:" + tam);
+        for (long resta = tam; resta > 0; ) {
+            int n = (int) Math.min(bloque.length, resta);
+            out.write(bloque, 0, n);
+            resta -= n;
+        }
+        out.flush();
+    }
+
+    private void escribir(ByteBuffer trama) throws IOException {
+        out.write(trama.array(), trama.arrayOffset() + trama.position(), trama.remaining());
+    }
+
+    /** Espera el próximo MSG y devuelve su largo. */
+    int esperarMensaje() throws IOException {
+        while (true) {
+            if (lector != null) {
+                byte tipo = lector.leer();
+                if (tipo == CodecBinario.MSG) return lector.cuerpo().remaining();
+                if (tipo == CodecBinario.FILE) saltearArchivo(lector.cuerpo());
+            } else {
+                String m = in.readUTF();
+                if (m.startsWith("MSG:")) return m.length();
+                if (m.startsWith("FILE:")) saltear(Long.parseLong(m.substring(m.lastIndexOf(':') + 1)));
+            }
+        }
+    }
+
+    /** Espera el próximo FILE y lee sus bytes; devuelve el tamaño. */
+    long recibirArchivo(byte[] buffer) throws IOException {
+        while (true) {
+            long tam;
+            if (lector != null) {
+                if (lector.leer() != CodecBinario.FILE) continue;
+                ByteBuffer c = lector.cuerpo();
+                CodecBinario.getVarint(c);
+                CodecBinario.getCampo(c);
+                tam = CodecBinario.getVarint(c);
+            } else {
+                String m = in.readUTF();
+                if (!m.startsWith("FILE:")) continue;
+                tam = Long.parseLong(m.substring(m.lastIndexOf(':') + 1));
+            }
+            for (long resta = tam; resta > 0; ) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, resta));
+                if (n < 0) throw new IOException("Archivo incompleto");
+                resta -= n;
+            }
+            return tam;
+        }
+    }
+
+    private void saltearArchivo(ByteBuffer cuerpo) throws IOException {
+        CodecBinario.getVarint(cuerpo);
+        CodecBinario.getCampo(cuerpo);
+        saltear(CodecBinario.getVarint(cuerpo));
+    }
+
+    private void saltear(long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                if (in.read() < 0) throw new IOException("Archivo incompleto");
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
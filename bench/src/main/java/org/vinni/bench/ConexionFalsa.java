@@ -0,0 +1,89 @@
+package org.vinni.bench;
+
+import org.vinni.servidor.ArchivoEnDisco;
+import org.vinni.servidor.Conexion;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+/**
+ * Conexión en memoria para medir el enrutamiento sin sockets: lo que se le
+ * envía se escribe en el momento (como lo haría su escritor) en un stream que
+ * solo cuenta bytes.
+ */
+final class ConexionFalsa implements Conexion {
+    private final long id;
+    private final String nombre;
+    private final boolean binario;
+    private final Sumidero sumidero = new Sumidero();
+
+    ConexionFalsa(long id, String nombre, boolean binario) {
+        this.id = id;
+        this.nombre = nombre;
+        this.binario = binario;
+    }
+
+    /** Bytes "escritos" hasta ahora; el benchmark los consume para que nada se elimine. */
+    long getBytes() {
+        return sumidero.bytes;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+
+    @Override
+    public void enviar(TramaCompartida trama) {
+        try {
+            trama.escribir(sumidero, binario);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void enviarLista(TramaCompartida trama, Supplier<TramaCompartida> completa) {
+        enviar(trama);
+    }
+
+    @Override
+    public void enviarAlFinal(TramaCompartida trama) {
+        enviar(trama);
+    }
+
+    @Override
+    public void enviarArchivo(TramaCompartida cabecera, ArchivoEnDisco datos) {
+        enviar(cabecera);
+        sumidero.bytes += datos.getTam();
+    }
+
+    @Override
+    public int getPendientes() {
+        return 0;
+    }
+
+    @Override
+    public void cerrarConexion() {}
+
+    private static final class Sumidero extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.servidor.ServidorChat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enrutamiento en memoria de un MSG a "Todos" entre N conexiones, sin sockets:
+ * resolver destinos, crear la trama compartida, codificarla y que cada destino
+ * la "escriba". Es el costo de CPU del servidor por broadcast, aparte de la red.
+ * Con {@code binarios} = mitad, la trama se codifica en los dos protocolos.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DifusionBench {
+
+    @Param({"1", "10", "100", "1000"})
+    int clientes;
+
+    @Param({"todos", "mitad", "ninguno"})
+    String binarios;
+
+    @Param({"64"})
+    int largo;
+
+    private ServidorChat servidor;
+    private ConexionFalsa origen;
+    private ConexionFalsa unico;
+    private String texto;
+
+    @Setup
+    public void preparar() {
+        servidor = new ServidorChat();      // sin iniciar: solo el enrutamiento
+        origen = new ConexionFalsa(1, "origen", true);
+        servidor.registrar(origen);
+        for (int i = 0; i < clientes; i++) {
+            boolean binario = "todos".equals(binarios) || ("mitad".equals(binarios) && i % 2 == 0);
+            ConexionFalsa c = new ConexionFalsa(i + 2, "cliente" + i, binario);
+            servidor.registrar(c);
+            if (i == 0) unico = c;
+        }
+        texto = "x".repeat(largo);
+    }
+
+    @TearDown
+    public void cerrar() {
+        servidor.detener();
+    }
+
+    @Benchmark
+    public long todos() {
+        servidor.rutearMensaje(origen, CodecBinario.ID_TODOS, texto);
+        return unico.getBytes();
+    }
+
+    /** Un solo destinatario, con los mismos N clientes conectados. */
+    @Benchmark
+    public long uno() {
+        servidor.rutearMensaje(origen, unico.getId(), texto);
+        return unico.getBytes();
+    }
+}
@@ -0,0 +1,70 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vinni.servidor.ListaClientes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo de la lista de clientes a medida que crece (lo que antes hacía
+ * actualizarListaClientes en cada alta y baja). Se corre con
+ * server.roster.coalesceMs=0 para que cada cambio publique su DELTA en el
+ * momento y se mida aquí, no en el temporizador.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.roster.coalesceMs=0")
+public class ListaBench {
+
+    @Param({"10", "100", "1000"})
+    int clientes;
+
+    @Param({"true", "false"})
+    boolean binario;
+
+    private ListaClientes lista;
+    private ConexionFalsa recienLlegado;
+    private ConexionFalsa cualquiera;
+
+    @Setup
+    public void preparar() {
+        lista = new ListaClientes();
+        for (int i = 0; i < clientes; i++) {
+            ConexionFalsa c = new ConexionFalsa(i + 1, "cliente" + i, binario);
+            lista.alta(c);
+            if (i == 0) cualquiera = c;
+        }
+        recienLlegado = new ConexionFalsa(clientes + 1, "nuevo", binario);
+    }
+
+    /**
+     * Un cliente entra y sale: recibe la lista completa (N nombres) y cada uno de
+     * los N recibe dos DELTA (los de texto, la lista completa dos veces).
+     */
+    @Benchmark
+    public long altaYBaja() {
+        lista.alta(recienLlegado);
+        lista.baja(recienLlegado);
+        return cualquiera.getBytes();
+    }
+
+    /** La lista completa para un solo cliente (al entrar o al pedirla). */
+    @Benchmark
+    public long listaCompleta() {
+        lista.enviarLista(cualquiera);
+        return cualquiera.getBytes();
+    }
+}
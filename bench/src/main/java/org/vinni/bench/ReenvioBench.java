@@ -0,0 +1,87 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vinni.servidor.ServidorChat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MSG de un cliente a otro a través de un servidor real en loopback (motor de
+ * hilos o NIO, protocolo de texto o binario): ida completa, de que el remitente
+ * escribe a que el destinatario termina de leer. Mide el camino entero que
+ * recorre un mensaje dentro del servidor, con sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReenvioBench {
+
+    @Param({"hilos", "nio"})
+    String motor;
+
+    @Param({"false", "true"})
+    boolean binario;
+
+    @Param({"64", "4096"})
+    int largo;
+
+    private ServidorChat servidor;
+    private ClienteBench remitente;
+    private ClienteBench destinatario;
+    private long destinoId;
+    private String texto;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        servidor = iniciarServidor(motor);
+        int puerto = servidor.getPuerto();
+        destinatario = new ClienteBench(puerto, "rx", binario);
+        remitente = new ClienteBench(puerto, "tx", binario);
+        destinoId = servidor.idDe("rx");
+        texto = "x".repeat(largo);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        remitente.close();
+        destinatario.close();
+        servidor.detener();
+    }
+
+    @Benchmark
+    public int mensaje() throws IOException {
+        remitente.enviarMensaje("rx", destinoId, texto);
+        return destinatario.esperarMensaje();
+    }
+
+    /** Servidor en un puerto libre, sin ping de salud ni JMX (no son parte de lo que se mide). */
+    static ServidorChat iniciarServidor(String motor) throws IOException {
+        System.setProperty("server.engine", motor);
+        System.setProperty("server.health.enabled", "false");
+        System.setProperty("server.jmx.enabled", "false");
+        int puerto;
+        try (ServerSocket libre = new ServerSocket(0)) {
+            puerto = libre.getLocalPort();
+        }
+        ServidorChat s = new ServidorChat();
+        s.iniciar(puerto);
+        return s;
+    }
+}
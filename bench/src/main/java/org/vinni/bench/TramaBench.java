@@ -0,0 +1,108 @@
+package org.vinni.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.TramaUtf;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codificar y decodificar un MSG: el protocolo de texto como lo hacen los
+ * clientes y el motor de hilos (writeUTF / readUTF + split) frente a
+ * {@link CodecBinario} y a la decodificación sin streams del motor NIO.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TramaBench {
+
+    @Param({"16", "256", "4096"})
+    int largo;
+
+    private String texto;
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    private final DataOutputStream dos = new DataOutputStream(bos);
+    private byte[] deTexto;
+    private ByteBuffer binaria;
+
+    @Setup
+    public void preparar() throws IOException {
+        char[] c = new char[largo];
+        Arrays.fill(c, 'a');
+        texto = new String(c);
+
+        dos.writeUTF("MSG:destino:" + texto);
+        deTexto = bos.toByteArray();
+        bos.reset();
+        binaria = CodecBinario.mensaje(42, texto);
+    }
+
+    /* -------------------- Texto (línea base) -------------------- */
+
+    @Benchmark
+    public byte[] textoCodificar() throws IOException {
+        bos.reset();
+        dos.writeUTF("MSG:destino:" + texto);
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public String textoDecodificar() throws IOException {
+        String m = new DataInputStream(new ByteArrayInputStream(deTexto)).readUTF();
+        return m.split(":", 3)[2];
+    }
+
+    /** Lo que hace el motor NIO con una trama de texto: decodifica del buffer, sin stream. */
+    @Benchmark
+    public String textoDecodificarBuffer() throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(deTexto);
+        int len = b.getShort() & 0xFFFF;
+        return TramaUtf.decodificar(b, len).split(":", 3)[2];
+    }
+
+    /* -------------------- Binario -------------------- */
+
+    @Benchmark
+    public ByteBuffer binarioCodificar() {
+        return CodecBinario.mensaje(42, texto);
+    }
+
+    @Benchmark
+    public String binarioDecodificar() throws IOException {
+        ByteBuffer b = binaria.duplicate();
+        CodecBinario.largoTrama(b);
+        CodecBinario.abrirCuerpo(b);
+        CodecBinario.getVarint(b);
+        return CodecBinario.getTexto(b, b.remaining());
+    }
+
+    /* -------------------- Trama compartida -------------------- */
+
+    /** Lo que paga el servidor por MSG reenviado: crear la trama y codificarla en ambos protocolos. */
+    @Benchmark
+    public int compartidaAmbosProtocolos() {
+        TramaCompartida t = TramaCompartida.mensaje(42, "remitente", texto);
+        return t.largo(false) + t.largo(true);
+    }
+}
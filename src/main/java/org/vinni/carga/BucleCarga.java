@@ -0,0 +1,428 @@
+package org.vinni.carga;
+
+import org.vinni.protocolo.TramaUtf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Un selector que atiende a una parte de los clientes simulados y, en cada
+ * vuelta, reparte lo que toque de la mezcla de trabajo (conexiones nuevas, MSG,
+ * FILE, rotación) según el tiempo transcurrido. Las tasas de {@link PerfilCarga}
+ * son globales: cada bucle hace su {@code parte}.
+ *
+ * Cada MSG lleva en el texto la marca "L&lt;corrida&gt;.&lt;nanoTime&gt;" del envío, y
+ * cada FILE en el nombre: el que lo recibe (en esta misma JVM) mide la entrega
+ * completa. Lo que el servidor guardó de otra corrida (spool de desconectados)
+ * trae otra corrida y no se mide.
+ */
+final class BucleCarga extends Thread {
+    private static final long VUELTA_MS = 10;
+    // Con más buffers en cola (un archivo en curso, socket lleno) el cliente no manda MSG nuevos
+    private static final int MAX_COLA = 64;
+    private static final long ESPERA_CAIDA_NS = 1_000_000_000L;
+    // Con la cola de accept llena el connect termina pero el servidor nunca saluda
+    private static final long ESPERA_SALUDO_NS = 5_000_000_000L;
+    private static final int BLOQUE = 64 * 1024;
+
+    private static final byte[][] INTERESAN = {
+            ascii("MSG:"), ascii("FILE:"), ascii("INGRESE_NOMBRE"), ascii("OCUPADO:"), ascii("REDIRECT:")
+    };
+    private static final int CLASIFICAR = 14;       // bytes de la trama que alcanzan para decidir
+    private static final String CORRIDA = String.format("%06x", ThreadLocalRandom.current().nextInt(1 << 24));
+    private static final byte[] MARCA = ascii("L" + CORRIDA + ".");
+
+    private final PerfilCarga perfil;
+    private final Resultados res;
+    private final double parte;
+    private final Selector selector;
+    private final ArrayDeque<ClienteCarga> porConectar = new ArrayDeque<>();
+    private final List<ClienteCarga> enEspera = new ArrayList<>();
+    private final ArrayDeque<ClienteCarga> saludando = new ArrayDeque<>();     // en orden de conexión
+    private final List<ClienteCarga> conectados = new ArrayList<>();
+    private final List<ClienteCarga> todos;
+    private final ByteBuffer ceros = ByteBuffer.allocateDirect(BLOQUE).asReadOnlyBuffer();
+    private final String relleno;
+    private double cupoConexiones, cupoMensajes, cupoArchivos, cupoRotacion;
+    private volatile boolean corriendo = true;
+
+    BucleCarga(int indice, List<ClienteCarga> clientes, double parte, PerfilCarga perfil, Resultados res)
+            throws IOException {
+        super("Carga-" + indice);
+        this.todos = clientes;
+        this.parte = parte;
+        this.perfil = perfil;
+        this.res = res;
+        this.selector = Selector.open();
+        porConectar.addAll(clientes);
+        // Marca + 19 dígitos como mucho: el resto del texto completa bytesMensaje
+        this.relleno = " " + "x".repeat(Math.max(0, perfil.bytesMensaje - MARCA.length - 20));
+    }
+
+    void detener() {
+        corriendo = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long anterior = System.nanoTime();
+        try {
+            while (corriendo) {
+                selector.select(VUELTA_MS);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    atender((ClienteCarga) k.attachment(), k);
+                }
+                long ahora = System.nanoTime();
+                repartir(ahora, (ahora - anterior) / 1e9);
+                anterior = ahora;
+            }
+        } catch (IOException e) {
+            System.err.println(getName() + ": " + e.getMessage());
+        } finally {
+            for (ClienteCarga c : todos) c.cerrar();
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void atender(ClienteCarga c, SelectionKey k) {
+        try {
+            if (k.isConnectable()) {
+                c.canal.finishConnect();
+                k.interestOps(SelectionKey.OP_READ);
+            }
+            if (k.isValid() && k.isWritable()) vaciar(c);
+            if (k.isValid() && k.isReadable()) leer(c);
+        } catch (IOException | RuntimeException e) {
+            caida(c);
+        }
+    }
+
+    /* -------------------- Mezcla de trabajo -------------------- */
+
+    private void repartir(long ahora, double dt) {
+        for (Iterator<ClienteCarga> it = enEspera.iterator(); it.hasNext(); ) {
+            ClienteCarga c = it.next();
+            if (c.volverEn - ahora <= 0) {
+                it.remove();
+                porConectar.add(c);
+            }
+        }
+        ClienteCarga c;
+        while ((c = saludando.peek()) != null && (c.registrado || c.canal == null || ahora - c.conectadoEn >= ESPERA_SALUDO_NS)) {
+            saludando.poll();
+            if (!c.registrado && c.canal != null) caida(c);
+        }
+
+        // Cada cupo acumula la fracción de la tasa que corresponde a dt, con tope de un segundo
+        double tasa = perfil.conexionesPorSegundo * parte;
+        cupoConexiones = Math.min(cupoConexiones + tasa * dt, Math.max(1, tasa));
+        while (cupoConexiones >= 1 && !porConectar.isEmpty()) {
+            cupoConexiones--;
+            conectar(porConectar.poll());
+        }
+
+        tasa = perfil.mensajesPorCliente * conectados.size();
+        cupoMensajes = Math.min(cupoMensajes + tasa * dt, Math.max(1, tasa));
+        while (cupoMensajes >= 1 && !conectados.isEmpty()) {
+            cupoMensajes--;
+            enviarMensaje(alAzar(null));
+        }
+
+        tasa = perfil.archivosPorSegundo * parte;
+        cupoArchivos = Math.min(cupoArchivos + tasa * dt, Math.max(1, tasa));
+        while (cupoArchivos >= 1 && conectados.size() >= 2) {
+            cupoArchivos--;
+            enviarArchivo(alAzar(null));
+        }
+
+        tasa = perfil.rotacionPorSegundo * parte;
+        cupoRotacion = Math.min(cupoRotacion + tasa * dt, Math.max(1, tasa));
+        while (cupoRotacion >= 1 && !conectados.isEmpty()) {
+            cupoRotacion--;
+            c = alAzar(null);
+            cerrar(c);
+            porConectar.add(c);
+            res.rotaciones.increment();
+        }
+    }
+
+    private ClienteCarga alAzar(ClienteCarga excepto) {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if (excepto == null) return conectados.get(r.nextInt(conectados.size()));
+        int i = r.nextInt(conectados.size() - 1);
+        if (i >= excepto.indice) i++;
+        return conectados.get(i);
+    }
+
+    private void enviarMensaje(ClienteCarga origen) {
+        if (origen.salida.size() > MAX_COLA) {
+            res.omitidos.increment();
+            return;
+        }
+        boolean aTodos = conectados.size() < 2 || ThreadLocalRandom.current().nextDouble() < perfil.proporcionTodos;
+        String destino = aTodos ? "Todos" : alAzar(origen).nombre;
+        encolar(origen, trama("MSG:" + destino + ":L" + CORRIDA + "." + System.nanoTime() + relleno));
+        res.mensajesEnviados.increment();
+        if (aTodos) res.mensajesTodos.increment();
+    }
+
+    private void enviarArchivo(ClienteCarga origen) {
+        if (origen.salida.size() > MAX_COLA) {
+            res.omitidos.increment();
+            return;
+        }
+        long[] tams = perfil.tamArchivos;
+        long tam = tams[ThreadLocalRandom.current().nextInt(tams.length)];
+        String destino = alAzar(origen).nombre;
+        origen.salida.add(trama("FILE:" + destino + ":L" + CORRIDA + "." + System.nanoTime() + ".bin:" + tam));
+        for (long resta = tam; resta > 0; resta -= BLOQUE) {
+            ByteBuffer b = ceros.duplicate();
+            b.limit((int) Math.min(BLOQUE, resta));
+            origen.salida.add(b);
+        }
+        res.archivosEnviados.increment();
+        vaciarSeguro(origen);
+    }
+
+    /* -------------------- Conexión -------------------- */
+
+    private void conectar(ClienteCarga c) {
+        try {
+            c.canal = SocketChannel.open();
+            c.canal.configureBlocking(false);
+            c.canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            boolean listo = c.canal.connect(new InetSocketAddress(c.host, c.puerto));
+            c.clave = c.canal.register(selector, listo ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+            c.conectadoEn = System.nanoTime();
+            saludando.add(c);
+        } catch (IOException e) {
+            caida(c);
+        }
+    }
+
+    /** Saludo completo: el cliente entra a la mezcla. */
+    private void registrado(ClienteCarga c) {
+        c.registrado = true;
+        c.indice = conectados.size();
+        conectados.add(c);
+        res.conectados.incrementAndGet();
+        res.conexiones.increment();
+    }
+
+    private void cerrar(ClienteCarga c) {
+        if (c.registrado) {
+            // Quitar de la lista en O(1): el último ocupa su lugar
+            ClienteCarga ultimo = conectados.remove(conectados.size() - 1);
+            if (ultimo != c) {
+                conectados.set(c.indice, ultimo);
+                ultimo.indice = c.indice;
+            }
+            c.indice = -1;
+            res.conectados.decrementAndGet();
+        }
+        c.cerrar();
+    }
+
+    private void caida(ClienteCarga c) {
+        if (c.canal == null) return;
+        cerrar(c);
+        res.caidas.increment();
+        esperar(c, ESPERA_CAIDA_NS);
+    }
+
+    private void esperar(ClienteCarga c, long ns) {
+        c.volverEn = System.nanoTime() + ns;
+        enEspera.add(c);
+    }
+
+    /* -------------------- Escritura -------------------- */
+
+    private void encolar(ClienteCarga c, ByteBuffer b) {
+        c.salida.add(b);
+        vaciarSeguro(c);
+    }
+
+    private void vaciarSeguro(ClienteCarga c) {
+        try {
+            vaciar(c);
+        } catch (IOException e) {
+            caida(c);
+        }
+    }
+
+    private void vaciar(ClienteCarga c) throws IOException {
+        if (c.clave == null || !c.clave.isValid()) return;
+        ByteBuffer b;
+        while ((b = c.salida.peek()) != null) {
+            res.bytesEnviados.add(c.canal.write(b));
+            if (b.hasRemaining()) {
+                c.clave.interestOps(c.clave.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            c.salida.poll();
+        }
+        c.clave.interestOps(c.clave.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private static ByteBuffer trama(String texto) {
+        try {
+            return TramaUtf.codificar(texto);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);      // textos cortos: no pasa
+        }
+    }
+
+    /* -------------------- Lectura -------------------- */
+
+    private void leer(ClienteCarga c) throws IOException {
+        int n = c.canal.read(c.entrada);
+        if (n < 0) throw new IOException("El servidor cerró la conexión");
+        res.bytesRecibidos.add(n);
+        c.entrada.flip();
+        procesar(c);
+        if (c.canal == null) return;        // OCUPADO / REDIRECT: ya se cerró
+        c.entrada.compact();
+        c.crecerSiHaceFalta();
+    }
+
+    private void procesar(ClienteCarga c) {
+        ByteBuffer b = c.entrada;
+        c.necesario = 0;
+        while (b.hasRemaining() && c.canal != null) {
+            if (c.saltear > 0) {
+                int n = (int) Math.min(c.saltear, b.remaining());
+                b.position(b.position() + n);
+                c.saltear -= n;
+                if (c.saltear == 0) finArchivo(c);
+                continue;
+            }
+            if (b.remaining() < 2) return;
+            int p = b.position();
+            int len = b.getShort(p) & 0xFFFF;
+            if (b.remaining() - 2 < Math.min(len, CLASIFICAR)) return;
+            if (!interesa(b, p + 2, len)) {
+                // LISTA, oferta del protocolo binario...: se descarta sin guardarla
+                b.position(p + 2);
+                c.saltear = len;
+                continue;
+            }
+            if (b.remaining() < 2 + len) {
+                c.necesario = 2 + len;
+                return;
+            }
+            manejar(c, b, p + 2, len);
+            if (c.canal != null) b.position(p + 2 + len);
+        }
+    }
+
+    private void manejar(ClienteCarga c, ByteBuffer b, int inicio, int len) {
+        byte primero = b.get(inicio);
+        if (primero == 'M') {
+            res.mensajesRecibidos.increment();
+            long enviado = marca(b, inicio, len);
+            if (enviado != 0) res.mensajeEntregado(System.nanoTime() - enviado);
+        } else if (primero == 'F') {
+            c.archivoEnCurso = true;
+            c.archivoNs = marca(b, inicio, len);
+            c.saltear = tamArchivo(b, inicio, len);
+            if (c.saltear == 0) finArchivo(c);
+        } else if (primero == 'I') {
+            registrado(c);
+            encolar(c, trama(c.nombre));
+        } else if (primero == 'O') {
+            // Control de admisión: volver cuando dice el servidor
+            long ms = numero(texto(b, inicio, len), "OCUPADO:".length());
+            cerrar(c);
+            res.rechazos.increment();
+            esperar(c, Math.max(1, ms) * 1_000_000L);
+        } else {
+            // REDIRECT:puerto:host (host vacío = el mismo)
+            String t = texto(b, inicio, len);
+            String[] partes = t.split(":", 3);
+            cerrar(c);
+            res.redirecciones.increment();
+            try {
+                c.puerto = Integer.parseInt(partes[1]);
+                if (partes.length > 2 && !partes[2].isEmpty()) c.host = partes[2];
+            } catch (NumberFormatException ignored) {}
+            porConectar.addFirst(c);
+        }
+    }
+
+    private void finArchivo(ClienteCarga c) {
+        if (!c.archivoEnCurso) return;
+        c.archivoEnCurso = false;
+        res.archivosRecibidos.increment();
+        if (c.archivoNs != 0) res.archivoEntregado(System.nanoTime() - c.archivoNs);
+    }
+
+    private static boolean interesa(ByteBuffer b, int inicio, int len) {
+        for (byte[] prefijo : INTERESAN) {
+            if (len < prefijo.length) continue;
+            int i = 0;
+            while (i < prefijo.length && b.get(inicio + i) == prefijo[i]) i++;
+            if (i == prefijo.length) return true;
+        }
+        return false;
+    }
+
+    /** Marca de esta corrida tras el segundo ':' (MSG:remitente:texto, FILE:remitente:nombre:tam); 0 si no es nuestra. */
+    private static long marca(ByteBuffer b, int inicio, int len) {
+        int fin = inicio + len;
+        int i = inicio;
+        for (int dosPuntos = 0; i < fin && dosPuntos < 2; i++) {
+            if (b.get(i) == ':') dosPuntos++;
+        }
+        if (fin - i < MARCA.length) return 0;
+        for (byte m : MARCA) {
+            if (b.get(i++) != m) return 0;
+        }
+        long v = 0;
+        int digitos = 0;
+        for (; i < fin; i++, digitos++) {
+            byte d = b.get(i);
+            if (d < '0' || d > '9') break;
+            v = v * 10 + (d - '0');
+        }
+        return digitos > 0 ? v : 0;
+    }
+
+    private static long tamArchivo(ByteBuffer b, int inicio, int len) {
+        int i = inicio + len;
+        while (i > inicio && b.get(i - 1) != ':') i--;
+        long v = 0;
+        for (; i < inicio + len; i++) v = v * 10 + (b.get(i) - '0');
+        return v;
+    }
+
+    private static String texto(ByteBuffer b, int inicio, int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) bytes[i] = b.get(inicio + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long numero(String s, int desde) {
+        try {
+            return Long.parseLong(s.substring(desde).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
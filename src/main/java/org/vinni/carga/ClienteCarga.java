@@ -0,0 +1,65 @@
+package org.vinni.carga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Estado de un cliente simulado; solo lo toca su {@link BucleCarga}.
+ */
+final class ClienteCarga {
+    private static final int BUF_INICIAL = 4 * 1024;
+
+    final String nombre;
+    String host;
+    int puerto;
+
+    SocketChannel canal;
+    SelectionKey clave;
+    boolean registrado;             // ya mandó el nombre: puede mandar y recibir
+    int indice = -1;                // posición en la lista de conectados del bucle
+    long volverEn;                  // nanoTime para reintentar tras un rechazo o una caída
+    long conectadoEn;               // nanoTime del último connect, para el plazo del saludo
+
+    // Lectura: tramas writeUTF; lo que no interesa (LISTA, ofertas) se saltea sin guardarlo
+    ByteBuffer entrada = ByteBuffer.allocate(BUF_INICIAL);
+    int necesario;
+    long saltear;                   // bytes que quedan de la trama o archivo en curso
+    boolean archivoEnCurso;
+    long archivoNs;                 // marca del FILE que se está recibiendo (0 = ajeno)
+
+    // Escritura: buffers encolados en orden (cabecera FILE seguida de sus bloques)
+    final ArrayDeque<ByteBuffer> salida = new ArrayDeque<>();
+
+    ClienteCarga(String nombre, String host, int puerto) {
+        this.nombre = nombre;
+        this.host = host;
+        this.puerto = puerto;
+    }
+
+    /** Cierra y deja el estado listo para volver a conectar. */
+    void cerrar() {
+        if (canal != null) {
+            try { canal.close(); } catch (IOException ignored) {}
+        }
+        canal = null;
+        clave = null;
+        registrado = false;
+        entrada.clear();
+        necesario = 0;
+        saltear = 0;
+        archivoEnCurso = false;
+        salida.clear();
+    }
+
+    /** La trama en curso no entra en el buffer (en modo escritura, tras compact). */
+    void crecerSiHaceFalta() {
+        if (necesario <= entrada.capacity()) return;
+        ByteBuffer nuevo = ByteBuffer.allocate(necesario);
+        entrada.flip();
+        nuevo.put(entrada);
+        entrada = nuevo;
+    }
+}
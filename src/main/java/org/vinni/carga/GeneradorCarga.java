@@ -0,0 +1,127 @@
+package org.vinni.carga;
+
+import org.vinni.servidor.Histograma;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Generador de carga sin interfaz: miles de clientes del protocolo de texto
+ * contra una o varias instancias, con la mezcla de {@link PerfilCarga}. Cada
+ * reporteSegundos imprime el intervalo (tasas y latencias de entrega
+ * p50/p99/p999) y al final un resumen "clave valor" de la corrida entera.
+ *
+ *   java -cp AppTcp.jar org.vinni.carga.GeneradorCarga [carga.properties] -Dload.clients=5000
+ */
+public final class GeneradorCarga {
+
+    private GeneradorCarga() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        PerfilCarga perfil = PerfilCarga.cargar(args.length > 0 ? args[0] : "carga.properties");
+        Resultados res = new Resultados();
+        System.out.println("Carga: " + perfil.describir());
+
+        // Cliente i -> bucle i % hilos, puerto inicial repartido entre las instancias
+        List<List<ClienteCarga>> reparto = new ArrayList<>();
+        for (int h = 0; h < perfil.hilos; h++) reparto.add(new ArrayList<>());
+        for (int i = 0; i < perfil.clientes; i++) {
+            int puerto = perfil.puertos[i % perfil.puertos.length];
+            reparto.get(i % perfil.hilos).add(new ClienteCarga("carga-" + i, perfil.host, puerto));
+        }
+        List<BucleCarga> bucles = new ArrayList<>();
+        for (int h = 0; h < perfil.hilos; h++) {
+            double parte = reparto.get(h).size() / (double) perfil.clientes;
+            bucles.add(new BucleCarga(h, reparto.get(h), parte, perfil, res));
+        }
+        bucles.forEach(Thread::start);
+
+        long inicio = System.nanoTime();
+        long fin = inicio + perfil.duracionSegundos * 1_000_000_000L;
+        Instantanea anterior = new Instantanea(res, inicio);
+        while (System.nanoTime() - fin < 0) {
+            long resta = (fin - System.nanoTime()) / 1_000_000L;
+            Thread.sleep(Math.max(1, Math.min(resta, perfil.reporteSegundos * 1000L)));
+            Instantanea ahora = new Instantanea(res, System.nanoTime());
+            System.out.println(intervalo(res, anterior, ahora, inicio));
+            res.mensajesIntervalo.reiniciar();
+            res.archivosIntervalo.reiniciar();
+            anterior = ahora;
+        }
+
+        for (BucleCarga b : bucles) b.detener();
+        for (BucleCarga b : bucles) b.join(5000);
+        System.out.print(resumen(res, (System.nanoTime() - inicio) / 1e9));
+    }
+
+    /* -------------------- Reportes -------------------- */
+
+    /** Contadores acumulados en un instante, para sacar tasas por diferencia. */
+    private static final class Instantanea {
+        final long ns, enviados, recibidos, archivos, bytesEnviados, bytesRecibidos;
+
+        Instantanea(Resultados r, long ns) {
+            this.ns = ns;
+            enviados = r.mensajesEnviados.sum();
+            recibidos = r.mensajesRecibidos.sum();
+            archivos = r.archivosRecibidos.sum();
+            bytesEnviados = r.bytesEnviados.sum();
+            bytesRecibidos = r.bytesRecibidos.sum();
+        }
+    }
+
+    private static String intervalo(Resultados r, Instantanea a, Instantanea b, long inicio) {
+        double s = Math.max(1e-9, (b.ns - a.ns) / 1e9);
+        Histograma m = r.mensajesIntervalo;
+        return String.format(Locale.ROOT,
+                "[%5.0fs] conectados=%d msg/s tx=%.0f rx=%.0f file/s=%.1f MB/s tx=%.2f rx=%.2f"
+                        + " lat ms p50=%.2f p99=%.2f p999=%.2f max=%.2f rechazos=%d caidas=%d",
+                (b.ns - inicio) / 1e9, r.conectados.get(),
+                (b.enviados - a.enviados) / s, (b.recibidos - a.recibidos) / s,
+                (b.archivos - a.archivos) / s,
+                (b.bytesEnviados - a.bytesEnviados) / s / 1e6, (b.bytesRecibidos - a.bytesRecibidos) / s / 1e6,
+                ms(m.percentil(50)), ms(m.percentil(99)), ms(m.percentil(99.9)), ms(m.getMaximo()),
+                r.rechazos.sum(), r.caidas.sum());
+    }
+
+    private static String resumen(Resultados r, double segundos) {
+        StringBuilder sb = new StringBuilder();
+        linea(sb, "duracion_s", String.format(Locale.ROOT, "%.1f", segundos));
+        linea(sb, "conexiones", r.conexiones.sum());
+        linea(sb, "conectados", r.conectados.get());
+        linea(sb, "rechazos", r.rechazos.sum());
+        linea(sb, "redirecciones", r.redirecciones.sum());
+        linea(sb, "caidas", r.caidas.sum());
+        linea(sb, "rotaciones", r.rotaciones.sum());
+        linea(sb, "mensajes_enviados", r.mensajesEnviados.sum());
+        linea(sb, "mensajes_todos", r.mensajesTodos.sum());
+        linea(sb, "mensajes_recibidos", r.mensajesRecibidos.sum());
+        linea(sb, "mensajes_omitidos", r.omitidos.sum());
+        linea(sb, "archivos_enviados", r.archivosEnviados.sum());
+        linea(sb, "archivos_recibidos", r.archivosRecibidos.sum());
+        linea(sb, "bytes_enviados", r.bytesEnviados.sum());
+        linea(sb, "bytes_recibidos", r.bytesRecibidos.sum());
+        linea(sb, "mensajes_por_s", String.format(Locale.ROOT, "%.1f", r.mensajesRecibidos.sum() / segundos));
+        latencias(sb, "latencia_msg", r.mensajes);
+        latencias(sb, "latencia_archivo", r.archivos);
+        return sb.toString();
+    }
+
+    private static void latencias(StringBuilder sb, String prefijo, Histograma h) {
+        linea(sb, prefijo + "_cuenta", h.getCuenta());
+        linea(sb, prefijo + "_p50_ms", String.format(Locale.ROOT, "%.3f", ms(h.percentil(50))));
+        linea(sb, prefijo + "_p99_ms", String.format(Locale.ROOT, "%.3f", ms(h.percentil(99))));
+        linea(sb, prefijo + "_p999_ms", String.format(Locale.ROOT, "%.3f", ms(h.percentil(99.9))));
+        linea(sb, prefijo + "_max_ms", String.format(Locale.ROOT, "%.3f", ms(h.getMaximo())));
+    }
+
+    private static void linea(StringBuilder sb, String clave, Object valor) {
+        sb.append(clave).append(' ').append(valor).append('\n');
+    }
+
+    private static double ms(long ns) {
+        return ns / 1e6;
+    }
+}
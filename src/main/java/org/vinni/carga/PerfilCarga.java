@@ -0,0 +1,122 @@
+package org.vinni.carga;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Configuración de una corrida del generador: a dónde conectar, cuántos clientes
+ * y la mezcla de trabajo. Se lee de un archivo de propiedades (carga.properties
+ * por defecto) y cada clave se puede pisar con -D (p. ej. -Dload.clients=5000).
+ */
+final class PerfilCarga {
+    final String host;
+    final int[] puertos;
+    final int clientes;
+    final int hilos;
+    final double conexionesPorSegundo;
+    final int duracionSegundos;
+    final int reporteSegundos;
+    final double mensajesPorCliente;        // MSG por segundo que manda cada cliente conectado
+    final double proporcionTodos;           // de esos, cuántos van a "Todos"
+    final int bytesMensaje;
+    final double archivosPorSegundo;        // FILE por segundo entre todos los clientes
+    final long[] tamArchivos;               // se elige uno al azar para cada FILE
+    final double rotacionPorSegundo;        // desconexiones y reconexiones por segundo
+
+    private PerfilCarga(Properties p) {
+        host = p.getProperty("load.host", "localhost").trim();
+        puertos = puertos(p.getProperty("load.ports", "5000"));
+        clientes = Math.max(1, entero(p, "load.clients", 1000));
+        hilos = Math.max(1, Math.min(clientes, entero(p, "load.threads",
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)))));
+        conexionesPorSegundo = Math.max(1, decimal(p, "load.connectRate", 500));
+        duracionSegundos = Math.max(1, entero(p, "load.durationSeconds", 60));
+        reporteSegundos = Math.max(1, entero(p, "load.reportSeconds", 5));
+        mensajesPorCliente = Math.max(0, decimal(p, "load.msgRatePerClient", 0.2));
+        proporcionTodos = Math.max(0, Math.min(1, decimal(p, "load.todosRatio", 0.05)));
+        bytesMensaje = Math.max(24, entero(p, "load.msgBytes", 64));
+        archivosPorSegundo = Math.max(0, decimal(p, "load.fileRate", 0));
+        tamArchivos = tamanios(p.getProperty("load.fileSizes", "4096,65536,1048576"));
+        rotacionPorSegundo = Math.max(0, decimal(p, "load.churnRate", 0));
+    }
+
+    /** Archivo (si existe) y encima las propiedades del sistema load.*. */
+    static PerfilCarga cargar(String archivo) throws IOException {
+        Properties p = new Properties();
+        Path ruta = Paths.get(archivo);
+        if (Files.isRegularFile(ruta)) {
+            try (InputStream in = Files.newInputStream(ruta)) {
+                p.load(in);
+            }
+        }
+        for (String clave : System.getProperties().stringPropertyNames()) {
+            if (clave.startsWith("load.")) p.setProperty(clave, System.getProperty(clave));
+        }
+        return new PerfilCarga(p);
+    }
+
+    String describir() {
+        StringBuilder tams = new StringBuilder();
+        for (long t : tamArchivos) tams.append(tams.length() > 0 ? "," : "").append(t);
+        return clientes + " clientes en " + host + ":" + rango() + " (" + hilos + " hilos, " + conexionesPorSegundo
+                + " conexiones/s), " + duracionSegundos + " s; MSG " + mensajesPorCliente + "/s por cliente de "
+                + bytesMensaje + " B, " + Math.round(proporcionTodos * 100) + " % a Todos; FILE " + archivosPorSegundo
+                + "/s de " + tams + " B; rotación " + rotacionPorSegundo + "/s";
+    }
+
+    private String rango() {
+        StringBuilder sb = new StringBuilder();
+        for (int p : puertos) sb.append(sb.length() > 0 ? "," : "").append(p);
+        return sb.toString();
+    }
+
+    /** "5000", "5000,5001" o "5000-5003". */
+    private static int[] puertos(String v) {
+        List<Integer> lista = new ArrayList<>();
+        for (String parte : v.split(",")) {
+            parte = parte.trim();
+            if (parte.isEmpty()) continue;
+            int guion = parte.indexOf('-');
+            if (guion > 0) {
+                int desde = Integer.parseInt(parte.substring(0, guion).trim());
+                int hasta = Integer.parseInt(parte.substring(guion + 1).trim());
+                for (int p = desde; p <= hasta; p++) lista.add(p);
+            } else {
+                lista.add(Integer.parseInt(parte));
+            }
+        }
+        if (lista.isEmpty()) lista.add(5000);
+        return lista.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static long[] tamanios(String v) {
+        List<Long> lista = new ArrayList<>();
+        for (String parte : v.split(",")) {
+            if (!parte.isBlank()) lista.add(Math.max(0, Long.parseLong(parte.trim())));
+        }
+        if (lista.isEmpty()) lista.add(4096L);
+        return lista.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static int entero(Properties p, String clave, int def) {
+        try {
+            String v = p.getProperty(clave);
+            if (v != null && !v.isBlank()) return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ignored) {}
+        return def;
+    }
+
+    private static double decimal(Properties p, String clave, double def) {
+        try {
+            String v = p.getProperty(clave);
+            if (v != null && !v.isBlank()) return Double.parseDouble(v.trim());
+        } catch (NumberFormatException ignored) {}
+        return def;
+    }
+}
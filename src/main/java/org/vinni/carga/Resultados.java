@@ -0,0 +1,44 @@
+package org.vinni.carga;
+
+import org.vinni.servidor.Histograma;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lo que miden los bucles del generador, compartido entre todos: contadores y
+ * latencias de entrega (de que el remitente encola el MSG/FILE a que el
+ * destinatario lo termina de leer). Las latencias se guardan dos veces: el
+ * total de la corrida y el intervalo desde el último reporte.
+ */
+final class Resultados {
+    final AtomicInteger conectados = new AtomicInteger();
+    final LongAdder conexiones = new LongAdder();
+    final LongAdder caidas = new LongAdder();
+    final LongAdder rechazos = new LongAdder();
+    final LongAdder redirecciones = new LongAdder();
+    final LongAdder rotaciones = new LongAdder();
+    final LongAdder mensajesEnviados = new LongAdder();
+    final LongAdder mensajesTodos = new LongAdder();
+    final LongAdder mensajesRecibidos = new LongAdder();
+    final LongAdder archivosEnviados = new LongAdder();
+    final LongAdder archivosRecibidos = new LongAdder();
+    final LongAdder bytesEnviados = new LongAdder();
+    final LongAdder bytesRecibidos = new LongAdder();
+    final LongAdder omitidos = new LongAdder();
+
+    final Histograma mensajes = new Histograma();
+    final Histograma mensajesIntervalo = new Histograma();
+    final Histograma archivos = new Histograma();
+    final Histograma archivosIntervalo = new Histograma();
+
+    void mensajeEntregado(long ns) {
+        mensajes.registrar(ns);
+        mensajesIntervalo.registrar(ns);
+    }
+
+    void archivoEntregado(long ns) {
+        archivos.registrar(ns);
+        archivosIntervalo.registrar(ns);
+    }
+}
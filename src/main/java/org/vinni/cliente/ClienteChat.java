@@ -0,0 +1,885 @@
+package org.vinni.cliente;
+
+import org.vinni.protocolo.Canales;
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.LectorBinario;
+import org.vinni.protocolo.TramaUtf;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cliente del chat sin interfaz: elige instancia, saluda, negocia el protocolo
+ * binario si el servidor lo ofrece, sigue REDIRECT y reconecta con backoff.
+ * Lo que llega se entrega a un {@link ObservadorCliente}.
+ *
+ * Los envíos no bloquean: van a una cola que vacía el hilo escritor de la
+ * conexión, que escribe seguido todo lo que encuentre y hace un solo flush por
+ * tanda. El futuro se completa (en ese hilo) tras el flush que lo incluye, y
+ * falla si la conexión se corta antes. Lo que sigue en la cola durante una
+ * reconexión o un REDIRECT sale por la conexión siguiente, en el mismo orden;
+ * si el cliente se da por desconectado, falla.
+ *
+ * Con el protocolo binario versión 2 los archivos van en tramas DATOS: cada
+ * archivo escribe un bloque y vuelve al final de la cola, así los mensajes
+ * encolados mientras tanto no esperan a que termine. Los que llegan se entregan
+ * al observador desde un hilo propio por archivo.
+ */
+public final class ClienteChat {
+    private static final int BUF = 64 * 1024;
+    // Envíos por flush como mucho, para que los primeros no esperen a una cola larga
+    private static final int LOTE = 64;
+    // Bloques recibidos de un archivo multiplexado que esperan a ser leídos
+    private static final int BLOQUES_ENTRANTES = 16;
+    // Cuánto espera el lector a que se lea uno de esos bloques antes de cortar el archivo
+    private static final long ESPERA_ENTRANTE_MS = 10_000;
+
+    private final ConfigCliente config;
+    private final ObservadorCliente observador;
+    private volatile String nombre;
+
+    private final LinkedBlockingDeque<Envio> cola = new LinkedBlockingDeque<>();
+    private volatile Sesion sesion;
+    // conectar() llamado y sin desconexión definitiva: se aceptan envíos
+    private volatile boolean activo;
+    private final AtomicBoolean manual = new AtomicBoolean(false);
+    private final AtomicBoolean reconectando = new AtomicBoolean(false);
+
+    private final Espera espera;
+    // Última sugerencia del servidor al rechazar la conexión (OCUPADO:ms); 0 = ninguna
+    private volatile long esperaSugeridaMs;
+    private int ultimoPuerto = -1;
+    private final List<String> clientes = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param nombre con qué saludar; null o vacío = "Cliente" + puerto local
+     */
+    public ClienteChat(ConfigCliente config, String nombre, ObservadorCliente observador) {
+        this.config = config;
+        this.nombre = nombre == null || nombre.isBlank() ? null : nombre.trim();
+        this.observador = observador;
+        this.espera = new Espera(config.getEsperaSegundos() * 1000L, config.getEsperaMaxSegundos() * 1000L);
+    }
+
+    public String getNombre() { return nombre; }
+
+    public boolean isConectado() {
+        Sesion s = sesion;
+        return s != null && !s.cerrada;
+    }
+
+    /** Conectado o intentando conectarse: desde conectar() hasta desconectar() o agotar los reintentos. */
+    public boolean isActivo() {
+        return activo;
+    }
+
+    /** Conectados según la última lista del servidor (incluido uno mismo). */
+    public List<String> getClientes() {
+        return Collections.unmodifiableList(new ArrayList<>(clientes));
+    }
+
+    /* -------------------- Envíos -------------------- */
+
+    /**
+     * MSG a un cliente o a "Todos". Si no entra en una trama (64 KB en texto,
+     * CodecBinario.MAX_CUERPO en binario) falla solo este envío.
+     */
+    public CompletableFuture<Void> enviarMensaje(String destino, String texto) {
+        return encolar(new Envio(null) {
+            @Override
+            void escribir(Sesion s) throws IOException {
+                ByteBuffer b;
+                try {
+                    b = s.binario ? CodecBinario.mensaje(s.idDe(destino), texto)
+                            : TramaUtf.codificar("MSG:" + destino + ":" + texto);
+                    if (b.limit() > CodecBinario.MAX_CUERPO) throw new ProtocolException("Mensaje demasiado largo");
+                } catch (IOException e) {
+                    futuro.completeExceptionally(e);    // no se escribió nada: la conexión sigue
+                    return;
+                }
+                s.escribir(b);
+            }
+        });
+    }
+
+    /** FILE con el contenido de {@code archivo}, que se lee recién cuando le toca salir. */
+    public CompletableFuture<Void> enviarArchivo(String destino, File archivo) {
+        return encolar(new EnvioArchivo(destino, archivo));
+    }
+
+    private CompletableFuture<Void> encolar(Envio e) {
+        if (!activo) {
+            e.futuro.completeExceptionally(new IOException("No conectado"));
+            return e.futuro;
+        }
+        cola.add(e);
+        // Si desconectar() vació la cola justo antes de agregarlo, nadie lo va a sacar
+        if (!activo && cola.remove(e)) e.futuro.completeExceptionally(new IOException("Desconectado"));
+        return e.futuro;
+    }
+
+    /**
+     * Algo que escribir en el socket. Los de control (respuestas al saludo y a la
+     * negociación) pertenecen a una conexión: se adelantan en la cola y, si esa
+     * conexión ya no está, se descartan.
+     */
+    private abstract static class Envio {
+        final CompletableFuture<Void> futuro = new CompletableFuture<>();
+        Sesion sesion;
+
+        Envio(Sesion sesion) {
+            this.sesion = sesion;
+        }
+
+        abstract void escribir(Sesion s) throws IOException;
+
+        /** false: escribió una parte y vuelve al final de la cola por el resto. */
+        boolean terminado() {
+            return true;
+        }
+
+        /** No va a salir (o no entero): falla y suelta lo que tenga abierto. */
+        void abandonar(IOException e) {
+            futuro.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * FILE saliente. En la versión 2 escribe la cabecera con un flujo propio de la
+     * conexión y después una trama DATOS por turno; desde la cabecera queda atado
+     * a esa conexión. Si no, escribe el archivo entero seguido.
+     */
+    private static final class EnvioArchivo extends Envio {
+        private final String destino;
+        private final File archivo;
+        private InputStream in;
+        private byte[] buffer;
+        private long flujo;
+        private long resta;
+        private boolean terminado;
+
+        EnvioArchivo(String destino, File archivo) {
+            super(null);
+            this.destino = destino;
+            this.archivo = archivo;
+        }
+
+        @Override
+        void escribir(Sesion s) throws IOException {
+            if (in == null) {
+                try {
+                    in = new BufferedInputStream(new FileInputStream(archivo));
+                } catch (FileNotFoundException e) {
+                    terminado = true;
+                    futuro.completeExceptionally(e);    // no se escribió nada: la conexión sigue
+                    return;
+                }
+                buffer = new byte[BUF];
+                resta = archivo.length();
+                if (s.multiplexa) {
+                    flujo = ++s.flujos;
+                    sesion = s;
+                    s.escribir(CodecBinario.archivo(s.idDe(destino), archivo.getName(), resta, flujo));
+                } else if (s.binario) {
+                    s.escribir(CodecBinario.archivo(s.idDe(destino), archivo.getName(), resta, 0));
+                } else {
+                    s.dos.writeUTF("FILE:" + destino + ":" + archivo.getName() + ":" + resta);
+                }
+            }
+            try {
+                while (resta > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, resta));
+                    if (n == -1) {
+                        EOFException e = new EOFException("El archivo se achicó mientras se enviaba");
+                        // Ya se anunció el tamaño: en línea el stream quedó corrupto; multiplexado, el CORTE lo descarta
+                        if (!s.multiplexa) throw e;
+                        s.escribir(CodecBinario.corte(flujo));
+                        abandonar(e);
+                        return;
+                    }
+                    if (s.multiplexa) s.escribir(CodecBinario.datos(flujo, n));
+                    s.dos.write(buffer, 0, n);
+                    resta -= n;
+                    if (s.multiplexa) break;
+                }
+            } catch (IOException e) {
+                cerrar();
+                throw e;
+            }
+            if (resta == 0) cerrar();
+        }
+
+        @Override
+        boolean terminado() {
+            return terminado;
+        }
+
+        @Override
+        void abandonar(IOException e) {
+            cerrar();
+            super.abandonar(e);
+        }
+
+        private void cerrar() {
+            terminado = true;
+            buffer = null;
+            if (in == null) return;
+            try { in.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /* -------------------- Conexión y reintentos -------------------- */
+
+    /** Conecta en segundo plano, con hasta reconnect.maxAttempts intentos. */
+    public void conectar() {
+        manual.set(false);
+        activo = true;
+        observador.conectando();
+
+        new Thread(() -> {
+            int intento = 0;
+            while (!manual.get()) {
+                intento++;
+                if (intentarConectarUnaVez(false)) {     // conexión inicial: con avisos
+                    espera.reiniciar();
+                    return;
+                }
+                if (intento >= config.getMaxIntentos()) {
+                    observador.aviso("No fue posible conectar tras " + intento + " intento(s).\n");
+                    terminar();
+                    return;
+                }
+                dormirMs(espera.siguiente(tomarEsperaSugerida()));
+                observador.aviso("Reintentando conexión (" + (intento + 1) + "/" + config.getMaxIntentos() + ")...\n");
+            }
+        }, "reconnect-initial").start();
+    }
+
+    /** Desconexión pedida: no se reintenta y lo que quedaba en cola falla. */
+    public void desconectar() {
+        manual.set(true);
+        Sesion s = sesion;
+        if (s != null) s.cerrar();
+        terminar();
+        observador.aviso("Desconectado.\n");
+    }
+
+    private void terminar() {
+        activo = false;
+        IOException e = new IOException("Desconectado");
+        for (Envio pendiente; (pendiente = cola.poll()) != null; ) pendiente.abandonar(e);
+        observador.desconectado();
+    }
+
+    /**
+     * @param quiet true para no avisar errores de socket (reconexión silenciosa)
+     */
+    private boolean intentarConectarUnaVez(boolean quiet) {
+        String host = config.getHost();
+        int[] puertos = config.getPuertos();
+
+        // Con ping de salud: la instancia menos cargada de dos al azar (rebalancea en cada
+        // reconexión). Sin él: el último exitoso primero. Después, todos a la vez y gana el primero.
+        int[] orden = puertos.length > 1 && config.getBalanceMs() > 0
+                ? SeleccionCarga.ordenar(host, puertos, config.getBalanceMs()) : null;
+        if (orden == null) orden = ordenPuertos(puertos);
+        return conectar(host, orden, quiet);
+    }
+
+    /**
+     * Conecta al primero de {@code orden} que responda, hace el saludo y arranca
+     * los hilos de la conexión.
+     */
+    private boolean conectar(String host, int[] orden, boolean quiet) {
+        SocketChannel s = null;
+        try {
+            s = SondeoPuertos.conectar(host, orden, 3000); // timeout 3s para todo el sondeo
+        } catch (IOException e) {
+            if (!quiet) observador.aviso("Error conectando: " + e.getMessage() + "\n");
+        }
+        if (s == null) {
+            if (!quiet) {
+                observador.aviso("Error: no se pudo conectar a ningún servidor en " + Arrays.toString(orden) + ".\n");
+            }
+            return false;
+        }
+        int puertoUsado = s.socket().getPort();
+        ultimoPuerto = puertoUsado;
+
+        Sesion nueva = null;
+        try {
+            nueva = new Sesion(s);
+            if (nombre == null) nombre = "Cliente" + s.socket().getLocalPort();
+
+            String prompt = nueva.dis.readUTF();
+            if (prompt.startsWith("OCUPADO:")) {
+                // Control de admisión: el servidor no acepta saludos por ahora y dice cuándo volver
+                esperaSugeridaMs = Math.max(0, parseLong(prompt.substring("OCUPADO:".length())));
+                if (!quiet) observador.aviso("Servidor ocupado; se reintentará en " + esperaSugeridaMs + " ms.\n");
+                nueva.cerrar();
+                return false;
+            }
+            nueva.dos.writeUTF(nombre);
+            nueva.dos.flush();
+        } catch (IOException e) {
+            if (!quiet) observador.aviso("Error conectando: " + e.getMessage() + "\n");
+            if (nueva != null) nueva.cerrar();
+            else cerrarSilencioso(s);
+            return false;
+        }
+
+        if (manual.get()) {
+            // desconectar() llegó durante el saludo
+            nueva.cerrar();
+            return false;
+        }
+        sesion = nueva;
+        nueva.arrancar();
+        observador.aviso("Conectado al servidor en puerto " + puertoUsado + ".\n");
+        observador.conectado(host, puertoUsado);
+        return true;
+    }
+
+    // Orden de puertos: primero el último exitoso, luego el resto
+    private int[] ordenPuertos(int[] puertos) {
+        int[] orden = new int[puertos.length];
+        int k = 0;
+        for (int p : puertos) if (p == ultimoPuerto) orden[k++] = p;
+        for (int p : puertos) if (p != ultimoPuerto) orden[k++] = p;
+        return orden;
+    }
+
+    /** Se cortó la conexión {@code s}: redirección, reintentos o nada si fue pedido. */
+    private void conexionTerminada(Sesion s) {
+        if (manual.get()) return;
+        if (s.redirPuerto >= 0) {
+            if (conectar(s.redirHost, new int[] {s.redirPuerto}, true)) return;
+            // La instancia indicada no responde: el ciclo normal de reintentos
+        } else {
+            observador.aviso("Conexión perdida con el servidor.\n");
+        }
+        intentarReconexion();
+    }
+
+    private void intentarReconexion() {
+        if (reconectando.getAndSet(true)) return; // evita bucles simultáneos
+
+        observador.conectando();
+        new Thread(() -> {
+            // Los clientes de una instancia caída se enteran todos a la vez: el primer
+            // intento también se sortea, para no llegar juntos a las que quedan
+            dormirMs(espera.inicial());
+            int intento = 0;
+            while (!manual.get()) {
+                intento++;
+                observador.aviso("Reintentando conexión (" + intento + "/" + config.getMaxIntentos() + ")...\n");
+                if (intentarConectarUnaVez(true)) { // QUIET
+                    espera.reiniciar();
+                    observador.aviso("Reconectado.\n");
+                    reconectando.set(false);
+                    return;
+                }
+                if (intento >= config.getMaxIntentos()) {
+                    observador.aviso("No se pudo reconectar tras " + intento + " intentos.\n");
+                    reconectando.set(false);
+                    terminar();
+                    return;
+                }
+                dormirMs(espera.siguiente(tomarEsperaSugerida()));
+            }
+            reconectando.set(false);
+        }, "reconnect-loop").start();
+    }
+
+    private void dormirMs(long ms) {
+        try { Thread.sleep(ms); } catch (InterruptedException ignored) {}
+    }
+
+    private long tomarEsperaSugerida() {
+        long ms = esperaSugeridaMs;
+        esperaSugeridaMs = 0;
+        return ms;
+    }
+
+    /* -------------------- Conexión en curso -------------------- */
+
+    /**
+     * Un socket conectado y saludado, con su hilo lector y su hilo escritor. Los ids
+     * del protocolo binario valen solo para esta conexión.
+     */
+    private final class Sesion {
+        final SocketChannel canal;
+        final DataInputStream dis;
+        final DataOutputStream dos;
+        final Map<String, Long> idsPorNombre = new ConcurrentHashMap<>();
+        final Map<Long, String> nombresPorId = new ConcurrentHashMap<>();
+        // Solo lo toca el escritor: desde que escribe la aceptación, todo sale en binario
+        boolean binario;
+        // Ídem, versión 2: los archivos salen en tramas DATOS; último flujo usado
+        boolean multiplexa;
+        long flujos;
+        // Solo el lector: versión que se aceptó y archivos multiplexados en recepción
+        int version;
+        final Map<Long, Entrante> entrantes = new HashMap<>();
+        // REDIRECT: tras el flush de la tanda en curso, cerrar
+        boolean cerrarTrasTanda;
+        // Versión de la lista local (-1 = sin versión); los DELTA solo se aplican sobre la suya
+        long versionLista = -1;
+        // Se pidió la LISTA completa tras un hueco: hasta que llegue se ignoran los DELTA
+        boolean listaPedida;
+        volatile boolean cerrada;
+        // REDIRECT recibido: a dónde pasarse cuando se cierre (puerto -1 = ninguno)
+        volatile String redirHost;
+        volatile int redirPuerto = -1;
+        private Thread lector, escritor;
+
+        Sesion(SocketChannel canal) {
+            this.canal = canal;
+            this.dis = new DataInputStream(new BufferedInputStream(Canales.entrada(canal)));
+            this.dos = new DataOutputStream(new BufferedOutputStream(Canales.salida(canal), BUF));
+        }
+
+        void arrancar() {
+            lector = new Thread(this::leer, "listener");
+            escritor = new Thread(this::escribirCola, "escritor");
+            escritor.start();
+            lector.start();
+        }
+
+        void cerrar() {
+            cerrada = true;
+            try { canal.close(); } catch (IOException ignored) {}
+            if (escritor != null) escritor.interrupt();
+        }
+
+        void escribir(ByteBuffer b) throws IOException {
+            dos.write(b.array(), 0, b.limit());
+        }
+
+        long idDe(String destino) {
+            if (destino.equals("Todos")) return CodecBinario.ID_TODOS;
+            Long id = idsPorNombre.get(destino);
+            return id != null ? id : -1;
+        }
+
+        /** Trama de control de esta conexión: sale antes que lo que haya en cola. */
+        void control(Envio e) {
+            cola.addFirst(e);
+        }
+
+        /* ---- Escritor ---- */
+
+        private void escribirCola() {
+            List<Envio> tanda = new ArrayList<>();
+            Envio e = null;
+            try {
+                while (!cerrada) {
+                    e = cola.take();
+                    int escritos = 0;
+                    while (e != null) {
+                        if (e.sesion != null && e.sesion != this) {
+                            // De una conexión anterior: un control ya no aplica, un archivo a medias no puede seguir
+                            e.abandonar(new IOException("Conexión perdida"));
+                        } else if (cerrada) {
+                            cola.addFirst(e);
+                            e = null;
+                            break;
+                        } else {
+                            e.escribir(this);
+                            escritos++;
+                            // Un archivo multiplexado cede el turno: lo encolado mientras tanto sale antes
+                            if (e.terminado()) tanda.add(e);
+                            else cola.addLast(e);
+                        }
+                        e = escritos < LOTE && !cerrarTrasTanda ? cola.poll() : null;
+                    }
+                    dos.flush();
+                    for (Envio hecho : tanda) hecho.futuro.complete(null);
+                    tanda.clear();
+                    if (cerrarTrasTanda) cerrar();
+                }
+            } catch (IOException ex) {
+                // Lo de la tanda (y el que se estaba escribiendo) no se sabe si llegó: falla;
+                // lo que sigue en cola espera la próxima conexión
+                if (e != null) e.abandonar(ex);
+                for (Envio fallido : tanda) fallido.abandonar(ex);
+                cerrar();
+            } catch (InterruptedException ignored) {
+                // cerrar() mientras esperaba en la cola
+            }
+        }
+
+        /* ---- Lector ---- */
+
+        private void leer() {
+            LectorBinario lectorBinario = null;
+            try {
+                while (!cerrada) {
+                    if (lectorBinario != null) {
+                        leerBinaria(lectorBinario);
+                        continue;
+                    }
+                    String msg = dis.readUTF();
+
+                    if (msg.startsWith("MSG:")) {
+                        String[] partes = msg.split(":", 3);
+                        observador.mensaje(partes[1], partes[2]);
+
+                    } else if (msg.startsWith("FILE:")) {
+                        String[] partes = msg.split(":", 4);
+                        recibirArchivo(partes[1], partes[2], Long.parseLong(partes[3]));
+
+                    } else if (msg.startsWith("LISTA:")) {
+                        versionLista = -1;
+                        reemplazarLista(msg.substring(6).split(","));
+
+                    } else if (msg.startsWith("REDIRECT:")) {
+                        String[] partes = msg.split(":", 3);
+                        redirigir(partes[2], Integer.parseInt(partes[1]));
+
+                    } else if (msg.equals("INGRESE_NOMBRE")) {
+                        String n = nombre;
+                        control(new Envio(this) {
+                            @Override
+                            void escribir(Sesion s) throws IOException {
+                                s.dos.writeUTF(n);
+                            }
+                        });
+
+                    } else if (CodecBinario.versionAceptada(msg) > 0) {
+                        // Aceptar la versión ofrecida: desde aquí todo lo que se escribe va en binario
+                        version = CodecBinario.versionAceptada(msg);
+                        boolean v2 = version >= 2;
+                        control(new Envio(this) {
+                            @Override
+                            void escribir(Sesion s) throws IOException {
+                                s.dos.writeUTF(msg);
+                                s.binario = true;
+                                s.multiplexa = v2;
+                            }
+                        });
+
+                    } else if (msg.equals(CodecBinario.CONFIRMACION)) {
+                        // Última trama de texto del servidor
+                        lectorBinario = new LectorBinario(dis);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Conexión perdida o trama mal formada: se descarta la conexión
+            } finally {
+                for (Entrante a : entrantes.values()) a.abortar();
+                entrantes.clear();
+                cerrar();
+                conexionTerminada(this);
+            }
+        }
+
+        private void leerBinaria(LectorBinario lector) throws IOException {
+            byte tipo = lector.leer();
+            ByteBuffer b = lector.cuerpo();
+            if (tipo == CodecBinario.MSG) {
+                String remitente = nombreDe(CodecBinario.getVarint(b));
+                observador.mensaje(remitente, CodecBinario.getTexto(b, b.remaining()));
+
+            } else if (tipo == CodecBinario.FILE) {
+                String remitente = nombreDe(CodecBinario.getVarint(b));
+                String nombreArchivo = CodecBinario.getCampo(b);
+                long tam = CodecBinario.getVarint(b);
+                long flujo = b.hasRemaining() ? CodecBinario.getVarint(b) : 0;
+                if (version < 2) {
+                    recibirArchivo(remitente, nombreArchivo, tam);
+                } else {
+                    Entrante a = new Entrante(flujo);
+                    if (tam > 0) entrantes.put(flujo, a);
+                    a.entregar(remitente, nombreArchivo, tam);
+                }
+
+            } else if (tipo == CodecBinario.DATOS && version >= 2) {
+                long flujo = CodecBinario.getVarint(b);
+                Entrante a = entrantes.get(flujo);
+                if (a != null && a.agregar(b)) entrantes.remove(flujo);
+
+            } else if (tipo == CodecBinario.CORTE && version >= 2) {
+                Entrante a = entrantes.remove(CodecBinario.getVarint(b));
+                if (a != null) a.abortar();
+
+            } else if (tipo == CodecBinario.LISTA) {
+                long version = CodecBinario.getVarint(b);
+                int n = (int) CodecBinario.getVarint(b);
+                String[] nombres = new String[n];
+                idsPorNombre.clear();
+                nombresPorId.clear();
+                for (int i = 0; i < n; i++) {
+                    long id = CodecBinario.getVarint(b);
+                    nombres[i] = CodecBinario.getCampo(b);
+                    idsPorNombre.put(nombres[i], id);
+                    nombresPorId.put(id, nombres[i]);
+                }
+                versionLista = version;
+                listaPedida = false;
+                reemplazarLista(nombres);
+
+            } else if (tipo == CodecBinario.REDIRECT) {
+                int puerto = (int) CodecBinario.getVarint(b);
+                redirigir(CodecBinario.getCampo(b), puerto);
+
+            } else if (tipo == CodecBinario.DELTA) {
+                long base = CodecBinario.getVarint(b);
+                long version = CodecBinario.getVarint(b);
+                if (listaPedida) return;
+                if (base != versionLista) {
+                    // Se perdió una versión: pedir la lista completa (una vez) y esperar esa
+                    versionLista = -1;
+                    listaPedida = true;
+                    control(new Envio(this) {
+                        @Override
+                        void escribir(Sesion s) throws IOException {
+                            s.escribir(CodecBinario.pedirLista());
+                        }
+                    });
+                    return;
+                }
+                aplicarDelta(b);
+                versionLista = version;
+            }
+        }
+
+        /**
+         * Altas y bajas sobre la lista actual.
+         */
+        private void aplicarDelta(ByteBuffer b) throws IOException {
+            int n = (int) CodecBinario.getVarint(b);
+            for (int i = 0; i < n; i++) {
+                byte op = b.get();
+                long id = CodecBinario.getVarint(b);
+                if (op == CodecBinario.ALTA) {
+                    String cliente = CodecBinario.getCampo(b);
+                    Long anterior = idsPorNombre.put(cliente, id);
+                    nombresPorId.put(id, cliente);
+                    if (anterior != null) {
+                        // Ya estaba (volvió con otra conexión): solo cambia su id
+                        if (anterior != id) nombresPorId.remove(anterior, cliente);
+                        continue;
+                    }
+                    clientes.add(cliente);
+                    observador.alta(cliente);
+                } else {
+                    String cliente = nombresPorId.remove(id);
+                    if (cliente == null) continue;
+                    idsPorNombre.remove(cliente, id);
+                    clientes.remove(cliente);
+                    observador.baja(cliente);
+                }
+            }
+        }
+
+        private void reemplazarLista(String[] nombres) {
+            List<String> nueva = new ArrayList<>();
+            for (String n : nombres) {
+                if (n != null && !n.trim().isEmpty()) nueva.add(n);
+            }
+            clientes.clear();
+            clientes.addAll(nueva);
+            observador.lista(Collections.unmodifiableList(nueva));
+        }
+
+        private String nombreDe(long id) {
+            if (id == CodecBinario.ID_SERVIDOR) return "Servidor";
+            String n = nombresPorId.get(id);
+            return n != null ? n : "#" + id;
+        }
+
+        private void recibirArchivo(String remitente, String nombreArchivo, long tam) throws IOException {
+            Acotado datos = new Acotado(dis, tam);
+            observador.archivo(remitente, nombreArchivo, tam, datos);
+            datos.descartarResto();
+        }
+
+        /**
+         * La instancia se apaga e indica a cuál pasarse. El cierre va como control:
+         * sale cuando termina lo que se esté escribiendo (un archivo, hasta el último
+         * byte), y lo que quede en cola pasa a la conexión nueva.
+         */
+        private void redirigir(String host, int puerto) {
+            redirHost = host.isEmpty() ? config.getHost() : host;
+            redirPuerto = puerto;
+            observador.aviso("El servidor se está apagando; pasando al puerto " + puerto + "...\n");
+            control(new Envio(this) {
+                @Override
+                void escribir(Sesion s) {
+                    s.cerrarTrasTanda = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Archivo multiplexado en recepción: el lector le pasa el contenido de cada
+     * DATOS y un hilo propio lo entrega al observador. Con BLOQUES_ENTRANTES sin
+     * leer, el lector espera (frena la conexión, como un archivo en línea); si en
+     * ESPERA_ENTRANTE_MS nadie lee, se corta ese archivo y la conexión sigue.
+     */
+    private final class Entrante extends InputStream {
+        private final byte[] cortado = new byte[0];
+        private final BlockingQueue<byte[]> bloques = new ArrayBlockingQueue<>(BLOQUES_ENTRANTES);
+        private final long flujo;
+        private String nombreArchivo;
+        private long faltan;            // solo el lector
+        private byte[] actual;
+        private int pos;
+
+        Entrante(long flujo) {
+            this.flujo = flujo;
+        }
+
+        void entregar(String remitente, String nombreArchivo, long tam) {
+            this.nombreArchivo = nombreArchivo;
+            faltan = tam;
+            new Thread(() -> {
+                Acotado datos = new Acotado(this, tam);
+                try {
+                    observador.archivo(remitente, nombreArchivo, tam, datos);
+                } catch (IOException ignored) {
+                    // Cancelado por el remitente o conexión perdida
+                } catch (Throwable t) {
+                    observador.aviso("Error recibiendo " + nombreArchivo + ": " + t + "\n");
+                } finally {
+                    // Lo que el observador no leyó igual se saca, para que el lector no espere
+                    try { datos.descartarResto(); } catch (IOException ignored) {}
+                }
+            }, "archivo-" + flujo).start();
+        }
+
+        /** Contenido de una trama DATOS; true si con él se completó (o se cortó) el archivo. */
+        boolean agregar(ByteBuffer b) throws IOException {
+            int n = (int) Math.min(b.remaining(), faltan);
+            byte[] copia = new byte[n];
+            b.get(copia);
+            faltan -= n;
+            try {
+                if (!bloques.offer(copia, ESPERA_ENTRANTE_MS, TimeUnit.MILLISECONDS)) {
+                    abortar();
+                    observador.aviso("Archivo " + nombreArchivo + " descartado: no se estaba leyendo.\n");
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return faltan == 0;
+        }
+
+        void abortar() {
+            bloques.clear();
+            bloques.offer(cortado);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            return read(uno, 0, 1) == -1 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (actual == null || pos == actual.length) {
+                try {
+                    actual = bloques.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (actual == cortado) {
+                    bloques.offer(cortado);     // que siga fallando
+                    throw new IOException("Archivo cancelado");
+                }
+            }
+            int n = Math.min(len, actual.length - pos);
+            System.arraycopy(actual, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * Los {@code tam} bytes de un archivo entrante; cerrarlo no cierra la conexión.
+     */
+    private static final class Acotado extends FilterInputStream {
+        private long resta;
+
+        Acotado(InputStream in, long tam) {
+            super(in);
+            this.resta = tam;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (resta <= 0) return -1;
+            int b = in.read();
+            if (b == -1) throw new EOFException("Fin inesperado durante recepción de archivo");
+            resta--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (resta <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, resta));
+            if (n == -1) throw new EOFException("Fin inesperado durante recepción de archivo");
+            resta -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = in.skip(Math.min(n, resta));
+            resta -= s;
+            return s;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), resta);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // La conexión sigue: lo que falte se descarta en descartarResto
+        }
+
+        void descartarResto() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (resta > 0) read(buffer, 0, (int) Math.min(buffer.length, resta));
+        }
+    }
+
+    private static void cerrarSilencioso(SocketChannel s) {
+        try { s.close(); } catch (IOException ignored) {}
+    }
+
+    private static long parseLong(String v) {
+        try { return Long.parseLong(v.trim()); }
+        catch (NumberFormatException ignored) { return 0; }
+    }
+}
@@ -0,0 +1,96 @@
+package org.vinni.cliente;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * A dónde y cómo conecta un {@link ClienteChat}: host, puertos candidatos y la
+ * política de reintentos. Se arma a mano o desde las claves de cliente.properties.
+ */
+public final class ConfigCliente {
+    private final String host;
+    private final int[] puertos;
+    private final int maxIntentos;
+    private final int esperaSegundos;
+    private final int esperaMaxSegundos;
+    private final int balanceMs;
+
+    /**
+     * @param balanceMs espera por el ping de salud antes de elegir instancia por carga (0 = no se mira la carga)
+     */
+    public ConfigCliente(String host, int[] puertos, int maxIntentos, int esperaSegundos,
+                         int esperaMaxSegundos, int balanceMs) {
+        this.host = host;
+        this.puertos = puertos.length > 0 ? puertos.clone() : new int[] {5000};
+        this.maxIntentos = Math.max(1, maxIntentos);
+        this.esperaSegundos = Math.max(0, esperaSegundos);
+        this.esperaMaxSegundos = Math.max(this.esperaSegundos, esperaMaxSegundos);
+        this.balanceMs = Math.max(0, balanceMs);
+    }
+
+    /** localhost, {@code cantidad} puertos desde {@code base} y los reintentos por defecto. */
+    public static ConfigCliente porDefecto(int base, int cantidad) {
+        return new ConfigCliente("localhost", rango(base, cantidad), 5, 3, 30, 150);
+    }
+
+    /**
+     * server.host, server.ports (lista fija) o server.basePort + server.scan.count,
+     * reconnect.maxAttempts, reconnect.delaySeconds, reconnect.maxDelaySeconds y balance.probeMs.
+     */
+    public static ConfigCliente desdePropiedades(Properties p) {
+        String host = p.getProperty("server.host", "localhost").trim();
+        if (host.isEmpty()) host = "localhost";
+
+        // 1) Si hay lista fija, úsala; mal formada o vacía -> cae al rango
+        int[] puertos = new int[0];
+        String lista = p.getProperty("server.ports");
+        if (lista != null && !lista.isBlank()) puertos = parsePuertos(lista);
+        if (puertos.length == 0) {
+            // 2) Rango: basePort + scan.count
+            int base = entero(p.getProperty("server.basePort"), 5000);
+            int cantidad = Math.max(1, Math.min(200, entero(p.getProperty("server.scan.count"), 10)));
+            puertos = rango(base, cantidad);
+        }
+        return new ConfigCliente(host, puertos,
+                entero(p.getProperty("reconnect.maxAttempts"), 5),
+                entero(p.getProperty("reconnect.delaySeconds"), 3),
+                entero(p.getProperty("reconnect.maxDelaySeconds"), 30),
+                entero(p.getProperty("balance.probeMs"), 150));
+    }
+
+    public String getHost() { return host; }
+    public int[] getPuertos() { return puertos.clone(); }
+    public int getMaxIntentos() { return maxIntentos; }
+    public int getEsperaSegundos() { return esperaSegundos; }
+    public int getEsperaMaxSegundos() { return esperaMaxSegundos; }
+    public int getBalanceMs() { return balanceMs; }
+
+    @Override
+    public String toString() {
+        return "puertos=" + Arrays.toString(puertos) + ", maxAttempts=" + maxIntentos + ", delaySeconds="
+                + esperaSegundos + ", maxDelaySeconds=" + esperaMaxSegundos;
+    }
+
+    private static int[] parsePuertos(String csv) {
+        try {
+            return Arrays.stream(csv.split(","))
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .mapToInt(Integer::parseInt)
+                    .toArray();
+        } catch (NumberFormatException e) {
+            return new int[0];
+        }
+    }
+
+    private static int[] rango(int base, int cantidad) {
+        int[] arr = new int[cantidad];
+        for (int i = 0; i < cantidad; i++) arr[i] = base + i;
+        return arr;
+    }
+
+    private static int entero(String v, int def) {
+        try { return (v == null || v.isBlank()) ? def : Integer.parseInt(v.trim()); }
+        catch (NumberFormatException ignored) { return def; }
+    }
+}
@@ -0,0 +1,45 @@
+package org.vinni.cliente;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Esperas entre reintentos de conexión con "decorrelated jitter": cada una sale
+ * al azar entre la base y el triple de la anterior, con un tope. Crece como un
+ * backoff exponencial, pero dos clientes que se cayeron a la vez no vuelven a
+ * intentar en el mismo instante.
+ *
+ * Si el servidor rechazó la conexión con una sugerencia (OCUPADO:ms), esa es
+ * la espera mínima.
+ */
+public final class Espera {
+    private final long baseMs;
+    private final long topeMs;
+    private long anteriorMs;
+
+    public Espera(long baseMs, long topeMs) {
+        this.baseMs = Math.max(1, baseMs);
+        this.topeMs = Math.max(this.baseMs, topeMs);
+        this.anteriorMs = this.baseMs;
+    }
+
+    /** Tras conectar: la próxima racha de reintentos vuelve a empezar desde la base. */
+    public synchronized void reiniciar() {
+        anteriorMs = baseMs;
+    }
+
+    /**
+     * Antes del primer intento tras una caída: al azar entre 0 y la base, para que
+     * los clientes de una instancia caída no reconecten todos juntos.
+     */
+    public long inicial() {
+        return ThreadLocalRandom.current().nextLong(baseMs + 1);
+    }
+
+    /** Próxima espera; {@code minimoMs} es la sugerida por el servidor (0 = ninguna). */
+    public synchronized long siguiente(long minimoMs) {
+        long hasta = Math.min(topeMs, anteriorMs * 3);
+        long ms = hasta > baseMs ? ThreadLocalRandom.current().nextLong(baseMs, hasta + 1) : baseMs;
+        anteriorMs = Math.max(ms, Math.min(minimoMs, topeMs));
+        return Math.max(ms, minimoMs);
+    }
+}
@@ -0,0 +1,43 @@
+package org.vinni.cliente;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Recibe lo que llega a un {@link ClienteChat} y los cambios de conexión; lo
+ * implementa la GUI, un bot o un servicio. Todo se invoca desde el hilo lector
+ * de la conexión (o el de reintentos), salvo los archivos multiplexados
+ * (protocolo binario versión 2), que llegan cada uno desde su propio hilo: una
+ * GUI debe pasar a su propio hilo. Solo hace falta implementar lo que interesa.
+ */
+public interface ObservadorCliente {
+
+    /** Línea de estado para mostrar o loguear (termina en salto de línea). */
+    default void aviso(String msg) {}
+
+    /** Empieza a conectar o a reconectar; los envíos quedan en cola hasta que conecte. */
+    default void conectando() {}
+
+    default void conectado(String host, int puerto) {}
+
+    /** Desconexión definitiva (pedida o tras agotar los reintentos); lo pendiente falló. */
+    default void desconectado() {}
+
+    default void mensaje(String remitente, String texto) {}
+
+    /**
+     * Llega un archivo: {@code datos} da exactamente {@code tam} bytes. Lo que no se
+     * lea se descarta al volver; no hace falta cerrarlo. Si el remitente lo cancela
+     * a medias, la lectura lanza IOException.
+     */
+    default void archivo(String remitente, String nombreArchivo, long tam, InputStream datos) throws IOException {}
+
+    /** Lista completa de conectados (incluido uno mismo). */
+    default void lista(List<String> nombres) {}
+
+    /** Cambios sueltos sobre la última lista (protocolo binario). */
+    default void alta(String nombre) {}
+
+    default void baja(String nombre) {}
+}
@@ -0,0 +1,101 @@
+package org.vinni.cliente;
+
+import org.vinni.protocolo.Salud;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Elección de instancia por carga. Antes de conectar se manda el ping de salud
+ * UDP ({@link Salud}) a todos los puertos; con las respuestas que lleguen en el
+ * plazo se elige con "power of two choices": dos instancias al azar y gana la de
+ * menos clientes. Mirar solo dos (y no la mínima de todas) evita que todos los
+ * clientes que reconectan a la vez se amontonen en la misma instancia, que hasta
+ * el próximo ping sigue pareciendo la más vacía.
+ */
+public final class SeleccionCarga {
+
+    // Menos clientes; a igualdad, menos carga del sistema
+    private static final Comparator<Salud.Estado> POR_CARGA =
+            Comparator.comparingInt(Salud.Estado::getClientes).thenComparingInt(Salud.Estado::getCarga);
+
+    private SeleccionCarga() {}
+
+    /**
+     * @return los puertos con el elegido primero, después los que contestaron (de
+     *         menos a más clientes) y al final los que no; null si no contestó ninguno
+     *         (servidores sin ping de salud: se usa el orden de siempre)
+     */
+    public static int[] ordenar(String host, int[] puertos, int esperaMs) {
+        Map<Integer, Salud.Estado> estados = sondear(host, puertos, esperaMs);
+        if (estados.isEmpty()) return null;
+
+        List<Integer> vivos = new ArrayList<>(estados.keySet());
+        int elegido = vivos.get(0);
+        if (vivos.size() > 1) {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            int a = r.nextInt(vivos.size());
+            int b = r.nextInt(vivos.size() - 1);
+            if (b >= a) b++;
+            elegido = menosCargado(estados, vivos.get(a), vivos.get(b));
+        }
+        vivos.remove(Integer.valueOf(elegido));
+        vivos.sort(Comparator.comparing(estados::get, POR_CARGA));
+
+        vivos.add(0, elegido);
+        for (int p : puertos) {
+            if (!vivos.contains(p)) vivos.add(p);
+        }
+        return vivos.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int menosCargado(Map<Integer, Salud.Estado> estados, int x, int y) {
+        return POR_CARGA.compare(estados.get(x), estados.get(y)) <= 0 ? x : y;
+    }
+
+    /** Un PING a cada puerto desde un mismo socket; las respuestas que lleguen en {@code esperaMs}. */
+    private static Map<Integer, Salud.Estado> sondear(String host, int[] puertos, int esperaMs) {
+        Map<Integer, Salud.Estado> estados = new HashMap<>();
+        Map<Long, Integer> porNonce = new HashMap<>();
+        try (DatagramSocket udp = new DatagramSocket()) {
+            InetAddress direccion = InetAddress.getByName(host);
+            for (int p : puertos) {
+                if (porNonce.containsValue(p)) continue;
+                long nonce = ThreadLocalRandom.current().nextLong();
+                porNonce.put(nonce, p);
+                ByteBuffer ping = Salud.ping(nonce);
+                udp.send(new DatagramPacket(ping.array(), ping.limit(), direccion, p));
+            }
+
+            byte[] buffer = new byte[64];
+            long limite = System.nanoTime() + esperaMs * 1_000_000L;
+            while (estados.size() < porNonce.size()) {
+                int resta = (int) ((limite - System.nanoTime()) / 1_000_000L);
+                if (resta <= 0) break;
+                udp.setSoTimeout(resta);
+                DatagramPacket d = new DatagramPacket(buffer, buffer.length);
+                try {
+                    udp.receive(d);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Salud.Estado e = Salud.leerPong(ByteBuffer.wrap(d.getData(), 0, d.getLength()));
+                Integer p = e != null ? porNonce.get(e.getNonce()) : null;
+                if (p != null && p == d.getPort() && e.getEstado() == Salud.ESTADO_OK) estados.put(p, e);
+            }
+        } catch (IOException ignored) {
+            // Sin UDP (o host sin resolver): lo que haya llegado
+        }
+        return estados;
+    }
+}
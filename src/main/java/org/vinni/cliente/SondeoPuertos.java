@@ -0,0 +1,106 @@
+package org.vinni.cliente;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conexión a la primera instancia que responda: se lanzan connects no bloqueantes
+ * a todos los puertos a la vez y gana el primero que termine. Si en la misma
+ * vuelta terminan varios gana el que va antes en el orden (el último puerto
+ * exitoso va primero), y si gana otro se le da al preferido un margen corto.
+ * Los sockets perdedores se cierran al momento con RST para que el servidor no
+ * se quede con conexiones a medio abrir.
+ */
+public final class SondeoPuertos {
+    // Margen para el puerto preferido cuando otro conecta antes
+    private static final long GRACIA_MS = 50;
+
+    private SondeoPuertos() {}
+
+    /**
+     * @param orden puertos en orden de preferencia
+     * @return canal conectado y en modo bloqueante, o null si ninguno respondió a tiempo;
+     *         se usa con {@link org.vinni.protocolo.Canales}, no con los streams de su socket
+     */
+    public static SocketChannel conectar(String host, int[] orden, int timeoutMs) throws IOException {
+        InetAddress direccion = InetAddress.getByName(host);
+        SocketChannel[] canales = new SocketChannel[orden.length];
+        int ganador = -1;
+        int pendientes = 0;
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < orden.length && ganador < 0; i++) {
+                try {
+                    SocketChannel c = SocketChannel.open();
+                    canales[i] = c;
+                    c.configureBlocking(false);
+                    c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if (c.connect(new InetSocketAddress(direccion, orden[i]))) {
+                        ganador = i;
+                    } else {
+                        c.register(selector, SelectionKey.OP_CONNECT, i);
+                        pendientes++;
+                    }
+                } catch (IOException e) {
+                    cerrar(canales[i]);
+                    canales[i] = null;
+                }
+            }
+
+            long limite = System.nanoTime() + timeoutMs * 1_000_000L;
+            long limitePreferido = Long.MAX_VALUE;
+            while (ganador != 0 && pendientes > 0) {
+                long resta = (Math.min(limite, limitePreferido) - System.nanoTime()) / 1_000_000L;
+                if (resta <= 0) break;
+                selector.select(resta);
+
+                List<SelectionKey> listas = new ArrayList<>(selector.selectedKeys());
+                selector.selectedKeys().clear();
+                for (SelectionKey k : listas) {
+                    int i = (Integer) k.attachment();
+                    try {
+                        if (!canales[i].finishConnect()) continue;
+                        k.cancel();
+                        pendientes--;
+                        if (ganador < 0 || i < ganador) ganador = i;
+                    } catch (IOException e) {
+                        k.cancel();
+                        pendientes--;
+                        cerrar(canales[i]);
+                        canales[i] = null;
+                    }
+                }
+                // Alguien ya ganó: solo se espera (poco) si el preferido sigue pendiente
+                if (ganador > 0) {
+                    if (canales[0] == null) break;
+                    if (limitePreferido == Long.MAX_VALUE) limitePreferido = System.nanoTime() + GRACIA_MS * 1_000_000L;
+                }
+            }
+        } finally {
+            for (int i = 0; i < canales.length; i++) {
+                if (i != ganador) cerrar(canales[i]);
+            }
+        }
+
+        if (ganador < 0) return null;
+        // El selector ya se cerró y el canal quedó sin registrar: se puede volver a bloqueante
+        canales[ganador].configureBlocking(true);
+        return canales[ganador];
+    }
+
+    /** Cierre inmediato (RST) de un intento que no se va a usar. */
+    private static void cerrar(SocketChannel c) {
+        if (c == null) return;
+        try {
+            if (c.isConnected()) c.socket().setSoLinger(true, 0);
+        } catch (IOException ignored) {}
+        try { c.close(); } catch (IOException ignored) {}
+    }
+}
@@ -1,18 +1,28 @@
 package org.vinni.monitor;
 
+import org.vinni.protocolo.Salud;
+import org.vinni.servidor.ServidorChat;
+
 import javax.swing.*;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Monitor {
 
     private static final String PROP_FILE = "monitor.properties";
     private static final String LOG_FILE  = "monitor.log";
+    private static final long READY_POLL_MS = 25;
 
     // Config común
     private String serverHost;
@@ -20,17 +30,52 @@ public class Monitor {
     private int checkIntervalSeconds;
     private int restartDelaySeconds;
     private int connectTimeoutMs;
+    private int readyTimeoutSeconds; // plazo para que una instancia relanzada acepte conexiones
+    private int standbyCount;        // servidores de reserva ya arrancados, sin puerto (0 = ninguno)
+    private boolean healthProbe;    // ping UDP de salud (true) o connect TCP (false)
+    private boolean sharedPort;     // todas las instancias en basePort con SO_REUSEPORT
     private int maxRestartsPerHour; // 0 = sin límite
-    private String commandTemplate; // debe contener {PORT}
+    private int failuresBeforeRestart; // sondeos fallidos seguidos para darlo por colgado o caído
+    private int stopGraceSeconds;   // plazo entre SIGTERM y la terminación forzada
+    private String commandTemplate; // debe contener {PORT}; {WORKER} = número de instancia
     private String serverWorkingDir; // opcional: directorio de trabajo para arrancar el jar
     private Integer fixedInstances;  // si viene en propiedades, no se pregunta por GUI
     private PrintWriter logWriter;
 
-    // Gestión por puerto
+    // Gestión por puerto propio de cada instancia: basePort+i, o con sharedPort basePort+1+i
+    // (el del ping de salud del trabajador i; el chat está en basePort)
     private final Map<Integer, Deque<Long>> restartWindows = new ConcurrentHashMap<>();
-    private final List<Thread> watchers = new ArrayList<>();
+    // Procesos lanzados por el Monitor y puertos con un reinicio en curso (solo el planificador los toca)
+    private final Map<Integer, Process> processes = new HashMap<>();
+    private final Set<Integer> restarting = new HashSet<>();
+    private final Map<Integer, Long> launchedAt = new HashMap<>();
+    private final Map<Integer, Integer> failures = new HashMap<>();
+    // Reservas listas para tomar un puerto y las que todavía están arrancando (solo el planificador)
+    private final Deque<Spare> spares = new ArrayDeque<>();
+    private int sparesStarting;
+    private int spareSeq;
+
+    /** Servidor lanzado en reserva: JVM y clases cargadas, espera "BIND puerto" por su entrada estándar. */
+    private static final class Spare {
+        final int id;
+        final Process process;
+        final long launchedAt = System.nanoTime();
+        volatile String label;
+        boolean ready;
+        int port = -1;              // puerto tomado (-1 = todavía en reserva)
+
+        Spare(int id, Process process) {
+            this.id = id;
+            this.process = process;
+            this.label = "reserva:" + id;
+        }
+    }
     private volatile boolean running = true;
 
+    // Un solo hilo de sondeo (Selector) y uno de planificación para todas las instancias
+    private PortProber prober;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "monitor-scheduler"));
+
     public static void main(String[] args) {
         try {
             // Sugerencia visual en Windows para que el diálogo salga adelante
@@ -49,7 +94,9 @@ public class Monitor {
         log("=== MONITOR MULTI-INSTANCIA INICIADO ===");
         log("host=" + serverHost + " basePort=" + basePort + " checkInterval=" + checkIntervalSeconds + "s"
                 + " restartDelay=" + restartDelaySeconds + "s connectTimeout=" + connectTimeoutMs + "ms"
-                + " maxRestartsPerHour=" + maxRestartsPerHour);
+                + " maxRestartsPerHour=" + maxRestartsPerHour + " failuresBeforeRestart=" + failuresBeforeRestart
+                + " stopGrace=" + stopGraceSeconds + "s probe=" + (healthProbe ? "health" : "tcp") + " standby=" + standbyCount
+                + (sharedPort ? " sharedPort" : ""));
         log("commandTemplate=" + commandTemplate +
                 (serverWorkingDir.isEmpty() ? "" : (" | workingDir=" + serverWorkingDir)));
 
@@ -59,20 +106,23 @@ public class Monitor {
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             running = false;
+            scheduler.shutdownNow();
+            if (prober != null) prober.close();
             logSafe("Monitor detenido (shutdown hook).");
             try { if (logWriter != null) logWriter.close(); } catch (Exception ignored) {}
         }));
 
-        // Crear un watcher por puerto: basePort, basePort+1, ...
+        // Un chequeo programado por puerto (basePort, basePort+1, ...), con arranques
+        // repartidos en el primer intervalo para que no coincidan todos
+        prober = new PortProber(serverHost, connectTimeoutMs, healthProbe);
+        runOnScheduler(this::refillSpares);
         for (int i = 0; i < instances; i++) {
-            int port = basePort + i;
-            Thread t = new Thread(() -> watchPort(port), "watcher-" + port);
-            t.start();
-            watchers.add(t);
+            int port = sharedPort ? basePort + 1 + i : basePort + i;
+            log("Watcher iniciado para puerto " + port + (sharedPort ? " (trabajador " + i + " en " + basePort + ")" : ""));
+            scheduler.schedule(() -> check(port),
+                    ThreadLocalRandom.current().nextLong(checkIntervalSeconds * 1000L + 1), TimeUnit.MILLISECONDS);
         }
-
-        // Mantener vivo (threads terminan al cerrar)
-        for (Thread t : watchers) t.join();
+        // El hilo del planificador (no daemon) mantiene vivo el proceso
     }
 
     /** Diálogo GUI (JOptionPane + JSpinner). Retorna valor >= 1. */
@@ -107,54 +157,246 @@ public class Monitor {
 
     /* ---------------- watcher por puerto ---------------- */
 
-    private void watchPort(int port) {
-        log("Watcher iniciado para puerto " + port);
-        while (running) {
-            boolean up = isUp(serverHost, port, connectTimeoutMs);
-            if (up) {
-                log("OK [" + port + "] Servidor vivo.");
-                sleep(checkIntervalSeconds);
-                continue;
-            }
+    // Cada paso corre en el planificador y agenda el siguiente; nada bloquea al resto de puertos.
+    // Un proceso lanzado por el Monitor que termina se reinicia al momento (onExit); el chequeo
+    // periódico queda para lo que no avisa: instancias colgadas o lanzadas desde fuera.
+
+    private void check(int port) {
+        if (!running) return;
+        long sent = System.nanoTime();
+        prober.probe(port, r -> runOnScheduler(() -> onCheck(port, r, sent)));
+    }
+
+    private void onCheck(int port, PortProber.Result r, long sent) {
+        scheduleCheck(port, checkIntervalSeconds);
+        if (r.up) {
+            failures.remove(port);
+            log("OK [" + port + "] Servidor vivo" + describe(r) + ".");
+            return;
+        }
+        if (restarting.contains(port)) return;      // ya se está levantando
+        // Sondeo que salió antes del último relanzamiento: habla del proceso anterior
+        Long launched = launchedAt.get(port);
+        if (launched != null && launched - sent > 0) return;
+
+        // Un sondeo perdido (un datagrama, una pausa de GC) no alcanza para matar al servidor
+        int seguidos = failures.merge(port, 1, Integer::sum);
+        if (seguidos < failuresBeforeRestart) {
+            log("WARN [" + port + "] Sin respuesta (" + seguidos + " de " + failuresBeforeRestart + ").");
+            return;
+        }
+        failures.remove(port);
+
+        Process p = processes.get(port);
+        if (p != null && p.isAlive()) {
+            // Vivo pero sin responder: se termina y onExit lo relanza
+            log("WARN [" + port + "] Servidor colgado (el proceso sigue vivo); se termina.");
+            stopProcess(p);
+            return;
+        }
+        log("WARN [" + port + "] Servidor caído o no responde.");
+        beginRestart(port, restartDelaySeconds);
+    }
+
+    private void onExit(int port, Process p, long launchedAt) {
+        if (!running || processes.get(port) != p) return;
+        processes.remove(port);
+        log("WARN [" + port + "] El proceso del servidor terminó (código " + p.exitValue() + ").");
+        if (restarting.contains(port)) return;      // lo atiende waitReady
+
+        // Si murió enseguida, se espera restartDelay para no relanzar en bucle
+        boolean shortLived = System.nanoTime() - launchedAt < restartDelaySeconds * 1_000_000_000L;
+        beginRestart(port, shortLived ? restartDelaySeconds : 0);
+    }
 
-            log("WARN [" + port + "] Servidor caído o no responde.");
-            if (maxRestartsPerHour > 0 && !canRestart(port)) {
-                log("ERROR [" + port + "] Límite de reinicios por hora alcanzado. No se reinicia ahora.");
-                sleep(checkIntervalSeconds);
-                continue;
+    private void beginRestart(int port, int delaySeconds) {
+        if (maxRestartsPerHour > 0 && !canRestart(port)) {
+            log("ERROR [" + port + "] Límite de reinicios por hora alcanzado. No se reinicia ahora.");
+            return;
+        }
+        restarting.add(port);
+        if (delaySeconds > 0) log("Esperando " + delaySeconds + "s antes de reiniciar [" + port + "] ...");
+        scheduler.schedule(() -> restart(port), delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void restart(int port) {
+        if (!running) return;
+        Spare spare;
+        while ((spare = spares.pollFirst()) != null) {
+            if (promote(spare, port)) return;
+        }
+
+        String cmd = buildCommand(commandTemplate, chatPort(port), worker(port));
+        log("Intentando reiniciar [" + port + "]:");
+        log(">>> " + cmd);
+
+        Process p;
+        try {
+            p = serverProcess(cmd).start();
+            pipeProcessOutputToLog(p.getInputStream(), port);
+        } catch (Exception ex) {
+            log("ERROR [" + port + "] Lanzando comando: " + ex.getMessage());
+            restarting.remove(port);
+            return;
+        }
+        track(port, p);
+    }
+
+    /** Desde aquí el proceso es la instancia del puerto: su salida dispara onExit. */
+    private void track(int port, Process p) {
+        long launched = System.nanoTime();
+        processes.put(port, p);
+        launchedAt.put(port, launched);
+        p.onExit().thenAccept(x -> runOnScheduler(() -> onExit(port, x, launched)));
+        waitReady(port, p, launched);
+    }
+
+    /**
+     * Listo en cuanto el puerto acepta: connects seguidos hasta readyTimeoutSeconds.
+     * Con sharedPort el chat ya lo atienden los demás trabajadores, así que se espera
+     * al ping de salud del propio trabajador.
+     */
+    private void waitReady(int port, Process p, long launchedAt) {
+        Consumer<PortProber.Result> ready = r -> runOnScheduler(() -> {
+            long ms = (System.nanoTime() - launchedAt) / 1_000_000;
+            if (r.up) {
+                restarting.remove(port);
+                noteRestart(port);
+                log("SUCCESS [" + port + "] Servidor reiniciado correctamente (acepta conexiones a los " + ms + " ms).");
+            } else if (!p.isAlive()) {
+                restarting.remove(port);
+                log("ERROR [" + port + "] El servidor terminó antes de aceptar conexiones.");
+                beginRestart(port, restartDelaySeconds);
+            } else if (ms >= readyTimeoutSeconds * 1000L) {
+                // Lo sigue el chequeo periódico (y lo termina si queda colgado)
+                restarting.remove(port);
+                log("ERROR [" + port + "] Tras reiniciar, el servidor sigue sin aceptar conexiones.");
+            } else {
+                scheduler.schedule(() -> waitReady(port, p, launchedAt), READY_POLL_MS, TimeUnit.MILLISECONDS);
             }
+        });
+        if (sharedPort) prober.probe(port, ready);
+        else prober.probeTcp(port, ready);
+    }
 
-            log("Esperando " + restartDelaySeconds + "s antes de reiniciar [" + port + "] ...");
-            sleep(restartDelaySeconds);
+    /* ---------------- reservas ---------------- */
 
-            String cmd = buildCommandForPort(commandTemplate, port);
-            log("Intentando reiniciar [" + port + "]:");
-            log(">>> " + cmd);
+    /**
+     * La reserva toma el puerto: solo le falta el bind. Después se repone la reserva.
+     *
+     * @return false si la reserva ya no sirve (se descarta y se prueba otra)
+     */
+    private boolean promote(Spare spare, int port) {
+        if (!spare.process.isAlive()) return false;
+        try {
+            Writer control = new OutputStreamWriter(spare.process.getOutputStream(), StandardCharsets.UTF_8);
+            control.write(ServidorChat.ORDEN_BIND + chatPort(port) + (sharedPort ? " " + worker(port) : "") + "\n");
+            control.flush();
+        } catch (IOException e) {
+            stopProcess(spare.process);
+            return false;
+        }
+        spare.port = port;
+        spare.label = "srv:" + port;
+        log("Reserva #" + spare.id + " (pid " + spare.process.pid() + ") toma el puerto [" + port + "].");
+        track(port, spare.process);
+        refillSpares();
+        return true;
+    }
 
-            try {
-                ProcessBuilder pb = pbFor(cmd);
-                if (!serverWorkingDir.isEmpty()) {
-                    pb.directory(new File(serverWorkingDir));
-                }
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                pipeProcessOutputToLog(p.getInputStream(), port);
-
-                // ventana de gracia y verificación
-                sleep(5);
-                if (isUp(serverHost, port, connectTimeoutMs)) {
-                    noteRestart(port);
-                    log("SUCCESS [" + port + "] Servidor reiniciado correctamente.");
-                } else {
-                    log("ERROR [" + port + "] Tras reiniciar, el servidor sigue caído.");
+    private void refillSpares() {
+        while (running && spares.size() + sparesStarting < standbyCount) launchSpare();
+    }
+
+    private void launchSpare() {
+        int id = ++spareSeq;
+        try {
+            // {PORT} y {WORKER} no importan: la reserva no abre ningún puerto hasta recibir BIND
+            ProcessBuilder pb = serverProcess(buildCommand(commandTemplate, 0, 0));
+            pb.environment().put("CHAT_STANDBY", "1");
+            Spare spare = new Spare(id, pb.start());
+            sparesStarting++;
+            pipeSpareOutput(spare);
+            spare.process.onExit().thenAccept(x -> runOnScheduler(() -> onSpareExit(spare)));
+        } catch (Exception ex) {
+            log("ERROR lanzando reserva #" + id + ": " + ex.getMessage());
+        }
+    }
+
+    private void onSpareReady(Spare spare) {
+        if (spare.ready || !spare.process.isAlive()) return;
+        spare.ready = true;
+        sparesStarting--;
+        spares.addLast(spare);
+        log("Reserva #" + spare.id + " lista en " + (System.nanoTime() - spare.launchedAt) / 1_000_000 + " ms.");
+    }
+
+    private void onSpareExit(Spare spare) {
+        if (spare.port >= 0) return;                // ya es una instancia: la sigue onExit
+        if (spare.ready) spares.remove(spare);
+        else sparesStarting--;
+        log("WARN Reserva #" + spare.id + " terminó (código " + spare.process.exitValue() + ").");
+        if (!running) return;
+        // Si murió sin llegar a estar lista, no se relanza en bucle
+        if (spare.ready) refillSpares();
+        else scheduler.schedule(this::refillSpares, restartDelaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void pipeSpareOutput(Spare spare) {
+        new Thread(() -> {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(spare.process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.equals(ServidorChat.EN_ESPERA)) runOnScheduler(() -> onSpareReady(spare));
+                    else log("[" + spare.label + "] " + line);
                 }
-            } catch (Exception ex) {
-                log("ERROR [" + port + "] Lanzando comando: " + ex.getMessage());
-            }
+            } catch (IOException ignored) {}
+        }, "srv-out-reserva-" + spare.id).start();
+    }
+
+    /**
+     * Termina el proceso y sus hijos (el comando pasa por un shell); a la fuerza si no
+     * sale en stopGraceSeconds, que cubre el drenaje del servidor al recibir SIGTERM.
+     */
+    private void stopProcess(Process p) {
+        p.descendants().forEach(ProcessHandle::destroy);
+        p.destroy();
+        scheduler.schedule(() -> {
+            p.descendants().forEach(ProcessHandle::destroyForcibly);
+            if (p.isAlive()) p.destroyForcibly();
+        }, stopGraceSeconds, TimeUnit.SECONDS);
+    }
+
+    /** " (3 ms, 12 clientes, carga 0.45)"; en modo tcp solo la latencia del connect. */
+    private static String describe(PortProber.Result r) {
+        StringBuilder sb = new StringBuilder(" (").append(r.latencyNanos / 1_000_000).append(" ms");
+        if (r.estado != null) {
+            sb.append(", ").append(r.estado.getClientes()).append(" clientes");
+            if (r.estado.getCarga() >= 0) sb.append(String.format(", carga %.2f", r.estado.getCarga() / 100.0));
+            sb.append(", heap ").append(r.estado.getHeapUsado() / (1024 * 1024)).append(" MB");
+            if (r.estado.getEstado() == Salud.ESTADO_DRENANDO) sb.append(", drenando");
+        }
+        return sb.append(')').toString();
+    }
+
+    /** Próximo chequeo con ±10% de variación, para que los puertos no se sincronicen. */
+    private void scheduleCheck(int port, int seconds) {
+        long ms = seconds * 1000L;
+        long jitter = ms / 10;
+        long delay = ms + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+        try {
+            scheduler.schedule(() -> check(port), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // apagándose
+        }
+    }
 
-            sleep(checkIntervalSeconds);
+    private void runOnScheduler(Runnable r) {
+        try {
+            scheduler.execute(r);
+        } catch (RejectedExecutionException ignored) {
+            // apagándose
         }
-        log("Watcher finalizado para puerto " + port);
     }
 
     /* ---------------- utilidades ---------------- */
@@ -179,7 +421,14 @@ public class Monitor {
         checkIntervalSeconds = Integer.parseInt(p.getProperty("monitor.checkIntervalSeconds", "5").trim());
         restartDelaySeconds = Integer.parseInt(p.getProperty("monitor.restartDelaySeconds", "10").trim());
         connectTimeoutMs = Integer.parseInt(p.getProperty("monitor.connectTimeoutMs", "1500").trim());
+        readyTimeoutSeconds = Integer.parseInt(p.getProperty("monitor.readyTimeoutSeconds", "30").trim());
+        standbyCount = Math.max(0, Integer.parseInt(p.getProperty("monitor.standby.count", "0").trim()));
+        // "health": ping UDP que el servidor contesta sin crear handler; "tcp": connect al puerto del chat
+        healthProbe = !"tcp".equalsIgnoreCase(p.getProperty("monitor.probe", "health").trim());
+        // Varios procesos en basePort (SO_REUSEPORT): el connect TCP no distingue cuál responde
+        sharedPort = Boolean.parseBoolean(p.getProperty("monitor.sharedPort", "false").trim());
         maxRestartsPerHour = Integer.parseInt(p.getProperty("monitor.maxRestartsPerHour", "6").trim());
+        failuresBeforeRestart = Math.max(1, Integer.parseInt(p.getProperty("monitor.failuresBeforeRestart", "3").trim()));
 
         // Si quieres fijar instancias sin diálogo, pon monitor.instances en el .properties
         String inst = p.getProperty("monitor.instances", "").trim();
@@ -191,22 +440,52 @@ public class Monitor {
         if (!commandTemplate.contains("{PORT}")) {
             throw new IllegalArgumentException("server.commandTemplate debe incluir el placeholder {PORT}");
         }
+        if (sharedPort && !commandTemplate.contains("{WORKER}")) {
+            throw new IllegalArgumentException("Con monitor.sharedPort, server.commandTemplate debe incluir "
+                    + "-Dserver.reusePort=true -Dserver.worker={WORKER}");
+        }
+        if (sharedPort && !healthProbe) {
+            healthProbe = true;
+            log("WARN monitor.probe=tcp no sirve con monitor.sharedPort; se usa health.");
+        }
+
+        // Al recibir SIGTERM el servidor drena hasta server.drain.timeoutSeconds (30): no se lo
+        // mata antes. Se toma del comando si lo fija; monitor.stopGraceSeconds puede alargarlo.
+        int drenaje = drainTimeoutSeconds(commandTemplate);
+        int grace = Integer.parseInt(p.getProperty("monitor.stopGraceSeconds", "0").trim());
+        stopGraceSeconds = Math.max(grace, drenaje + 5);
 
         // Working dir opcional (útil si el jar no está en el cwd)
         serverWorkingDir = p.getProperty("server.workingDir", "").trim();
     }
 
-    private boolean isUp(String host, int port, int timeoutMs) {
-        try (Socket s = new Socket()) {
-            s.connect(new InetSocketAddress(host, port), timeoutMs);
-            return true;
-        } catch (IOException e) {
-            return false;
-        }
+    /** server.drain.timeoutSeconds del comando, o el valor por omisión del servidor. */
+    private static int drainTimeoutSeconds(String command) {
+        Matcher m = Pattern.compile("-Dserver\\.drain\\.timeoutSeconds=(\\d+)").matcher(command);
+        return m.find() ? Integer.parseInt(m.group(1)) : 30;
     }
 
-    private String buildCommandForPort(String template, int port) {
-        return template.replace("{PORT}", String.valueOf(port));
+    private String buildCommand(String template, int port, int worker) {
+        return template.replace("{PORT}", String.valueOf(port)).replace("{WORKER}", String.valueOf(worker));
+    }
+
+    /** Puerto del chat de la instancia. */
+    private int chatPort(int port) {
+        return sharedPort ? basePort : port;
+    }
+
+    /** Número de instancia (el {WORKER} del comando). */
+    private int worker(int port) {
+        return sharedPort ? port - basePort - 1 : port - basePort;
+    }
+
+    private ProcessBuilder serverProcess(String cmd) {
+        ProcessBuilder pb = pbFor(cmd);
+        if (!serverWorkingDir.isEmpty()) {
+            pb.directory(new File(serverWorkingDir));
+        }
+        pb.redirectErrorStream(true);
+        return pb;
     }
 
     private ProcessBuilder pbFor(String command) {
@@ -242,10 +521,6 @@ public class Monitor {
         dq.addLast(System.currentTimeMillis());
     }
 
-    private void sleep(int s) {
-        try { Thread.sleep(s * 1000L); } catch (InterruptedException ignored) {}
-    }
-
     private void log(String msg) {
         String ts = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
         logWriter.println(ts + " | " + msg);
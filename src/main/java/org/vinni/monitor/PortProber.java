@@ -0,0 +1,230 @@
+package org.vinni.monitor;
+
+import org.vinni.protocolo.Salud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Sondeo de puertos con un solo hilo y un solo Selector. Un puerto lento no
+ * retrasa a los demás y no hace falta un hilo por instancia.
+ *
+ * Dos modos:
+ * - health (por defecto): ping UDP de {@link Salud}; el servidor contesta sin
+ *   crear conexión y devuelve clientes y carga. Un solo DatagramChannel para
+ *   todos los puertos; si no hay respuesta a mitad del plazo se reenvía una vez.
+ * - tcp: connect no bloqueante al puerto del chat (solo prueba que el accept vive).
+ *
+ * Los resultados se entregan en el hilo del sondeo: quien los recibe no debe bloquear.
+ */
+class PortProber {
+    private final String host;
+    private final int timeoutMs;
+    private final boolean health;
+    private final Selector selector;
+    private final DatagramChannel udp;                          // solo en modo health
+    private final ByteBuffer entrada = ByteBuffer.allocate(64);
+    private final Queue<Probe> nuevos = new ConcurrentLinkedQueue<>();
+    private final List<Probe> enCurso = new ArrayList<>();     // solo lo toca el hilo del sondeo
+    private final Map<Long, Probe> porNonce = new HashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Resultado de un sondeo; {@code estado} solo viene en modo health.
+     */
+    static final class Result {
+        final boolean up;
+        final long latencyNanos;
+        final Salud.Estado estado;
+
+        Result(boolean up, long latencyNanos, Salud.Estado estado) {
+            this.up = up;
+            this.latencyNanos = latencyNanos;
+            this.estado = estado;
+        }
+    }
+
+    private static final class Probe {
+        final int port;
+        final boolean health;
+        final Consumer<Result> result;
+        SocketChannel canal;
+        SocketAddress destino;
+        long nonce;
+        long inicio;
+        long plazo;
+        boolean reenviado;
+
+        Probe(int port, boolean health, Consumer<Result> result) {
+            this.port = port;
+            this.health = health;
+            this.result = result;
+        }
+    }
+
+    PortProber(String host, int timeoutMs, boolean health) throws IOException {
+        this.host = host;
+        this.timeoutMs = timeoutMs;
+        this.health = health;
+        this.selector = Selector.open();
+        if (health) {
+            udp = DatagramChannel.open();
+            udp.configureBlocking(false);
+            udp.bind(null);
+            udp.register(selector, SelectionKey.OP_READ);
+        } else {
+            udp = null;
+        }
+        Thread t = new Thread(this::loop, "monitor-prober");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Pide un sondeo del puerto; {@code result} se llama una sola vez. */
+    void probe(int port, Consumer<Result> result) {
+        nuevos.add(new Probe(port, health, result));
+        selector.wakeup();
+    }
+
+    /**
+     * Connect TCP aunque el modo sea health: un puerto cerrado se rechaza al
+     * momento, sirve para ver cuándo una instancia recién lanzada ya acepta.
+     */
+    void probeTcp(int port, Consumer<Result> result) {
+        nuevos.add(new Probe(port, false, result));
+        selector.wakeup();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(nextTimeout());
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    if (k.channel() == udp) {
+                        readPongs();
+                        continue;
+                    }
+                    Probe p = (Probe) k.attachment();
+                    try {
+                        if (p.canal.finishConnect()) finish(p, true, null);
+                    } catch (IOException e) {
+                        finish(p, false, null);
+                    }
+                }
+
+                Probe p;
+                while ((p = nuevos.poll()) != null) open(p);
+
+                long now = System.nanoTime();
+                for (Probe v : new ArrayList<>(enCurso)) {
+                    if (v.plazo - now <= 0) {
+                        finish(v, false, null);
+                    } else if (v.health && !v.reenviado && now - v.inicio >= timeoutMs * 500_000L) {
+                        // Datagrama perdido (o el primero llegó antes de que el servidor escuchara)
+                        v.reenviado = true;
+                        try { sendPing(v); } catch (IOException | RuntimeException ignored) {}
+                    }
+                }
+            } catch (IOException e) {
+                // El selector no debería fallar; se reintenta en la siguiente vuelta
+            }
+        }
+        for (Probe p : new ArrayList<>(enCurso)) finish(p, false, null);
+        try { if (udp != null) udp.close(); } catch (IOException ignored) {}
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    /** Milisegundos hasta el próximo plazo o reenvío (0 = nada en curso, esperar sin límite). */
+    private long nextTimeout() {
+        if (enCurso.isEmpty()) return 0;
+        long now = System.nanoTime();
+        long min = Long.MAX_VALUE;
+        for (Probe p : enCurso) {
+            long hasta = p.health && !p.reenviado ? p.inicio + timeoutMs * 500_000L : p.plazo;
+            min = Math.min(min, hasta - now);
+        }
+        return Math.max(1, (min + 999_999) / 1_000_000);
+    }
+
+    private void open(Probe p) {
+        p.inicio = System.nanoTime();
+        p.plazo = p.inicio + timeoutMs * 1_000_000L;
+        try {
+            if (p.health) {
+                p.destino = new InetSocketAddress(host, p.port);
+                do {
+                    p.nonce = ThreadLocalRandom.current().nextLong();
+                } while (porNonce.containsKey(p.nonce));
+                porNonce.put(p.nonce, p);
+                enCurso.add(p);
+                sendPing(p);
+                return;
+            }
+            p.canal = SocketChannel.open();
+            p.canal.configureBlocking(false);
+            if (p.canal.connect(new InetSocketAddress(host, p.port))) {
+                finish(p, true, null);
+                return;
+            }
+            p.canal.register(selector, SelectionKey.OP_CONNECT, p);
+            enCurso.add(p);
+        } catch (IOException | RuntimeException e) {
+            // Rechazo inmediato o host sin resolver
+            finish(p, false, null);
+        }
+    }
+
+    private void sendPing(Probe p) throws IOException {
+        udp.send(Salud.ping(p.nonce), p.destino);
+    }
+
+    private void readPongs() throws IOException {
+        while (true) {
+            entrada.clear();
+            SocketAddress origen = udp.receive(entrada);
+            if (origen == null) return;
+            entrada.flip();
+            Salud.Estado e = Salud.leerPong(entrada);
+            if (e == null) continue;
+            Probe p = porNonce.get(e.getNonce());
+            if (p != null && origen.equals(p.destino)) finish(p, true, e);
+        }
+    }
+
+    private void finish(Probe p, boolean up, Salud.Estado estado) {
+        enCurso.remove(p);
+        if (p.health) porNonce.remove(p.nonce);
+        if (p.canal != null) {
+            // Cierre con RST: el sondeo no deja conexiones en TIME_WAIT por cada chequeo
+            try {
+                if (p.canal.isConnected()) p.canal.socket().setSoLinger(true, 0);
+            } catch (IOException ignored) {}
+            try { p.canal.close(); } catch (IOException ignored) {}
+        }
+        p.result.accept(new Result(up, System.nanoTime() - p.inicio, estado));
+    }
+}
@@ -0,0 +1,59 @@
+package org.vinni.protocolo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams directos sobre un SocketChannel bloqueante, para leer en un hilo y
+ * escribir en otro. Los del socket adaptado ({@code canal.socket()}) no sirven:
+ * hasta JDK 12 leer y escribir toman el mismo blockingLock(), y el que escribe
+ * se queda esperando a que el que lee reciba algo.
+ */
+public final class Canales {
+
+    private Canales() {}
+
+    public static InputStream entrada(SocketChannel canal) {
+        return new InputStream() {
+            private final byte[] uno = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(uno, 0, 1) < 0 ? -1 : uno[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : canal.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                canal.close();
+            }
+        };
+    }
+
+    public static OutputStream salida(SocketChannel canal) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) canal.write(buf);
+            }
+
+            @Override
+            public void close() throws IOException {
+                canal.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,288 @@
+package org.vinni.protocolo;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binario: cada trama es un byte de tipo, la longitud del cuerpo como
+ * varint y el cuerpo. Los clientes se identifican por id numérico (el del
+ * servidor) en lugar de por nombre; los textos van en UTF-8 sin límite de 64 KB.
+ *
+ * <pre>
+ * MSG   cliente→servidor: destino(varint, 0 = Todos) texto
+ *       servidor→cliente: remitente(varint, 0 = Servidor) texto
+ * FILE  destino|remitente(varint) largoNombre(varint) nombre tamaño(varint) flujo(varint);
+ *       en la versión 1 los bytes del archivo siguen fuera de la trama (el flujo
+ *       se ignora); en la 2 llegan en tramas DATOS de ese flujo
+ * DATOS flujo(varint) bytes (versión 2; a lo sumo {@link #BLOQUE} bytes por trama)
+ * CORTE flujo(varint): el archivo no se completa y se descarta (versión 2)
+ * LISTA servidor→cliente: versión(varint) cantidad(varint) y por cliente:
+ *       id(varint) largoNombre(varint) nombre
+ *       cliente→servidor: cuerpo vacío, pide la lista completa
+ * DELTA versiónBase(varint) versión(varint) cantidad(varint) y por cambio:
+ *       ALTA id(varint) largoNombre(varint) nombre | BAJA id(varint)
+ * REDIRECT servidor→cliente: puerto(varint) largoHost(varint) host (vacío = el
+ *       mismo host); la instancia se apaga y el cliente debe pasarse ahí
+ * </pre>
+ *
+ * Un DELTA solo se aplica si la lista local está en versiónBase; si no, el
+ * cliente pide la lista completa.
+ *
+ * Versión 2 (multiplexada): el contenido de cada FILE va partido en tramas DATOS
+ * con el flujo que eligió quien lo envía, así que entre bloque y bloque pueden
+ * pasar mensajes, listas y bloques de otros archivos. Cada lado da prioridad a lo
+ * que no es contenido de archivos. Los ids de flujo solo valen en su conexión y
+ * en su sentido.
+ *
+ * Negociación (compatible con clientes de texto): tras INGRESE_NOMBRE el servidor
+ * ofrece {@link #OFERTA}; el cliente que la entiende responde con la misma trama
+ * (o con {@link #OFERTA_V1} si no multiplexa) y desde ahí escribe en binario. El
+ * servidor responde {@link #CONFIRMACION} (última trama de texto) y desde ahí
+ * también escribe en binario.
+ */
+public final class CodecBinario {
+    public static final int VERSION = 2;
+    public static final String OFERTA = "PROTO:" + VERSION;
+    /** Respuesta de quien habla binario pero manda los archivos enteros (versión 1). */
+    public static final String OFERTA_V1 = "PROTO:1";
+    public static final String CONFIRMACION = "PROTO:OK";
+
+    public static final byte MSG = 1;
+    public static final byte FILE = 2;
+    public static final byte LISTA = 3;
+    public static final byte DELTA = 4;
+    public static final byte REDIRECT = 5;
+    public static final byte DATOS = 6;
+    public static final byte CORTE = 7;
+
+    /** Cambios dentro de un DELTA. */
+    public static final byte ALTA = 1;
+    public static final byte BAJA = 2;
+
+    /** Destino "Todos" en MSG/FILE del cliente. */
+    public static final long ID_TODOS = 0;
+    /** Remitente de lo que envía el propio servidor. */
+    public static final long ID_SERVIDOR = 0;
+
+    /** Cuerpo máximo aceptado, para acotar la memoria por conexión. */
+    public static final int MAX_CUERPO = 4 * 1024 * 1024;
+
+    /** Contenido por trama DATOS: acota lo que espera un mensaje detrás de un archivo. */
+    public static final int BLOQUE = 64 * 1024;
+
+    private CodecBinario() {}
+
+    /** Versión que eligió el cliente con su respuesta a la oferta; 0 si no es una respuesta. */
+    public static int versionAceptada(String respuesta) {
+        if (respuesta.equals(OFERTA)) return VERSION;
+        if (respuesta.equals(OFERTA_V1)) return 1;
+        return 0;
+    }
+
+    /* -------------------- Escritura -------------------- */
+
+    public static ByteBuffer mensaje(long id, String texto) {
+        byte[] t = texto.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = trama(MSG, tamVarint(id) + t.length);
+        putVarint(b, id);
+        b.put(t);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Solo la cabecera: los {@code tam} bytes del archivo van a continuación
+     * (versión 1) o en tramas DATOS de {@code flujo} (versión 2).
+     */
+    public static ByteBuffer archivo(long id, String nombreArchivo, long tam, long flujo) {
+        byte[] n = nombreArchivo.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = trama(FILE, tamVarint(id) + tamVarint(n.length) + n.length + tamVarint(tam) + tamVarint(flujo));
+        putVarint(b, id);
+        putVarint(b, n.length);
+        b.put(n);
+        putVarint(b, tam);
+        putVarint(b, flujo);
+        b.flip();
+        return b;
+    }
+
+    /** Tipo, longitud y flujo de una trama DATOS; los {@code largo} bytes van a continuación. */
+    public static ByteBuffer datos(long flujo, int largo) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 2 * 10);
+        b.put(DATOS);
+        putVarint(b, tamVarint(flujo) + largo);
+        putVarint(b, flujo);
+        b.flip();
+        return b;
+    }
+
+    public static ByteBuffer corte(long flujo) {
+        ByteBuffer b = trama(CORTE, tamVarint(flujo));
+        putVarint(b, flujo);
+        b.flip();
+        return b;
+    }
+
+    public static ByteBuffer lista(long version, long[] ids, String[] nombres) {
+        byte[][] n = new byte[nombres.length][];
+        int cuerpo = tamVarint(version) + tamVarint(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            n[i] = nombres[i].getBytes(StandardCharsets.UTF_8);
+            cuerpo += tamVarint(ids[i]) + tamVarint(n[i].length) + n[i].length;
+        }
+        ByteBuffer b = trama(LISTA, cuerpo);
+        putVarint(b, version);
+        putVarint(b, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            putVarint(b, ids[i]);
+            putVarint(b, n[i].length);
+            b.put(n[i]);
+        }
+        b.flip();
+        return b;
+    }
+
+    /** Pedido de la lista completa (cliente→servidor). */
+    public static ByteBuffer pedirLista() {
+        ByteBuffer b = trama(LISTA, 0);
+        b.flip();
+        return b;
+    }
+
+    /** Pasarse a {@code host}:{@code puerto} (host vacío = el mismo al que está conectado). */
+    public static ByteBuffer redireccion(String host, int puerto) {
+        byte[] h = host.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = trama(REDIRECT, tamVarint(puerto) + tamVarint(h.length) + h.length);
+        putVarint(b, puerto);
+        putVarint(b, h.length);
+        b.put(h);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Altas y bajas desde {@code base} hasta {@code version}; nombre null = baja.
+     */
+    public static ByteBuffer delta(long base, long version, long[] ids, String[] nombres) {
+        byte[][] n = new byte[nombres.length][];
+        int cuerpo = tamVarint(base) + tamVarint(version) + tamVarint(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            cuerpo += 1 + tamVarint(ids[i]);
+            if (nombres[i] != null) {
+                n[i] = nombres[i].getBytes(StandardCharsets.UTF_8);
+                cuerpo += tamVarint(n[i].length) + n[i].length;
+            }
+        }
+        ByteBuffer b = trama(DELTA, cuerpo);
+        putVarint(b, base);
+        putVarint(b, version);
+        putVarint(b, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            b.put(n[i] != null ? ALTA : BAJA);
+            putVarint(b, ids[i]);
+            if (n[i] != null) {
+                putVarint(b, n[i].length);
+                b.put(n[i]);
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer trama(byte tipo, int cuerpo) {
+        ByteBuffer b = ByteBuffer.allocate(1 + tamVarint(cuerpo) + cuerpo);
+        b.put(tipo);
+        putVarint(b, cuerpo);
+        return b;
+    }
+
+    /* -------------------- Lectura -------------------- */
+
+    /**
+     * Largo total (tipo + longitud + cuerpo) de la trama que empieza en la posición
+     * actual, sin consumir nada; -1 si todavía no llegó la cabecera completa.
+     */
+    public static int largoTrama(ByteBuffer b) throws ProtocolException {
+        int p = b.position() + 1;
+        long cuerpo = 0;
+        for (int desplazamiento = 0; ; desplazamiento += 7) {
+            if (p >= b.limit()) return -1;
+            byte x = b.get(p++);
+            cuerpo |= (long) (x & 0x7F) << desplazamiento;
+            if (x >= 0) break;
+            if (desplazamiento > 28) throw new ProtocolException("Longitud inválida");
+        }
+        if (cuerpo > MAX_CUERPO) throw new ProtocolException("Trama demasiado grande: " + cuerpo + " bytes");
+        return (p - b.position()) + (int) cuerpo;
+    }
+
+    /**
+     * Consume tipo y longitud; deja el límite del buffer al final del cuerpo y
+     * devuelve el límite original para restaurarlo después.
+     */
+    public static int abrirCuerpo(ByteBuffer b) throws ProtocolException {
+        int fin = b.position() + largoTrama(b);
+        b.get();
+        getVarint(b);
+        int limite = b.limit();
+        b.limit(fin);
+        return limite;
+    }
+
+    public static long getVarint(ByteBuffer b) throws ProtocolException {
+        long v = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            if (!b.hasRemaining()) throw new ProtocolException("Varint truncado");
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << desplazamiento;
+            if (x >= 0) return v;
+        }
+        throw new ProtocolException("Varint inválido");
+    }
+
+    public static long leerVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            byte x = in.readByte();
+            v |= (long) (x & 0x7F) << desplazamiento;
+            if (x >= 0) return v;
+        }
+        throw new ProtocolException("Varint inválido");
+    }
+
+    /** Texto UTF-8 de {@code len} bytes desde la posición actual (buffer con array). */
+    public static String getTexto(ByteBuffer b, int len) {
+        String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+        b.position(b.position() + len);
+        return s;
+    }
+
+    /** Campo de texto precedido por su largo en varint. */
+    public static String getCampo(ByteBuffer b) throws ProtocolException {
+        long len = getVarint(b);
+        if (len > b.remaining()) throw new ProtocolException("Campo truncado");
+        return getTexto(b, (int) len);
+    }
+
+    /* -------------------- Varints -------------------- */
+
+    static int tamVarint(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static void putVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+}
@@ -0,0 +1,41 @@
+package org.vinni.protocolo;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lee tramas de {@link CodecBinario} desde un stream bloqueante, reutilizando
+ * el mismo buffer para el cuerpo de todas las tramas.
+ */
+public final class LectorBinario {
+    private final DataInputStream in;
+    private byte[] datos = new byte[512];
+    private ByteBuffer cuerpo = ByteBuffer.wrap(datos);
+
+    public LectorBinario(DataInputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Lee la siguiente trama completa y devuelve su tipo; el cuerpo queda en {@link #cuerpo()}.
+     * Tras un FILE, los bytes del archivo siguen en el stream.
+     */
+    public byte leer() throws IOException {
+        byte tipo = in.readByte();
+        long len = CodecBinario.leerVarint(in);
+        if (len > CodecBinario.MAX_CUERPO) throw new ProtocolException("Trama demasiado grande: " + len + " bytes");
+        if (len > datos.length) {
+            datos = new byte[Math.max((int) len, datos.length * 2)];
+            cuerpo = ByteBuffer.wrap(datos);
+        }
+        in.readFully(datos, 0, (int) len);
+        cuerpo.clear().limit((int) len);
+        return tipo;
+    }
+
+    public ByteBuffer cuerpo() {
+        return cuerpo;
+    }
+}
@@ -0,0 +1,86 @@
+package org.vinni.protocolo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ping de salud por UDP, en el mismo número de puerto que el chat (TCP). El
+ * servidor lo contesta desde un solo hilo, sin crear conexión ni handler, así
+ * que sondear cuesta un datagrama de ida y uno de vuelta.
+ *
+ * <pre>
+ * PING  magia "PNG1"(int) nonce(long)
+ * PONG  magia "PON1"(int) nonce(long) estado(byte) clientes(int)
+ *       carga(int, centésimas del load average; -1 si no hay) heapUsado(long) uptimeMs(long)
+ * </pre>
+ *
+ * El nonce lo elige quien sondea y vuelve tal cual, para emparejar respuestas y
+ * medir la latencia.
+ */
+public final class Salud {
+    public static final int PING = 0x504E4731;      // "PNG1"
+    public static final int PONG = 0x504F4E31;      // "PON1"
+
+    public static final int LARGO_PING = 12;
+    public static final int LARGO_PONG = 37;
+
+    /** Estados del servidor en un PONG. */
+    public static final byte ESTADO_OK = 1;
+    /** Se está apagando: ya no acepta clientes y redirige a los que tiene. */
+    public static final byte ESTADO_DRENANDO = 2;
+
+    private Salud() {}
+
+    public static ByteBuffer ping(long nonce) {
+        ByteBuffer b = ByteBuffer.allocate(LARGO_PING);
+        b.putInt(PING).putLong(nonce).flip();
+        return b;
+    }
+
+    /** Nonce de un PING válido, o null si el datagrama no lo es. */
+    public static Long leerPing(ByteBuffer b) {
+        if (b.remaining() < LARGO_PING || b.getInt() != PING) return null;
+        return b.getLong();
+    }
+
+    public static void pong(ByteBuffer b, long nonce, Estado e) {
+        b.clear();
+        b.putInt(PONG).putLong(nonce).put(e.estado).putInt(e.clientes).putInt(e.carga)
+                .putLong(e.heapUsado).putLong(e.uptimeMs).flip();
+    }
+
+    /** El PONG leído, o null si el datagrama no lo es. */
+    public static Estado leerPong(ByteBuffer b) {
+        if (b.remaining() < LARGO_PONG || b.getInt() != PONG) return null;
+        long nonce = b.getLong();
+        return new Estado(nonce, b.get(), b.getInt(), b.getInt(), b.getLong(), b.getLong());
+    }
+
+    /**
+     * Contenido de un PONG.
+     */
+    public static final class Estado {
+        private final long nonce;
+        private final byte estado;
+        private final int clientes;
+        private final int carga;
+        private final long heapUsado;
+        private final long uptimeMs;
+
+        public Estado(long nonce, byte estado, int clientes, int carga, long heapUsado, long uptimeMs) {
+            this.nonce = nonce;
+            this.estado = estado;
+            this.clientes = clientes;
+            this.carga = carga;
+            this.heapUsado = heapUsado;
+            this.uptimeMs = uptimeMs;
+        }
+
+        public long getNonce() { return nonce; }
+        public byte getEstado() { return estado; }
+        public int getClientes() { return clientes; }
+        /** Load average del sistema en centésimas, -1 si no está disponible. */
+        public int getCarga() { return carga; }
+        public long getHeapUsado() { return heapUsado; }
+        public long getUptimeMs() { return uptimeMs; }
+    }
+}
@@ -0,0 +1,84 @@
+package org.vinni.protocolo;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tramas compatibles con DataOutputStream.writeUTF / DataInputStream.readUTF:
+ * 2 bytes de longitud (big-endian) seguidos del texto en UTF-8 modificado.
+ * Permite hablar el protocolo de texto sin pasar por streams bloqueantes.
+ */
+public final class TramaUtf {
+    public static final int MAX_BYTES = 65535;
+
+    private TramaUtf() {}
+
+    /** Longitud en bytes del texto codificado en UTF-8 modificado. */
+    public static int longitud(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len += 1;
+            else if (c > 0x07FF) len += 3;
+            else len += 2;
+        }
+        return len;
+    }
+
+    /** Codifica la trama completa (cabecera + texto) en un buffer listo para escribir. */
+    public static ByteBuffer codificar(String s) throws UTFDataFormatException {
+        int len = longitud(s);
+        if (len > MAX_BYTES) throw new UTFDataFormatException("Trama demasiado larga: " + len + " bytes");
+
+        ByteBuffer b = ByteBuffer.allocate(2 + len);
+        b.putShort((short) len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                b.put((byte) c);
+            } else if (c > 0x07FF) {
+                b.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                b.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                b.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                b.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                b.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /** Decodifica {@code len} bytes de UTF-8 modificado desde la posición actual del buffer. */
+    public static String decodificar(ByteBuffer b, int len) throws UTFDataFormatException {
+        char[] chars = new char[len];
+        int n = 0;
+        int fin = b.position() + len;
+        while (b.position() < fin) {
+            int c = b.get() & 0xFF;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[n++] = (char) c;
+                    break;
+                case 12: case 13: {
+                    if (b.position() + 1 > fin) throw new UTFDataFormatException("Trama UTF truncada");
+                    int c2 = b.get();
+                    if ((c2 & 0xC0) != 0x80) throw new UTFDataFormatException("Byte UTF inválido");
+                    chars[n++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                    break;
+                }
+                case 14: {
+                    if (b.position() + 2 > fin) throw new UTFDataFormatException("Trama UTF truncada");
+                    int c2 = b.get();
+                    int c3 = b.get();
+                    if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) throw new UTFDataFormatException("Byte UTF inválido");
+                    chars[n++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    break;
+                }
+                default:
+                    throw new UTFDataFormatException("Byte UTF inválido");
+            }
+        }
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,75 @@
+package org.vinni.servidor;
+
+import org.vinni.protocolo.TramaUtf;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Control de admisión de conexiones nuevas: un balde de fichas que deja pasar
+ * como mucho server.admission.rate saludos por segundo, con ráfagas de hasta
+ * server.admission.burst (por defecto, un segundo de fichas). Con rate 0 no se limita.
+ *
+ * Al que no entra se le contesta {@link #OCUPADO}&lt;ms&gt; en vez de INGRESE_NOMBRE
+ * y se cierra. Las sugerencias se escalonan: cada rechazo reserva el turno
+ * siguiente al último sugerido, así los que vuelven llegan al ritmo que el
+ * servidor puede atender y no todos juntos otra vez.
+ */
+public final class Admision {
+    /** Trama de texto del rechazo: "OCUPADO:1500" = volver a intentar en 1500 ms. */
+    public static final String OCUPADO = "OCUPADO:";
+
+    // Sugerencias más allá de esto no tienen sentido: se reparte dentro de la ventana
+    private static final long MAX_ESPERA_MS = 60_000;
+
+    private final double porNano;
+    private final double rafaga;
+    private double fichas;
+    private long ultimo = System.nanoTime();
+    private long turno = ultimo;        // último instante sugerido a un rechazado
+
+    private Admision(double porSegundo, double rafaga) {
+        this.porNano = porSegundo / 1e9;
+        this.rafaga = rafaga;
+        this.fichas = rafaga;
+    }
+
+    /** null si server.admission.rate no está configurado (o es 0). */
+    static Admision desdePropiedades() {
+        double rate = Double.parseDouble(System.getProperty("server.admission.rate", "0").trim());
+        if (rate <= 0) return null;
+        double burst = Double.parseDouble(System.getProperty("server.admission.burst", String.valueOf(rate)).trim());
+        return new Admision(rate, Math.max(1, burst));
+    }
+
+    /**
+     * @return 0 si la conexión entra; si no, en cuántos ms conviene que vuelva
+     */
+    public synchronized long intentar() {
+        long ahora = System.nanoTime();
+        fichas = Math.min(rafaga, fichas + (ahora - ultimo) * porNano);
+        ultimo = ahora;
+        if (fichas >= 1) {
+            fichas--;
+            return 0;
+        }
+        long paso = (long) (1 / porNano);
+        turno = Math.max(turno, ahora) + paso;
+        long espera = turno - ahora;
+        if (espera > MAX_ESPERA_MS * 1_000_000L) {
+            // Cola de sugerencias llena: al azar dentro de la ventana
+            turno = ahora + MAX_ESPERA_MS * 1_000_000L;
+            espera = (long) (Math.random() * MAX_ESPERA_MS * 1_000_000L);
+        }
+        return Math.max(1, espera / 1_000_000L);
+    }
+
+    /** Trama de rechazo lista para escribir en el socket recién aceptado. */
+    public static ByteBuffer rechazo(long reintentarMs) {
+        try {
+            return TramaUtf.codificar(OCUPADO + reintentarMs);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalStateException(e);      // texto corto y ASCII
+        }
+    }
+}
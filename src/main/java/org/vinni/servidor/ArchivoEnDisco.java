@@ -0,0 +1,78 @@
+package org.vinni.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contenido de un FILE que ya está en disco: se abre una vez y cada destino lo
+ * lee con su propia posición, sin cargarlo en memoria.
+ *
+ * Cuenta referencias: quien lo abre tiene una y cada conexión que lo encola
+ * toma otra; con la última se cierra el canal (y se
+ * ejecuta la acción de cierre, p. ej. borrar el archivo ya entregado).
+ */
+public final class ArchivoEnDisco {
+    private final FileChannel canal;
+    private final long tam;
+    private final Runnable alCerrar;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private ArchivoEnDisco(FileChannel canal, long tam, Runnable alCerrar) {
+        this.canal = canal;
+        this.tam = tam;
+        this.alCerrar = alCerrar;
+    }
+
+    public static ArchivoEnDisco abrir(Path archivo, Runnable alCerrar) throws IOException {
+        FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ);
+        return new ArchivoEnDisco(canal, canal.size(), alCerrar);
+    }
+
+    public long getTam() {
+        return tam;
+    }
+
+    /** Toma una referencia; false si ya se cerró. */
+    public boolean retener() {
+        int n;
+        do {
+            n = refs.get();
+            if (n == 0) return false;
+        } while (!refs.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    public void liberar() {
+        if (refs.decrementAndGet() != 0) return;
+        try { canal.close(); } catch (IOException ignored) {}
+        alCerrar.run();
+    }
+
+    /**
+     * Bytes que hay ahora en el archivo desde {@code desde}: menos que los
+     * anunciados en la cabecera si se achicó después de abrirlo.
+     */
+    public long disponibles(long desde) throws IOException {
+        return Math.max(0, canal.size() - desde);
+    }
+
+    /**
+     * Lee desde {@code desde} sin mover ninguna posición compartida.
+     */
+    public int leer(long desde, ByteBuffer destino) throws IOException {
+        return canal.read(destino, desde);
+    }
+
+    /**
+     * Pasa hasta {@code n} bytes desde {@code desde} directamente al canal destino
+     * (sendfile si el sistema lo permite); devuelve cuántos pasaron.
+     */
+    public long transferir(long desde, long n, WritableByteChannel destino) throws IOException {
+        return canal.transferTo(desde, n, destino);
+    }
+}
@@ -0,0 +1,300 @@
+package org.vinni.servidor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Cola de salida acotada de una conexión. Quien reenvía una trama solo la encola;
+ * el socket del destino lo escribe su propio escritor, así un cliente lento no
+ * frena al remitente ni a los demás.
+ *
+ * Lo masivo (archivos y sus bloques) va en un carril aparte que solo se atiende
+ * cuando no hay mensajes ni tramas de control esperando; dentro de cada carril se
+ * respeta el orden de llegada. Lo encolado con {@link #alFinal} sale después de
+ * los dos. La capacidad cuenta todo.
+ *
+ * Configuración (propiedades del sistema):
+ *  - server.out.queueSize     tramas en cola por cliente (1024)
+ *  - server.out.policy        block | drop-oldest | disconnect (block)
+ *  - server.out.blockTimeoutMs espera máxima con "block" antes de desconectar (5000)
+ */
+public class ColaSalida<T> {
+
+    public enum Politica {
+        /** Espera a que haya lugar (hasta blockTimeoutMs); si no, desconecta al cliente lento. */
+        BLOQUEAR,
+        /** Descarta los mensajes de chat más antiguos; si no hay ninguno, desconecta. */
+        DESCARTAR_ANTIGUO,
+        /** Desconecta al cliente lento. */
+        DESCONECTAR
+    }
+
+    /** CERRADA: la conexión ya se cerró y la trama se soltó sin encolarla. */
+    public enum Resultado { ENCOLADO, DESCARTADO, DESBORDADO, CERRADA }
+
+    private final ArrayDeque<T> cola = new ArrayDeque<>();
+    private final ArrayDeque<T> masivos = new ArrayDeque<>();
+    private final ArrayDeque<T> finales = new ArrayDeque<>();
+    private final int capacidad;
+    private final Politica politica;
+    private final long esperaMs;
+    private final Predicate<T> esChat;
+    private final Predicate<T> esMasivo;
+    private final Consumer<T> descartar;
+    private boolean cerrada;
+    private long descartados;
+
+    /**
+     * @param esChat    tramas que drop-oldest puede descartar
+     * @param esMasivo  tramas del carril de baja prioridad
+     * @param descartar suelta lo retenido por una trama descartada
+     */
+    public ColaSalida(int capacidad, Politica politica, long esperaMs, Predicate<T> esChat,
+                      Predicate<T> esMasivo, Consumer<T> descartar) {
+        this.capacidad = Math.max(1, capacidad);
+        this.politica = politica;
+        this.esperaMs = esperaMs;
+        this.esChat = esChat;
+        this.esMasivo = esMasivo;
+        this.descartar = descartar;
+    }
+
+    /**
+     * Cola configurada con las propiedades server.out.*.
+     */
+    public static <T> ColaSalida<T> desdePropiedades(Predicate<T> esChat, Predicate<T> esMasivo,
+                                                     Consumer<T> descartar) {
+        return new ColaSalida<>(intProp("server.out.queueSize", 1024), politicaProp(),
+                intProp("server.out.blockTimeoutMs", 5000), esChat, esMasivo, descartar);
+    }
+
+    public static long esperaMaximaMs() {
+        return intProp("server.out.blockTimeoutMs", 5000);
+    }
+
+    /**
+     * Encola la trama aplicando la política si la cola está llena.
+     *
+     * @param puedeEsperar false si quien encola no debe bloquearse (p. ej. un bucle NIO);
+     *                     en ese caso BLOQUEAR devuelve DESBORDADO sin esperar
+     * @return DESBORDADO si hay que desconectar al cliente (o, con BLOQUEAR y sin
+     *         poder esperar, frenar al remitente y usar {@link #forzar}); CERRADA si
+     *         la cola ya estaba cerrada (la trama ya se soltó)
+     */
+    public Resultado ofrecer(T item, boolean puedeEsperar) {
+        List<T> sueltos = new ArrayList<>(1);
+        Resultado r = intentar(item, puedeEsperar, sueltos);
+        // Fuera del monitor: soltar un flujo toma su propio lock
+        if (r == Resultado.CERRADA) descartar.accept(item);
+        for (T t : sueltos) descartar.accept(t);
+        return r;
+    }
+
+    /** Lo que drop-oldest saca de la cola queda en sueltos para soltarlo afuera. */
+    private synchronized Resultado intentar(T item, boolean puedeEsperar, List<T> sueltos) {
+        if (cerrada) return Resultado.CERRADA;
+        if (tam0() < capacidad) {
+            agregar(item);
+            return Resultado.ENCOLADO;
+        }
+
+        switch (politica) {
+            case BLOQUEAR:
+                if (!puedeEsperar) return Resultado.DESBORDADO;
+                long limite = System.currentTimeMillis() + esperaMs;
+                try {
+                    while (!cerrada && tam0() >= capacidad) {
+                        long resta = limite - System.currentTimeMillis();
+                        if (resta <= 0) return Resultado.DESBORDADO;
+                        wait(resta);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Resultado.DESBORDADO;
+                }
+                if (cerrada) return Resultado.CERRADA;
+                agregar(item);
+                return Resultado.ENCOLADO;
+
+            case DESCARTAR_ANTIGUO:
+                for (Iterator<T> it = cola.iterator(); it.hasNext(); ) {
+                    T viejo = it.next();
+                    if (esChat.test(viejo)) {
+                        it.remove();
+                        sueltos.add(viejo);
+                        descartados++;
+                        agregar(item);
+                        return Resultado.DESCARTADO;
+                    }
+                }
+                // Solo hay tramas de control/archivo: si la nueva es chat se descarta ella
+                if (esChat.test(item)) {
+                    sueltos.add(item);
+                    descartados++;
+                    return Resultado.DESCARTADO;
+                }
+                return Resultado.DESBORDADO;
+
+            default:
+                return Resultado.DESBORDADO;
+        }
+    }
+
+    /**
+     * Encola por encima de la capacidad: la usa el motor NIO con BLOQUEAR, que en
+     * vez de esperar deja de leer del remitente hasta que esta cola tenga lugar, y
+     * lo que ya tiene su propio límite (bloques de un archivo en vuelo).
+     *
+     * @return false si la cola ya se cerró (el llamador suelta el item)
+     */
+    public synchronized boolean forzar(T item) {
+        if (cerrada) return false;
+        agregar(item);
+        return true;
+    }
+
+    /**
+     * Encola por encima de la capacidad detrás de todo, archivos incluidos: sale
+     * cuando los dos carriles quedan vacíos. Lo que cede el turno vuelve a su
+     * carril antes de que el escritor saque otra trama, así que tampoco lo adelanta.
+     *
+     * @return false si la cola ya se cerró (el llamador suelta el item)
+     */
+    public synchronized boolean alFinal(T item) {
+        if (cerrada) return false;
+        finales.addLast(item);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Como {@link #forzar}, pero de las tramas que cumplen {@code igual} deja una sola:
+     * si ya hay una sin escribir, la nueva ocupa su lugar y la vieja se suelta. Así
+     * lo que se fuerza no crece sin límite aunque el cliente no lea.
+     *
+     * @return false si la cola ya se cerró (la trama nueva se soltó)
+     */
+    public boolean reemplazar(T item, Predicate<T> igual) {
+        List<T> sueltos = new ArrayList<>(1);
+        boolean ok = reemplazar0(item, igual, sueltos);
+        for (T t : sueltos) descartar.accept(t);
+        return ok;
+    }
+
+    private synchronized boolean reemplazar0(T item, Predicate<T> igual, List<T> sueltos) {
+        if (cerrada) {
+            sueltos.add(item);
+            return false;
+        }
+        ArrayDeque<T> carril = esMasivo.test(item) ? masivos : cola;
+        boolean puesto = false;
+        // ArrayDeque no reemplaza en el lugar: se da una vuelta completa
+        for (int i = carril.size(); i > 0; i--) {
+            T t = carril.pollFirst();
+            if (!puesto && igual.test(t)) {
+                sueltos.add(t);
+                t = item;
+                puesto = true;
+            }
+            carril.addLast(t);
+        }
+        if (!puesto) carril.addLast(item);
+        notifyAll();
+        return true;
+    }
+
+    /** Si hay en la cola alguna trama sin escribir que cumpla {@code igual}. */
+    public synchronized boolean contiene(Predicate<T> igual) {
+        for (T t : cola) if (igual.test(t)) return true;
+        for (T t : masivos) if (igual.test(t)) return true;
+        return false;
+    }
+
+    public synchronized boolean hayLugar() {
+        return tam0() < capacidad;
+    }
+
+    public Politica getPolitica() {
+        return politica;
+    }
+
+    private void agregar(T item) {
+        (esMasivo.test(item) ? masivos : cola).addLast(item);
+        notifyAll();
+    }
+
+    private int tam0() {
+        return cola.size() + masivos.size() + finales.size();
+    }
+
+    private T siguiente() {
+        T item = cola.pollFirst();
+        if (item == null) item = masivos.pollFirst();
+        if (item == null) item = finales.pollFirst();
+        if (item != null) notifyAll();
+        return item;
+    }
+
+    /**
+     * Saca la siguiente trama sin esperar (null si no hay); lo masivo, solo si no hay otra cosa.
+     */
+    public synchronized T sacar() {
+        return siguiente();
+    }
+
+    /**
+     * Espera la siguiente trama; null cuando la cola se cerró.
+     */
+    public synchronized T tomar() throws InterruptedException {
+        while (tam0() == 0 && !cerrada) wait();
+        return siguiente();
+    }
+
+    public synchronized boolean isEmpty() {
+        return tam0() == 0;
+    }
+
+    public synchronized int tam() {
+        return tam0();
+    }
+
+    public synchronized long getDescartados() {
+        return descartados;
+    }
+
+    /**
+     * Cierra la cola y devuelve lo que quedó sin enviar.
+     */
+    public synchronized List<T> cerrar() {
+        cerrada = true;
+        List<T> resto = new ArrayList<>(cola);
+        resto.addAll(masivos);
+        resto.addAll(finales);
+        cola.clear();
+        masivos.clear();
+        finales.clear();
+        notifyAll();
+        return resto;
+    }
+
+    private static int intProp(String clave, int def) {
+        try {
+            String v = System.getProperty(clave);
+            if (v != null && !v.isBlank()) return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ignored) {}
+        return def;
+    }
+
+    private static Politica politicaProp() {
+        String v = System.getProperty("server.out.policy", "block").trim().toLowerCase();
+        switch (v) {
+            case "drop-oldest": return Politica.DESCARTAR_ANTIGUO;
+            case "disconnect":  return Politica.DESCONECTAR;
+            default:            return Politica.BLOQUEAR;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.vinni.servidor;
+
+import java.util.function.Supplier;
+
+/**
+ * Cliente conectado al servidor, independiente del motor de red que lo atiende
+ * (un hilo por cliente o NIO con selector) y del protocolo que negoció
+ * (texto writeUTF o binario).
+ */
+public interface Conexion {
+
+    /** Identificador único de la conexión dentro del servidor (orden de llegada, desde 1). */
+    long getId();
+
+    /** Nombre con el que se registró el cliente (null antes del saludo). */
+    String getNombre();
+
+    /**
+     * Encola una trama ya codificada, posiblemente compartida con otros destinos.
+     */
+    void enviar(TramaCompartida trama);
+
+    /**
+     * Encola una LISTA o un DELTA sin esperar ni desconectar, aunque la cola esté
+     * llena, pero nunca más de uno: si ya hay uno sin escribir, en su lugar queda
+     * {@code completa}, la LISTA actual, que ya incluye este cambio.
+     */
+    void enviarLista(TramaCompartida trama, Supplier<TramaCompartida> completa);
+
+    /**
+     * Como {@link #enviar} pero detrás de todo lo que ya está en la cola, archivos
+     * incluidos, aunque esté llena (el REDIRECT del drenaje).
+     */
+    void enviarAlFinal(TramaCompartida trama);
+
+    /**
+     * Encola una cabecera FILE seguida del contenido de un archivo en disco.
+     * Toma su propia referencia del archivo; quien lo abrió conserva la suya.
+     */
+    void enviarArchivo(TramaCompartida cabecera, ArchivoEnDisco datos);
+
+    /** Tramas en su cola de salida todavía sin escribir (para las métricas). */
+    int getPendientes();
+
+    /** Cierra conexión con el cliente. */
+    void cerrarConexion();
+}
@@ -0,0 +1,60 @@
+package org.vinni.servidor;
+
+import java.util.List;
+
+/**
+ * Lógica de enrutamiento compartida por los motores de red:
+ * registro de clientes, reenvío de MSG/FILE y log.
+ *
+ * Los destinos se identifican por id de conexión ({@link org.vinni.protocolo.CodecBinario#ID_TODOS}
+ * = broadcast); las tramas de texto traducen el nombre con {@link #idDe(String)}.
+ */
+public interface Enrutador {
+
+    /** Id que no corresponde a ningún cliente. */
+    long ID_DESCONOCIDO = -1;
+
+    /**
+     * Control de admisión para una conexión recién aceptada: 0 si se atiende, o en
+     * cuántos ms conviene que el cliente vuelva (se le contesta {@link Admision#rechazo}).
+     */
+    long admitir();
+
+    /** Registra un cliente tras completar el saludo INGRESE_NOMBRE. */
+    void registrar(Conexion c);
+
+    /** Retira un cliente desconectado y avisa al resto. */
+    void retirar(Conexion c);
+
+    /** Envía la lista completa de clientes a quien la pidió. */
+    void enviarLista(Conexion c);
+
+    /** Reenvía un MSG al destino. */
+    void rutearMensaje(Conexion origen, long destino, String texto);
+
+    /**
+     * Dónde van los bytes de un FILE además de los destinos locales: al spool si el
+     * destinatario se desconectó hace poco (y no hay destinos locales), a otra
+     * instancia si está conectado allí o si es para Todos. null si a ninguna parte.
+     */
+    SalidaArchivo salidaExterna(Conexion origen, long destino, String nombreArchivo, long tam,
+                                boolean hayDestinosLocales);
+
+    /**
+     * Resuelve los clientes a los que va una trama (ID_TODOS = todos menos el origen),
+     * ordenados por id.
+     */
+    List<Conexion> destinos(Conexion origen, long destino);
+
+    /** Id del cliente con ese nombre ("Todos" = ID_TODOS), o ID_DESCONOCIDO. */
+    long idDe(String nombre);
+
+    /** Nombre del destino para el log ("Todos" para ID_TODOS). */
+    String nombreDe(long destino);
+
+    /** Contadores del servidor; los motores registran lo que leen y escriben. */
+    Metricas getMetricas();
+
+    /** Agrega una línea al log del servidor. */
+    void log(String msg);
+}
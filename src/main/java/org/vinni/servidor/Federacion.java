@@ -0,0 +1,577 @@
+package org.vinni.servidor;
+
+import org.vinni.servidor.nio.MotorNio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bus entre instancias hermanas (las que lanza el Monitor en basePort+i): cada
+ * una anuncia a las demás qué clientes tiene y les reenvía los MSG/FILE para
+ * clientes conectados en otra. Así los clientes pueden repartirse entre puertos
+ * sin quedar en grupos aislados.
+ *
+ * Cada instancia se identifica por su puerto propio ({@link ServidorChat#getPuertoPropio()}:
+ * el del chat, o el del trabajador si el puerto es compartido). Con cada hermana
+ * hay un enlace saliente (aquí solo se escribe) y uno entrante (solo se lee), por
+ * TCP en el puerto propio + server.federation.portOffset. Las tramas salientes se
+ * codifican en el hilo que las produce y las escribe el hilo del enlace desde una
+ * cola acotada: quien encola (p. ej. un bucle NIO) nunca espera al socket. Si la
+ * cola se llena, la hermana no da abasto y se corta el enlace; al reconectar,
+ * el HOLA con la foto de los clientes vuelve a sincronizar la lista. Solo los
+ * DATOS de un FILE esperan lugar (hasta server.out.blockTimeoutMs), y únicamente
+ * si los encola un hilo que puede esperar (el del remitente en el motor de hilos).
+ * Al conectar, el saliente manda HOLA y los nombres de todos los clientes
+ * locales; después, cada alta y baja. Cuando se corta el entrante, los clientes
+ * de esa instancia salen de la lista.
+ *
+ * <pre>
+ * HOLA    nodo(int)
+ * ALTA    nombre                      BAJA   nombre
+ * MSG     remitente destino texto     (destino vacío = Todos)
+ * FILE    id(long) remitente destino nombreArchivo tamaño(long)
+ * DATOS   id(long) largo(int) bytes
+ * FIN     id(long)                    ABORTO id(long)
+ * PING
+ * </pre>
+ *
+ * Los FILE que llegan se escriben a un temporal y, completos, salen del disco a
+ * los destinos como cualquier otro archivo en disco.
+ *
+ * Configuración: server.federation.peers puertos propios de las hermanas
+ * ("5000-5003" o "5000,5001"; el propio se ignora; vacío = sin federación),
+ * server.federation.host (localhost), server.federation.portOffset (1000),
+ * server.federation.queueBytes tope de la cola de cada enlace (16777216).
+ */
+class Federacion {
+    private static final byte HOLA = 1, ALTA = 2, BAJA = 3, MSG = 4, FILE = 5, DATOS = 6, FIN = 7, ABORTO = 8, PING = 9;
+
+    private static final long PING_MS = 2000;
+    private static final long REINTENTO_MS = 1000;
+    private static final int TIMEOUT_CONEXION_MS = 2000;
+    private static final int BLOQUE = 64 * 1024;
+    private static final long MAX_EN_COLA = Long.getLong("server.federation.queueBytes", 16L * 1024 * 1024);
+
+    private final int nodo;
+    private final String host;
+    private final int desplazamiento;
+    private final ServidorChat servidor;
+    private final ServerSocket entrada;
+    private final Map<Integer, Enlace> enlaces = new LinkedHashMap<>();
+    // Enlace entrante vigente por hermana: el cierre de uno viejo no borra lo que anunció el nuevo
+    private final Map<Integer, Object> lectores = new ConcurrentHashMap<>();
+    private final AtomicLong secuenciaArchivos = new AtomicLong();
+    private volatile boolean corriendo = true;
+
+    @FunctionalInterface
+    private interface Trama {
+        void escribir(DataOutputStream out) throws IOException;
+    }
+
+    private Federacion(int nodo, String host, int desplazamiento, ServidorChat servidor,
+                       ServerSocket entrada, List<Integer> hermanas) {
+        this.nodo = nodo;
+        this.host = host;
+        this.desplazamiento = desplazamiento;
+        this.servidor = servidor;
+        this.entrada = entrada;
+        for (int h : hermanas) enlaces.put(h, new Enlace(h));
+    }
+
+    /** null si no hay hermanas configuradas. */
+    static Federacion iniciar(int puerto, ServidorChat servidor) throws IOException {
+        List<Integer> hermanas = hermanas(System.getProperty("server.federation.peers", ""), puerto);
+        if (hermanas.isEmpty()) return null;
+        String host = System.getProperty("server.federation.host", "localhost").trim();
+        int desplazamiento = Integer.getInteger("server.federation.portOffset", 1000);
+
+        ServerSocket entrada = new ServerSocket();
+        entrada.setReuseAddress(true);
+        entrada.bind(new InetSocketAddress(InetAddress.getByName(host), puerto + desplazamiento));
+
+        Federacion f = new Federacion(puerto, host, desplazamiento, servidor, entrada, hermanas);
+        Thread t = new Thread(f::aceptar, "Srv-Fed-Accept");
+        t.setDaemon(true);
+        t.start();
+        for (Enlace e : f.enlaces.values()) e.arrancar();
+        servidor.log("Federación en el puerto " + (puerto + desplazamiento) + " con las instancias " + hermanas + "\n");
+        return f;
+    }
+
+    /** "5000-5003,5010" sin el puerto propio, en orden y sin repetidos. */
+    static List<Integer> hermanas(String lista, int propio) {
+        List<Integer> puertos = new ArrayList<>();
+        for (String parte : lista.split(",")) {
+            parte = parte.trim();
+            if (parte.isEmpty()) continue;
+            try {
+                int guion = parte.indexOf('-');
+                int desde = Integer.parseInt((guion < 0 ? parte : parte.substring(0, guion)).trim());
+                int hasta = guion < 0 ? desde : Integer.parseInt(parte.substring(guion + 1).trim());
+                for (int p = desde; p <= hasta; p++) {
+                    if (p != propio && !puertos.contains(p)) puertos.add(p);
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        return puertos;
+    }
+
+    void detener() {
+        corriendo = false;
+        try { entrada.close(); } catch (IOException ignored) {}
+        for (Enlace e : enlaces.values()) e.detener();
+    }
+
+    Collection<Integer> nodos() {
+        return enlaces.keySet();
+    }
+
+    /** Hermanas con el enlace saliente abierto ahora. */
+    List<Integer> nodosConectados() {
+        List<Integer> conectados = new ArrayList<>();
+        for (Enlace e : enlaces.values()) {
+            if (e.conectado()) conectados.add(e.nodo);
+        }
+        return conectados;
+    }
+
+    /* -------------------- Salida hacia las hermanas -------------------- */
+
+    void alta(String nombre) {
+        byte[] t = codificar(o -> { o.writeByte(ALTA); o.writeUTF(nombre); });
+        for (Enlace e : enlaces.values()) e.escribir(t);
+    }
+
+    void baja(String nombre) {
+        byte[] t = codificar(o -> { o.writeByte(BAJA); o.writeUTF(nombre); });
+        for (Enlace e : enlaces.values()) e.escribir(t);
+    }
+
+    /** MSG para un cliente de la instancia {@code nodo}; false si no hay enlace. */
+    boolean mensaje(int nodo, String remitente, String destino, String texto) {
+        Enlace e = enlaces.get(nodo);
+        return e != null && e.escribir(codificar(mensaje(remitente, destino, texto)));
+    }
+
+    void mensajeATodos(String remitente, String texto) {
+        byte[] t = codificar(mensaje(remitente, "", texto));
+        for (Enlace e : enlaces.values()) e.escribir(t);
+    }
+
+    private static Trama mensaje(String remitente, String destino, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        return o -> {
+            o.writeByte(MSG);
+            o.writeUTF(remitente);
+            o.writeUTF(destino);
+            o.writeInt(bytes.length);
+            o.write(bytes);
+        };
+    }
+
+    /** La trama ya armada, para encolarla en uno o varios enlaces; null si no se puede codificar. */
+    private static byte[] codificar(Trama t) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try {
+            t.escribir(new DataOutputStream(b));
+        } catch (IOException e) {
+            return null;        // p. ej. un nombre de más de 64 KB en writeUTF
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Salida de un FILE hacia las instancias {@code nodos} ({@code destino} vacío =
+     * Todos); null si no hay enlace con ninguna.
+     */
+    SalidaArchivo archivo(Collection<Integer> nodos, String remitente, String destino, String nombreArchivo, long tam) {
+        long id = secuenciaArchivos.incrementAndGet();
+        byte[] cabecera = codificar(o -> {
+            o.writeByte(FILE);
+            o.writeLong(id);
+            o.writeUTF(remitente);
+            o.writeUTF(destino);
+            o.writeUTF(nombreArchivo);
+            o.writeLong(tam);
+        });
+        List<Enlace> abiertos = new ArrayList<>();
+        for (int n : nodos) {
+            Enlace e = enlaces.get(n);
+            if (e != null && e.escribir(cabecera)) abiertos.add(e);
+        }
+        return abiertos.isEmpty() ? null : new Reenvio(id, tam, abiertos);
+    }
+
+    /**
+     * FILE en curso hacia otras instancias: cada porción sale como DATOS por todos
+     * los enlaces que sigan vivos.
+     */
+    private static final class Reenvio implements SalidaArchivo {
+        private final long id, tam;
+        private final List<Enlace> enlaces;
+        private final List<Integer> nodos = new ArrayList<>();
+        private long enviados;
+
+        Reenvio(long id, long tam, List<Enlace> enlaces) {
+            this.id = id;
+            this.tam = tam;
+            this.enlaces = enlaces;
+            for (Enlace e : enlaces) nodos.add(e.nodo);
+        }
+
+        @Override
+        public void escribir(ByteBuffer b) {
+            int n = b.remaining();
+            // Una sola copia, ya con su prefijo, para todos los enlaces
+            byte[] t = ByteBuffer.allocate(1 + 8 + 4 + n).put(DATOS).putLong(id).putInt(n).put(b).array();
+            boolean puedeEsperar = !MotorNio.enBucleEventos();
+            enlaces.removeIf(e -> !e.escribir(t, puedeEsperar));
+            enviados += n;
+        }
+
+        @Override
+        public boolean confirmar() {
+            byte[] t = codificar(o -> { o.writeByte(FIN); o.writeLong(id); });
+            enlaces.removeIf(e -> !e.escribir(t));
+            return !enlaces.isEmpty() && enviados == tam;
+        }
+
+        @Override
+        public void descartar() {
+            byte[] t = codificar(o -> { o.writeByte(ABORTO); o.writeLong(id); });
+            for (Enlace e : enlaces) e.escribir(t);
+        }
+
+        @Override
+        public String etiqueta() {
+            return " (vía instancia " + (nodos.size() == 1 ? nodos.get(0) : nodos) + ")";
+        }
+    }
+
+    /**
+     * Enlace saliente con una hermana: su hilo lo mantiene abierto (reconecta),
+     * escribe lo que otros hilos dejan en la cola y, si no hay nada, manda PING.
+     */
+    private final class Enlace {
+        final int nodo;
+        private final ArrayDeque<byte[]> cola = new ArrayDeque<>();
+        private long enCola;            // bytes en la cola
+        private Socket socket;
+        private boolean abierto;        // acepta tramas
+        private Thread hilo;
+
+        Enlace(int nodo) {
+            this.nodo = nodo;
+        }
+
+        void arrancar() {
+            hilo = new Thread(this::mantener, "Srv-Fed-" + nodo);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        private void mantener() {
+            while (corriendo) {
+                try {
+                    Socket s = new Socket();
+                    s.connect(new InetSocketAddress(host, nodo + desplazamiento), TIMEOUT_CONEXION_MS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BLOQUE));
+                    synchronized (this) {
+                        // Foto de los clientes locales bajo el mismo monitor que encola las altas y bajas
+                        byte[] hola = codificar(x -> {
+                            x.writeByte(HOLA);
+                            x.writeInt(Federacion.this.nodo);
+                            for (String nombre : servidor.nombresLocales()) {
+                                x.writeByte(ALTA);
+                                x.writeUTF(nombre);
+                            }
+                        });
+                        if (hola == null) {
+                            s.close();
+                            throw new IOException("Foto de clientes inválida");
+                        }
+                        socket = s;
+                        abierto = true;
+                        agregar(hola);
+                    }
+                    servidor.log("Federación: enlace con la instancia " + nodo + " establecido\n");
+                    vaciar(o);
+                } catch (IOException e) {
+                    // La hermana todavía no arrancó o se cayó: se reintenta
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (cerrar() && corriendo) servidor.log("Federación: enlace con la instancia " + nodo + " perdido\n");
+                }
+                try {
+                    Thread.sleep(REINTENTO_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /** Escribe la cola hasta que se cierre el enlace; sin tramas en PING_MS, un PING. */
+        private void vaciar(DataOutputStream o) throws IOException, InterruptedException {
+            while (corriendo) {
+                byte[] t;
+                boolean ultima;
+                synchronized (this) {
+                    if (cola.isEmpty() && abierto) wait(PING_MS);
+                    if (!abierto) return;
+                    t = cola.poll();
+                    if (t != null) {
+                        enCola -= t.length;
+                        notifyAll();        // a quien espera lugar
+                    }
+                    ultima = cola.isEmpty();
+                }
+                if (t != null) o.write(t);
+                else o.writeByte(PING);
+                if (ultima) o.flush();
+            }
+        }
+
+        synchronized boolean conectado() {
+            return abierto;
+        }
+
+        /**
+         * Encola una trama completa sin esperar; false si el enlace no está abierto
+         * o si se acaba de cortar porque la hermana no da abasto.
+         */
+        boolean escribir(byte[] t) {
+            return escribir(t, false);
+        }
+
+        /** Ídem; con {@code puedeEsperar}, si la cola está llena espera lugar un rato. */
+        boolean escribir(byte[] t, boolean puedeEsperar) {
+            if (t == null) return false;
+            synchronized (this) {
+                long limite = System.currentTimeMillis() + ColaSalida.esperaMaximaMs();
+                try {
+                    while (puedeEsperar && abierto && !cola.isEmpty() && enCola + t.length > MAX_EN_COLA) {
+                        long resta = limite - System.currentTimeMillis();
+                        if (resta <= 0) break;
+                        wait(resta);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!abierto) return false;
+                if (enCola + t.length <= MAX_EN_COLA || cola.isEmpty()) {
+                    agregar(t);
+                    return true;
+                }
+                cerrar();
+            }
+            servidor.log("Federación: la instancia " + nodo + " no recibe a tiempo; se corta el enlace\n");
+            return false;
+        }
+
+        private void agregar(byte[] t) {
+            cola.add(t);
+            enCola += t.length;
+            notifyAll();
+        }
+
+        /** Descarta la cola y cierra el socket (el hilo del enlace sale de vaciar); false si ya estaba cerrado. */
+        private synchronized boolean cerrar() {
+            boolean estaba = abierto;
+            abierto = false;
+            cola.clear();
+            enCola = 0;
+            if (socket != null) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+            socket = null;
+            notifyAll();
+            return estaba;
+        }
+
+        void detener() {
+            cerrar();
+            if (hilo != null) hilo.interrupt();
+        }
+    }
+
+    /* -------------------- Entrada desde las hermanas -------------------- */
+
+    private void aceptar() {
+        while (corriendo) {
+            try {
+                Socket s = entrada.accept();
+                Thread t = new Thread(() -> leer(s), "Srv-Fed-Entrada");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (corriendo) servidor.log("Federación: error aceptando enlace: " + e.getMessage() + "\n");
+            }
+        }
+    }
+
+    private void leer(Socket s) {
+        Object token = new Object();
+        int origen = -1;
+        Map<Long, Recepcion> recepciones = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BLOQUE))) {
+            // Sin nada en 3 PING, la hermana está colgada
+            s.setSoTimeout((int) (3 * PING_MS));
+            if (in.readByte() != HOLA) return;
+            origen = in.readInt();
+            lectores.put(origen, token);
+            // La foto que sigue reemplaza a lo que se sabía de esa instancia
+            servidor.olvidarNodo(origen);
+
+            byte[] buffer = new byte[BLOQUE];
+            while (corriendo) {
+                byte tipo = in.readByte();
+                switch (tipo) {
+                    case ALTA:
+                        servidor.altaRemota(origen, in.readUTF());
+                        break;
+                    case BAJA:
+                        servidor.bajaRemota(origen, in.readUTF());
+                        break;
+                    case MSG: {
+                        String remitente = in.readUTF();
+                        String destino = in.readUTF();
+                        byte[] texto = new byte[in.readInt()];
+                        in.readFully(texto);
+                        servidor.mensajeRemoto(remitente, destino, new String(texto, StandardCharsets.UTF_8));
+                        break;
+                    }
+                    case FILE: {
+                        long id = in.readLong();
+                        Recepcion r = new Recepcion(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+                        recepciones.put(id, r);
+                        break;
+                    }
+                    case DATOS: {
+                        Recepcion r = recepciones.get(in.readLong());
+                        int n = in.readInt();
+                        while (n > 0) {
+                            int leidos = Math.min(n, buffer.length);
+                            in.readFully(buffer, 0, leidos);
+                            if (r != null) r.escribir(buffer, leidos);
+                            n -= leidos;
+                        }
+                        break;
+                    }
+                    case FIN: {
+                        Recepcion r = recepciones.remove(in.readLong());
+                        if (r != null) r.entregar();
+                        break;
+                    }
+                    case ABORTO: {
+                        Recepcion r = recepciones.remove(in.readLong());
+                        if (r != null) r.descartar();
+                        break;
+                    }
+                    case PING:
+                        break;
+                    default:
+                        throw new ProtocolException("Trama de federación desconocida: " + tipo);
+                }
+            }
+        } catch (IOException e) {
+            // Enlace cortado: lo que venía a medias se descarta
+        } finally {
+            for (Recepcion r : recepciones.values()) r.descartar();
+            if (origen >= 0 && lectores.remove(origen, token)) servidor.olvidarNodo(origen);
+        }
+    }
+
+    /**
+     * FILE que llega de otra instancia: se escribe a un temporal y, completo, se
+     * entrega desde el disco. El temporal se borra con la última referencia.
+     */
+    private final class Recepcion {
+        private final String remitente, destino, nombreArchivo;
+        private final long tam;
+        private Path tmp;
+        private FileChannel canal;
+        private long escritos;
+
+        Recepcion(String remitente, String destino, String nombreArchivo, long tam) {
+            this.remitente = remitente;
+            this.destino = destino;
+            this.nombreArchivo = nombreArchivo;
+            this.tam = tam;
+            try {
+                tmp = Files.createTempFile("federacion-", ".part");
+                canal = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                descartar();
+            }
+        }
+
+        void escribir(byte[] datos, int n) {
+            if (canal == null) return;
+            try {
+                ByteBuffer b = ByteBuffer.wrap(datos, 0, n);
+                while (b.hasRemaining()) escritos += canal.write(b);
+            } catch (IOException e) {
+                descartar();
+            }
+        }
+
+        void entregar() {
+            if (canal == null || escritos != tam) {
+                descartar();
+                servidor.log("Federación: archivo " + nombreArchivo + " de " + remitente + " incompleto, se descarta\n");
+                return;
+            }
+            try {
+                canal.close();
+                Path p = tmp;
+                ArchivoEnDisco archivo = ArchivoEnDisco.abrir(p, () -> borrar(p));
+                try {
+                    servidor.archivoRemoto(remitente, destino, nombreArchivo, archivo);
+                } finally {
+                    archivo.liberar();
+                }
+            } catch (IOException e) {
+                descartar();
+            }
+        }
+
+        void descartar() {
+            if (canal != null) {
+                try { canal.close(); } catch (IOException ignored) {}
+            }
+            canal = null;
+            if (tmp != null) borrar(tmp);
+            tmp = null;
+        }
+    }
+
+    private static void borrar(Path p) {
+        try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+    }
+}
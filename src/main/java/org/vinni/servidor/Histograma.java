@@ -0,0 +1,84 @@
+package org.vinni.servidor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de duraciones (en ns) con cubetas log-lineales, como HdrHistogram:
+ * cada potencia de dos se parte en {@link #SUB} cubetas iguales, así el error de
+ * un percentil es a lo sumo 1/16 del valor y el tamaño es fijo (todo long, de 0
+ * a ~292 años). Registrar no crea objetos ni toma locks: lo pueden llamar a la
+ * vez todos los hilos que reenvían.
+ */
+public final class Histograma {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int CUBETAS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray cuentas = new AtomicLongArray(CUBETAS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong suma = new AtomicLong();
+    private final AtomicLong maximo = new AtomicLong();
+
+    public void registrar(long valor) {
+        if (valor < 0) valor = 0;
+        cuentas.incrementAndGet(indice(valor));
+        total.incrementAndGet();
+        suma.addAndGet(valor);
+        long m;
+        while (valor > (m = maximo.get()) && !maximo.compareAndSet(m, valor)) {
+            // otro hilo subió el máximo: volver a comparar
+        }
+    }
+
+    private static int indice(long v) {
+        if (v < SUB) return (int) v;
+        int corrimiento = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (corrimiento + 1) * SUB + (int) (v >>> corrimiento) - SUB;
+    }
+
+    /** Mayor valor que cae en la cubeta. */
+    private static long tope(int i) {
+        if (i < SUB) return i;
+        int corrimiento = i / SUB - 1;
+        long sub = i % SUB + SUB;
+        return ((sub + 1) << corrimiento) - 1;
+    }
+
+    /**
+     * @param p entre 0 y 100
+     * @return el valor bajo el que queda el p % de lo registrado (0 si no hay nada)
+     */
+    public long percentil(double p) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long buscado = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += cuentas.get(i);
+            if (acumulado >= buscado) return Math.min(tope(i), maximo.get());
+        }
+        return maximo.get();
+    }
+
+    public long getCuenta() {
+        return total.get();
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    public long getPromedio() {
+        long n = total.get();
+        return n == 0 ? 0 : suma.get() / n;
+    }
+
+    /** Empieza de cero (lo registrado mientras tanto puede quedar a medias). */
+    public void reiniciar() {
+        for (int i = 0; i < CUBETAS; i++) cuentas.set(i, 0);
+        total.set(0);
+        suma.set(0);
+        maximo.set(0);
+    }
+}
@@ -0,0 +1,160 @@
+package org.vinni.servidor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Lista de clientes versionada. Las altas y bajas no se difunden al momento:
+ * se acumulan durante una ventana corta y salen juntas en un solo DELTA
+ * (versión n-1 → n), así una ráfaga de conexiones no provoca una LISTA completa
+ * por cliente y por cambio. La lista completa solo se envía al cliente que
+ * recién entra o que la pide (p. ej. porque perdió una versión), o en lugar de
+ * un DELTA al cliente que todavía no leyó el anterior: así cada cola tiene a lo
+ * sumo una trama de la lista aunque el cliente no lea.
+ *
+ * Configuración: server.roster.coalesceMs ventana de agrupado en ms (100; 0 = sin agrupar).
+ */
+public class ListaClientes {
+    private static final long VENTANA_MS = Math.max(0, Long.getLong("server.roster.coalesceMs", 100));
+
+    private final Map<Long, Conexion> conectados = new LinkedHashMap<>();
+    private final Map<Long, String> anunciados = new LinkedHashMap<>();    // la lista en "version"
+    private final Map<Long, String> pendientes = new LinkedHashMap<>();    // nombre null = baja
+    private long version;
+    private boolean programado;
+    // Orden de las LISTA y los DELTA en las colas. Se toma antes que el monitor y solo
+    // mientras se encola con enviarLista, que no espera: altas y bajas no se frenan
+    private final Object envios = new Object();
+
+    private final ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Srv-Lista");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Envía al cliente la lista actual y anuncia su alta en el próximo DELTA.
+     */
+    public void alta(Conexion c) {
+        synchronized (envios) {
+            TramaCompartida trama;
+            synchronized (this) {
+                conectados.put(c.getId(), c);
+                trama = listaActual();
+                pendientes.put(c.getId(), c.getNombre());
+                programar();
+            }
+            enviar(c, trama);
+        }
+    }
+
+    public synchronized void baja(Conexion c) {
+        if (conectados.remove(c.getId(), c)) {
+            // Si el alta todavía no se anunció, alcanza con olvidarla
+            pendientes.remove(c.getId());
+            if (anunciados.containsKey(c.getId())) pendientes.put(c.getId(), null);
+            programar();
+        }
+    }
+
+    /**
+     * Cliente de otra instancia (federación): entra en la lista como los locales,
+     * pero no recibe nada por aquí.
+     */
+    public synchronized void altaRemota(long id, String nombre) {
+        pendientes.put(id, nombre);
+        programar();
+    }
+
+    public synchronized void bajaRemota(long id) {
+        pendientes.remove(id);
+        if (anunciados.containsKey(id)) pendientes.put(id, null);
+        programar();
+    }
+
+    /**
+     * Lista completa en la versión actual; los DELTA siguientes salen después en la
+     * misma cola, así que el cliente los puede aplicar en orden.
+     */
+    public void enviarLista(Conexion c) {
+        synchronized (envios) {
+            TramaCompartida trama;
+            synchronized (this) {
+                trama = listaActual();
+            }
+            enviar(c, trama);
+        }
+    }
+
+    private TramaCompartida listaActual() {
+        long[] ids = new long[anunciados.size()];
+        String[] nombres = new String[ids.length];
+        int i = 0;
+        for (Map.Entry<Long, String> e : anunciados.entrySet()) {
+            ids[i] = e.getKey();
+            nombres[i++] = e.getValue();
+        }
+        return TramaCompartida.lista(version, ids, nombres);
+    }
+
+    private static void enviar(Conexion c, TramaCompartida trama) {
+        c.enviarLista(trama, () -> trama);
+    }
+
+    private void programar() {
+        if (VENTANA_MS == 0) {
+            temporizador.execute(this::publicar);
+        } else if (!programado) {
+            programado = true;
+            temporizador.schedule(this::publicar, VENTANA_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Difunde los cambios acumulados como un solo DELTA.
+     */
+    private void publicar() {
+        synchronized (envios) {
+            TramaCompartida trama;
+            List<Conexion> destinos;
+            synchronized (this) {
+                programado = false;
+                if (pendientes.isEmpty()) return;
+
+                long[] ids = new long[pendientes.size()];
+                String[] nombres = new String[ids.length];
+                int i = 0;
+                for (Map.Entry<Long, String> e : pendientes.entrySet()) {
+                    ids[i] = e.getKey();
+                    nombres[i++] = e.getValue();
+                    if (e.getValue() != null) anunciados.put(e.getKey(), e.getValue());
+                    else anunciados.remove(e.getKey());
+                }
+                pendientes.clear();
+                long base = version++;
+
+                trama = TramaCompartida.delta(base, version, ids, nombres,
+                        anunciados.values().toArray(new String[0]));
+                destinos = new ArrayList<>(conectados.values());
+            }
+            // Quien todavía tiene una LISTA o un DELTA sin leer recibe en su lugar la
+            // lista completa: se arma una vez y solo si hace falta
+            TramaCompartida[] completa = new TramaCompartida[1];
+            Supplier<TramaCompartida> actual = () -> {
+                if (completa[0] == null) {
+                    synchronized (this) {
+                        completa[0] = listaActual();
+                    }
+                }
+                return completa[0];
+            };
+            for (Conexion c : destinos) c.enviarLista(trama, actual);
+        }
+    }
+}
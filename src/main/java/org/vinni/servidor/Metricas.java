@@ -0,0 +1,298 @@
+package org.vinni.servidor;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Contadores del servidor, comunes a ambos motores: conexiones, mensajes y bytes
+ * en cada sentido, latencia de reenvío (de que el MSG llega decodificado a que
+ * termina de escribirse en el socket de cada destino) y duración del saludo (de
+ * aceptar la conexión a registrar el nombre).
+ *
+ * En el camino de cada trama solo hay sumas en {@link LongAdder} e
+ * {@link Histograma}, sin locks compartidos ni objetos nuevos. Se exportan por
+ * JMX ({@link MetricasMBean}, server.jmx.enabled, true por defecto) y en texto
+ * ({@link #resumen()}, ver {@link ServicioEstadisticas}).
+ */
+public final class Metricas implements MetricasMBean {
+    // Intervalo mínimo para recalcular las tasas por segundo
+    private static final long MUESTRA_NS = 1_000_000_000L;
+    // Clientes más atrasados que lista el resumen
+    private static final int TOP_COLAS = 5;
+
+    private final Supplier<Collection<Conexion>> clientes;
+    private final IntSupplier remotos;
+    private final long inicio = System.nanoTime();
+
+    private final LongAdder aceptadas = new LongAdder();
+    private final LongAdder rechazadas = new LongAdder();
+    private final LongAdder mensajesEntrada = new LongAdder();
+    private final LongAdder mensajesSalida = new LongAdder();
+    private final LongAdder bytesEntrada = new LongAdder();
+    private final LongAdder bytesSalida = new LongAdder();
+    private final Histograma reenvio = new Histograma();
+    private final Histograma saludo = new Histograma();
+
+    // Tasas: valores de la muestra anterior y lo calculado con ella
+    private long tMuestra = inicio;
+    private final long[] muestra = new long[4];
+    private final double[] tasas = new double[4];
+
+    Metricas(Supplier<Collection<Conexion>> clientes, IntSupplier remotos) {
+        this.clientes = clientes;
+        this.remotos = remotos;
+    }
+
+    /* -------------------- Registro (camino de las tramas) -------------------- */
+
+    public void aceptada() {
+        aceptadas.increment();
+    }
+
+    public void rechazada() {
+        rechazadas.increment();
+    }
+
+    /** Saludo completo, {@code ns} desde que se aceptó la conexión. */
+    public void saludo(long ns) {
+        saludo.registrar(ns);
+    }
+
+    public void mensajeEntrada() {
+        mensajesEntrada.increment();
+    }
+
+    public void bytesEntrada(long n) {
+        bytesEntrada.add(n);
+    }
+
+    public void bytesSalida(long n) {
+        if (n > 0) bytesSalida.add(n);
+    }
+
+    /**
+     * Un MSG terminó de escribirse hacia un destino.
+     *
+     * @param creadaNs nanoTime en que el servidor recibió el MSG (0 = sin medir)
+     */
+    public void mensajeSalida(long creadaNs) {
+        mensajesSalida.increment();
+        if (creadaNs != 0) reenvio.registrar(System.nanoTime() - creadaNs);
+    }
+
+    /* -------------------- Lectura -------------------- */
+
+    private synchronized double tasa(int i) {
+        long ahora = System.nanoTime();
+        long dt = ahora - tMuestra;
+        if (dt >= MUESTRA_NS) {
+            long[] actual = {mensajesEntrada.sum(), mensajesSalida.sum(), bytesEntrada.sum(), bytesSalida.sum()};
+            for (int k = 0; k < actual.length; k++) {
+                tasas[k] = (actual[k] - muestra[k]) * 1e9 / dt;
+                muestra[k] = actual[k];
+            }
+            tMuestra = ahora;
+        }
+        return tasas[i];
+    }
+
+    @Override
+    public int getClientes() {
+        return clientes.get().size();
+    }
+
+    @Override
+    public int getClientesRemotos() {
+        return remotos.getAsInt();
+    }
+
+    @Override
+    public long getConexionesAceptadas() {
+        return aceptadas.sum();
+    }
+
+    @Override
+    public long getConexionesRechazadas() {
+        return rechazadas.sum();
+    }
+
+    @Override
+    public long getMensajesEntrada() {
+        return mensajesEntrada.sum();
+    }
+
+    @Override
+    public long getMensajesSalida() {
+        return mensajesSalida.sum();
+    }
+
+    @Override
+    public long getBytesEntrada() {
+        return bytesEntrada.sum();
+    }
+
+    @Override
+    public long getBytesSalida() {
+        return bytesSalida.sum();
+    }
+
+    @Override
+    public double getMensajesEntradaPorSegundo() {
+        return tasa(0);
+    }
+
+    @Override
+    public double getMensajesSalidaPorSegundo() {
+        return tasa(1);
+    }
+
+    @Override
+    public double getBytesEntradaPorSegundo() {
+        return tasa(2);
+    }
+
+    @Override
+    public double getBytesSalidaPorSegundo() {
+        return tasa(3);
+    }
+
+    @Override
+    public long getColaSalidaTotal() {
+        long total = 0;
+        for (Conexion c : clientes.get()) total += c.getPendientes();
+        return total;
+    }
+
+    @Override
+    public int getColaSalidaMaxima() {
+        int max = 0;
+        for (Conexion c : clientes.get()) max = Math.max(max, c.getPendientes());
+        return max;
+    }
+
+    @Override
+    public long getReenvioP50Micros() {
+        return reenvio.percentil(50) / 1000;
+    }
+
+    @Override
+    public long getReenvioP99Micros() {
+        return reenvio.percentil(99) / 1000;
+    }
+
+    @Override
+    public long getReenvioP999Micros() {
+        return reenvio.percentil(99.9) / 1000;
+    }
+
+    @Override
+    public long getReenvioMaxMicros() {
+        return reenvio.getMaximo() / 1000;
+    }
+
+    @Override
+    public long getSaludoP50Micros() {
+        return saludo.percentil(50) / 1000;
+    }
+
+    @Override
+    public long getSaludoP99Micros() {
+        return saludo.percentil(99) / 1000;
+    }
+
+    @Override
+    public long getSaludoMaxMicros() {
+        return saludo.getMaximo() / 1000;
+    }
+
+    @Override
+    public void reiniciarHistogramas() {
+        reenvio.reiniciar();
+        saludo.reiniciar();
+    }
+
+    @Override
+    public String getResumen() {
+        return resumen();
+    }
+
+    /** Estado actual en texto, una métrica por línea ("clave valor"). */
+    public String resumen() {
+        StringBuilder sb = new StringBuilder();
+        linea(sb, "uptime_s", (System.nanoTime() - inicio) / 1_000_000_000L);
+        linea(sb, "clientes", getClientes());
+        linea(sb, "clientes_remotos", getClientesRemotos());
+        linea(sb, "conexiones_aceptadas", getConexionesAceptadas());
+        linea(sb, "conexiones_rechazadas", getConexionesRechazadas());
+        linea(sb, "mensajes_entrada", getMensajesEntrada());
+        linea(sb, "mensajes_salida", getMensajesSalida());
+        linea(sb, "bytes_entrada", getBytesEntrada());
+        linea(sb, "bytes_salida", getBytesSalida());
+        linea(sb, "mensajes_entrada_por_s", getMensajesEntradaPorSegundo());
+        linea(sb, "mensajes_salida_por_s", getMensajesSalidaPorSegundo());
+        linea(sb, "bytes_entrada_por_s", getBytesEntradaPorSegundo());
+        linea(sb, "bytes_salida_por_s", getBytesSalidaPorSegundo());
+        histograma(sb, "reenvio", reenvio);
+        histograma(sb, "saludo", saludo);
+
+        List<Conexion> lista = new ArrayList<>(clientes.get());
+        long total = 0;
+        for (Conexion c : lista) total += c.getPendientes();
+        linea(sb, "cola_salida_total", total);
+        lista.sort(Comparator.comparingInt(Conexion::getPendientes).reversed());
+        for (Conexion c : lista.subList(0, Math.min(TOP_COLAS, lista.size()))) {
+            if (c.getPendientes() == 0) break;
+            linea(sb, "cola_salida{" + c.getNombre() + "}", c.getPendientes());
+        }
+        return sb.toString();
+    }
+
+    private static void histograma(StringBuilder sb, String nombre, Histograma h) {
+        linea(sb, nombre + "_cuenta", h.getCuenta());
+        linea(sb, nombre + "_prom_us", h.getPromedio() / 1000);
+        linea(sb, nombre + "_p50_us", h.percentil(50) / 1000);
+        linea(sb, nombre + "_p90_us", h.percentil(90) / 1000);
+        linea(sb, nombre + "_p99_us", h.percentil(99) / 1000);
+        linea(sb, nombre + "_p999_us", h.percentil(99.9) / 1000);
+        linea(sb, nombre + "_max_us", h.getMaximo() / 1000);
+    }
+
+    private static void linea(StringBuilder sb, String clave, long valor) {
+        sb.append(clave).append(' ').append(valor).append('\n');
+    }
+
+    private static void linea(StringBuilder sb, String clave, double valor) {
+        sb.append(clave).append(' ').append(String.format(Locale.ROOT, "%.1f", valor)).append('\n');
+    }
+
+    /* -------------------- JMX -------------------- */
+
+    /**
+     * @return el nombre registrado, o null si server.jmx.enabled=false
+     * @throws JMException p. ej. si otra instancia de la misma JVM ya usa ese puerto
+     */
+    ObjectName registrarJmx(int puerto) throws JMException {
+        if (!Boolean.parseBoolean(System.getProperty("server.jmx.enabled", "true"))) return null;
+        ObjectName nombre = new ObjectName("org.vinni.servidor:type=ServidorChat,puerto=" + puerto);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, nombre);
+        return nombre;
+    }
+
+    static void retirarJmx(ObjectName nombre) {
+        if (nombre == null) return;
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbs.unregisterMBean(nombre);
+        } catch (JMException ignored) {}
+    }
+}
@@ -0,0 +1,59 @@
+package org.vinni.servidor;
+
+/**
+ * Vista JMX de {@link Metricas} (org.vinni.servidor:type=ServidorChat,puerto=N).
+ * Tasas por segundo sobre el intervalo desde la lectura anterior (al menos 1 s);
+ * latencias en microsegundos.
+ */
+public interface MetricasMBean {
+
+    int getClientes();
+
+    int getClientesRemotos();
+
+    long getConexionesAceptadas();
+
+    long getConexionesRechazadas();
+
+    long getMensajesEntrada();
+
+    long getMensajesSalida();
+
+    long getBytesEntrada();
+
+    long getBytesSalida();
+
+    double getMensajesEntradaPorSegundo();
+
+    double getMensajesSalidaPorSegundo();
+
+    double getBytesEntradaPorSegundo();
+
+    double getBytesSalidaPorSegundo();
+
+    /** Tramas en las colas de salida de todos los clientes. */
+    long getColaSalidaTotal();
+
+    /** La cola de salida más larga (el cliente más atrasado). */
+    int getColaSalidaMaxima();
+
+    long getReenvioP50Micros();
+
+    long getReenvioP99Micros();
+
+    long getReenvioP999Micros();
+
+    long getReenvioMaxMicros();
+
+    long getSaludoP50Micros();
+
+    long getSaludoP99Micros();
+
+    long getSaludoMaxMicros();
+
+    /** El mismo texto que sirve server.stats. */
+    String getResumen();
+
+    /** Pone en cero los histogramas (los contadores siguen). */
+    void reiniciarHistogramas();
+}
@@ -0,0 +1,11 @@
+package org.vinni.servidor;
+
+/**
+ * Recibe lo que pasa en un {@link ServidorChat}; lo implementa la GUI o el
+ * arranque sin interfaz. Se invoca desde los hilos de red: no debe bloquear.
+ */
+public interface ObservadorServidor {
+
+    /** Línea de log (termina en salto de línea). */
+    void log(String msg);
+}
@@ -0,0 +1,47 @@
+package org.vinni.servidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Apertura del puerto del chat, común a ambos motores.
+ *
+ * Con -Dserver.reusePort=true el socket se abre con SO_REUSEPORT: varios procesos
+ * (los trabajadores que lanza el Monitor con monitor.sharedPort) y, en el motor
+ * NIO, varios bucles de un mismo proceso escuchan en el mismo puerto y el kernel
+ * reparte las conexiones nuevas entre ellos. Los clientes usan un solo puerto.
+ */
+public final class PuertoServidor {
+
+    private PuertoServidor() {}
+
+    /** true si el puerto se comparte con SO_REUSEPORT. */
+    public static boolean compartido() {
+        return Boolean.getBoolean("server.reusePort");
+    }
+
+    /**
+     * Socket de escucha en modo bloqueante, ya con el bind hecho.
+     *
+     * @throws IOException si el puerto está ocupado, o si se pidió compartirlo y el
+     *                     sistema no soporta SO_REUSEPORT
+     */
+    public static ServerSocketChannel abrir(int puerto) throws IOException {
+        ServerSocketChannel canal = ServerSocketChannel.open();
+        try {
+            if (compartido()) {
+                if (!canal.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT no está soportado en este sistema");
+                }
+                canal.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            canal.bind(new InetSocketAddress(puerto));
+            return canal;
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+    }
+}
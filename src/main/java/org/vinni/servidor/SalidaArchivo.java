@@ -0,0 +1,23 @@
+package org.vinni.servidor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destino de los bytes de un FILE que no es una conexión de este servidor: el
+ * {@link Spool} (destinatario desconectado) o la {@link Federacion} (destinatario
+ * en otra instancia). El motor de red le pasa los bytes a medida que llegan.
+ */
+public interface SalidaArchivo {
+
+    /** Consume los bytes restantes del buffer; un error se informa al confirmar. */
+    void escribir(ByteBuffer b);
+
+    /** Llegó el archivo completo; false si no se pudo guardar o reenviar entero. */
+    boolean confirmar();
+
+    /** El remitente se cortó: se descarta lo recibido. */
+    void descartar();
+
+    /** Aclaración para el log, p. ej. " (diferido)". */
+    String etiqueta();
+}
@@ -0,0 +1,103 @@
+package org.vinni.servidor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Las {@link Metricas} en texto plano por TCP, en el puerto propio +
+ * server.stats.portOffset (2000): se conecta, se lee y se cierra. Sirve tanto
+ * {@code nc localhost 7000} como {@code curl http://localhost:7000/} (si lo
+ * primero que llega es un GET se contesta con cabecera HTTP).
+ *
+ * Un solo hilo atiende de a una conexión: es para mirar, no para sondear rápido.
+ * Configuración: server.stats.enabled (false), server.stats.portOffset (2000).
+ */
+class ServicioEstadisticas {
+    // Cuánto se espera un pedido HTTP antes de contestar en crudo (nc no manda nada)
+    private static final int ESPERA_PEDIDO_MS = 200;
+
+    private final ServerSocket servidor;
+    private final Metricas metricas;
+
+    private ServicioEstadisticas(ServerSocket servidor, Metricas metricas) {
+        this.servidor = servidor;
+        this.metricas = metricas;
+    }
+
+    /** null si está deshabilitado. */
+    static ServicioEstadisticas iniciar(int puertoPropio, Metricas metricas) throws IOException {
+        if (!Boolean.getBoolean("server.stats.enabled")) return null;
+        int puerto = puertoPropio + Integer.getInteger("server.stats.portOffset", 2000);
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        try {
+            ss.bind(new InetSocketAddress(puerto));
+        } catch (IOException e) {
+            ss.close();
+            throw e;
+        }
+        ServicioEstadisticas s = new ServicioEstadisticas(ss, metricas);
+        Thread t = new Thread(s::atender, "Srv-Stats");
+        t.setDaemon(true);
+        t.start();
+        return s;
+    }
+
+    int getPuerto() {
+        return servidor.getLocalPort();
+    }
+
+    private void atender() {
+        while (!servidor.isClosed()) {
+            try (Socket s = servidor.accept()) {
+                s.setSoTimeout(ESPERA_PEDIDO_MS);
+                boolean http = esGet(s.getInputStream());
+                byte[] cuerpo = metricas.resumen().getBytes(StandardCharsets.UTF_8);
+                OutputStream os = s.getOutputStream();
+                if (http) {
+                    os.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                            + cuerpo.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                os.write(cuerpo);
+                os.flush();
+            } catch (IOException ignored) {
+                // cliente que se fue o puerto cerrado: el while lo decide
+            }
+        }
+    }
+
+    /** Lee el pedido hasta la línea en blanco si empieza con "GET "; false si no llega nada. */
+    private static boolean esGet(InputStream in) throws IOException {
+        byte[] inicio = new byte[4];
+        int n = 0;
+        try {
+            while (n < inicio.length) {
+                int r = in.read(inicio, n, inicio.length - n);
+                if (r < 0) return false;
+                n += r;
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        if (!"GET ".equals(new String(inicio, StandardCharsets.US_ASCII))) return false;
+        // Consumir las cabeceras: algunos clientes no leen la respuesta hasta terminar de mandar
+        int fin = 0;
+        try {
+            int b;
+            while (fin < 4 && (b = in.read()) >= 0) {
+                fin = (b == '\r' || b == '\n') ? fin + 1 : 0;
+            }
+        } catch (SocketTimeoutException ignored) {}
+        return true;
+    }
+
+    void detener() {
+        try { servidor.close(); } catch (IOException ignored) {}
+    }
+}
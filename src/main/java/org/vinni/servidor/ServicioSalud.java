@@ -0,0 +1,82 @@
+package org.vinni.servidor;
+
+import org.vinni.protocolo.Salud;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.function.IntSupplier;
+
+/**
+ * Contesta los PING de {@link Salud} en UDP, en el mismo número de puerto que el
+ * chat. Un solo hilo y dos buffers para todos los sondeos: un PING no crea
+ * conexión, ni handler, ni pasa por el saludo INGRESE_NOMBRE.
+ *
+ * Configuración: server.health.enabled (true).
+ */
+class ServicioSalud {
+    private final DatagramChannel canal;
+    private final IntSupplier clientes;
+    private final long inicio = System.currentTimeMillis();
+    private final OperatingSystemMXBean so = ManagementFactory.getOperatingSystemMXBean();
+    private volatile boolean corriendo = true;
+    private volatile byte estado = Salud.ESTADO_OK;
+
+    private ServicioSalud(DatagramChannel canal, IntSupplier clientes) {
+        this.canal = canal;
+        this.clientes = clientes;
+    }
+
+    /** null si está deshabilitado. */
+    static ServicioSalud iniciar(int puerto, IntSupplier clientes) throws IOException {
+        if (!Boolean.parseBoolean(System.getProperty("server.health.enabled", "true"))) return null;
+        DatagramChannel canal = DatagramChannel.open();
+        canal.bind(new InetSocketAddress(puerto));
+        ServicioSalud s = new ServicioSalud(canal, clientes);
+        Thread t = new Thread(s::atender, "Srv-Salud");
+        t.setDaemon(true);
+        t.start();
+        return s;
+    }
+
+    private void atender() {
+        ByteBuffer entrada = ByteBuffer.allocate(64);
+        ByteBuffer salida = ByteBuffer.allocate(Salud.LARGO_PONG);
+        while (corriendo) {
+            try {
+                entrada.clear();
+                SocketAddress origen = canal.receive(entrada);
+                entrada.flip();
+                Long nonce = Salud.leerPing(entrada);
+                if (nonce == null) continue;        // basura: no se contesta
+
+                Salud.pong(salida, nonce, estado(nonce));
+                canal.send(salida, origen);
+            } catch (IOException e) {
+                if (!canal.isOpen()) return;
+            }
+        }
+    }
+
+    private Salud.Estado estado(long nonce) {
+        double carga = so.getSystemLoadAverage();
+        Runtime rt = Runtime.getRuntime();
+        return new Salud.Estado(nonce, estado, clientes.getAsInt(),
+                carga < 0 ? -1 : (int) Math.round(carga * 100),
+                rt.totalMemory() - rt.freeMemory(), System.currentTimeMillis() - inicio);
+    }
+
+    /** Estado que se informa en los PONG (p. ej. {@link Salud#ESTADO_DRENANDO}). */
+    void setEstado(byte estado) {
+        this.estado = estado;
+    }
+
+    void detener() {
+        corriendo = false;
+        try { canal.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,767 @@
+package org.vinni.servidor;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.Salud;
+import org.vinni.servidor.hilos.MotorHilos;
+import org.vinni.servidor.nio.MotorNio;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Núcleo del servidor de chat, sin interfaz gráfica: motor de red, registro de
+ * clientes y enrutamiento de MSG/FILE. La GUI ({@code PrincipalSrv}) es opcional
+ * y se engancha como {@link ObservadorServidor}.
+ *
+ * El motor de red se elige con -Dserver.engine: "hilos" (por defecto, un hilo por
+ * cliente) o "nio" (selector con -Dserver.nio.threads bucles, uno por núcleo por defecto).
+ * A los clientes que lo acepten se les habla en binario (CodecBinario); con
+ * -Dserver.proto.binary=false todos usan el protocolo de texto. Con la versión 2
+ * los archivos van en bloques entre los mensajes, que no esperan a que terminen.
+ *
+ * Lo que se envía a un cliente que acaba de desconectarse se guarda en el
+ * {@link Spool} (server.spool.*) y se le entrega cuando vuelve con el mismo nombre,
+ * aunque vuelva por otra instancia: el directorio es compartido, y si algo se guarda
+ * cuando ya está en una hermana se le reenvía por la federación.
+ *
+ * En el mismo número de puerto, pero en UDP, contesta el ping de salud
+ * ({@link org.vinni.protocolo.Salud}) que usa el Monitor.
+ *
+ * Con -Dserver.federation.peers las instancias hermanas se comparten la lista de
+ * clientes y se reenvían los MSG/FILE entre sí ({@link Federacion}): un cliente
+ * ve y alcanza a todos aunque estén conectados a otro puerto.
+ *
+ * Con -Dserver.reusePort=true varios procesos comparten el puerto del chat
+ * ({@link PuertoServidor}); cada uno lleva -Dserver.worker=i y se identifica
+ * (ping de salud, federación) por {@link #getPuertoPropio()}.
+ *
+ * Las {@link Metricas} (mensajes y bytes por segundo, colas de salida, latencias
+ * de reenvío y de saludo) se publican por JMX y, con -Dserver.stats.enabled=true,
+ * en texto por TCP ({@link ServicioEstadisticas}).
+ *
+ * {@link #drenar(long)} apaga sin cortar a nadie: deja de aceptar y a cada cliente
+ * le dice a qué instancia pasarse (REDIRECT), así no reconectan todos a ciegas a la
+ * vez. Destinos en server.drain.redirect ("5001,5002" u "otrohost:5001"); si no
+ * hay, las hermanas de la federación o, con el puerto compartido, el mismo puerto.
+ *
+ * {@link #main} arranca sin cargar AWT/Swing (puerto en -Dserver.port, 5000 por
+ * defecto) y escribe el log en la salida estándar; es el main del jar del servidor
+ * y lo que lanza el Monitor. Con GUI: {@code java -cp <jar> org.vinni.servidor.gui.ArranqueSrv}
+ * (con -Dserver.autostart=true abre el puerto antes de cargar Swing).
+ */
+public class ServidorChat implements Enrutador {
+    /** Línea que escribe un proceso de reserva cuando ya está listo para tomar un puerto. */
+    public static final String EN_ESPERA = "EN ESPERA";
+    /**
+     * Orden (por la entrada estándar) para que la reserva abra el puerto: "BIND 5003",
+     * o "BIND 5000 2" para ser el trabajador 2 del puerto compartido 5000.
+     */
+    public static final String ORDEN_BIND = "BIND ";
+
+    // Cuántos clientes desconectados se recuerdan para diferirles envíos
+    private static final int MAX_RETIRADOS = 10_000;
+    // MSG diferidos por escritura al entregarlos
+    private static final int MAX_LOTE = 256;
+    // Porción de un archivo diferido que se reenvía a una hermana
+    private static final int BLOQUE_REENVIO = 64 * 1024;
+    // Ids de los clientes de otras instancias, lejos de los de las conexiones locales
+    private static final long ID_REMOTOS = 1L << 40;
+
+    // Map de clientes: nombre -> conexión (del motor de hilos o NIO)
+    private final Map<String, Conexion> clientes = new ConcurrentHashMap<>();
+    private final Map<Long, Conexion> clientesPorId = new ConcurrentHashMap<>();
+    // Altas/bajas agrupadas en DELTAs versionados
+    private final ListaClientes listaClientes = new ListaClientes();
+    private final List<ObservadorServidor> observadores = new CopyOnWriteArrayList<>();
+
+    // Store-and-forward (null si está deshabilitado o antes de abrir el puerto:
+    // su directorio depende del puerto propio) y clientes que se fueron hace poco
+    private volatile Spool spool;
+    private final Map<Long, String> retirados = recientes();
+    // Saludos nuevos por segundo (null = sin límite)
+    private final Admision admision = Admision.desdePropiedades();
+    private final Map<String, Long> ultimoId = recientes();
+
+    // Clientes conectados en otras instancias (federación)
+    private final Map<String, Remoto> remotos = new ConcurrentHashMap<>();
+    private final Map<Long, Remoto> remotosPorId = new ConcurrentHashMap<>();
+    private final AtomicLong secuenciaRemotos = new AtomicLong(ID_REMOTOS);
+
+    private final Metricas metricas = new Metricas(clientes::values, remotos::size);
+
+    private MotorHilos motorHilos;
+    private MotorNio motorNio;
+    private ServicioSalud salud;
+    private ServicioEstadisticas estadisticas;
+    private ObjectName nombreJmx;
+    private volatile Federacion federacion;
+    private volatile boolean corriendo;
+    private volatile int puerto;
+    private volatile int trabajador = Integer.getInteger("server.worker", -1);
+    private volatile long escuchandoDesde;      // currentTimeMillis al abrir el puerto
+
+    /** Cliente conectado en otra instancia, con un id local para la lista. */
+    private static final class Remoto {
+        final long id;
+        final String nombre;
+        final int nodo;
+
+        Remoto(long id, String nombre, int nodo) {
+            this.id = id;
+            this.nombre = nombre;
+            this.nodo = nodo;
+        }
+    }
+
+    private static <K, V> Map<K, V> recientes() {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> e) {
+                return size() > MAX_RETIRADOS;
+            }
+        });
+    }
+
+    public void agregarObservador(ObservadorServidor o) {
+        observadores.add(o);
+    }
+
+    public boolean isCorriendo() {
+        return corriendo;
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    /**
+     * Puerto que identifica a esta instancia (ping de salud UDP y federación): el
+     * del chat, o si el puerto es compartido, el del chat + 1 + número de trabajador.
+     */
+    public int getPuertoPropio() {
+        return PuertoServidor.compartido() && trabajador >= 0 ? puerto + 1 + trabajador : puerto;
+    }
+
+    /**
+     * Milisegundos entre el arranque de la JVM y el último puerto abierto: el
+     * tiempo que una instancia relanzada tarda en volver a aceptar clientes.
+     */
+    public long msHastaEscuchar() {
+        return escuchandoDesde - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Abre el puerto con el motor configurado.
+     */
+    public synchronized void iniciar(int puerto) throws IOException {
+        if (corriendo) return;
+        this.puerto = puerto;
+        if (spool == null) {
+            Spool s = Spool.desdePropiedades();
+            if (s != null) {
+                s.setAlGuardar(this::entregarSiConectado);
+                s.setLog(this::log);
+            }
+            spool = s;
+        }
+        String modo = PuertoServidor.compartido() ? ", compartido, trabajador " + trabajador : "";
+
+        if (usarNio()) {
+            motorNio = new MotorNio(puerto, hilosNio(), this);
+            motorNio.iniciar();
+            corriendo = true;
+            log("Servidor iniciado en puerto " + puerto + " (motor nio, " + motorNio.getNumHilos() + " hilos" + modo + ")\n");
+        } else {
+            motorHilos = new MotorHilos(puerto, this);
+            motorHilos.iniciar();
+            corriendo = true;
+            log("Servidor iniciado en puerto " + puerto + (modo.isEmpty() ? "" : " (" + modo.substring(2) + ")") + "\n");
+        }
+        if (admision != null) log("Admisión limitada a " + System.getProperty("server.admission.rate") + " conexiones/s\n");
+        escuchandoDesde = System.currentTimeMillis();
+
+        int propio = getPuertoPropio();
+        try {
+            salud = ServicioSalud.iniciar(propio, clientes::size);
+        } catch (IOException e) {
+            // El chat funciona igual; el Monitor puede sondear por TCP
+            log("Ping de salud no disponible en UDP " + propio + ": " + e.getMessage() + "\n");
+        }
+        try {
+            federacion = Federacion.iniciar(propio, this);
+        } catch (IOException e) {
+            log("Federación no disponible: " + e.getMessage() + "\n");
+        }
+        try {
+            nombreJmx = metricas.registrarJmx(propio);
+        } catch (JMException e) {
+            log("Métricas JMX no disponibles: " + e.getMessage() + "\n");
+        }
+        try {
+            estadisticas = ServicioEstadisticas.iniciar(propio, metricas);
+            if (estadisticas != null) log("Estadísticas en texto en el puerto TCP " + estadisticas.getPuerto() + "\n");
+        } catch (IOException e) {
+            log("Estadísticas no disponibles: " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Apagado ordenado: deja de aceptar clientes y manda a cada uno un REDIRECT a
+     * otra instancia (repartidos por turnos). El aviso va al final de su cola
+     * ({@link Conexion#enviarAlFinal}): sale detrás de todo lo que el cliente ya
+     * tenía encolado, archivos y bloques DATOS incluidos, y el cliente termina lo
+     * que esté enviando antes de irse. Se espera a que se vayan hasta {@code plazoMs};
+     * lo que quede se cierra como en {@link #detener()}.
+     */
+    public void drenar(long plazoMs) {
+        synchronized (this) {
+            if (!corriendo) return;
+            if (motorHilos != null) motorHilos.detener();      // solo cierra el puerto
+            if (motorNio != null) motorNio.cerrarPuerto();
+            if (salud != null) salud.setEstado(Salud.ESTADO_DRENANDO);
+        }
+        List<InetSocketAddress> destinos = destinosRedireccion();
+        if (destinos.isEmpty()) {
+            log("Drenando: no hay otra instancia a la que redirigir.\n");
+        } else {
+            log("Drenando: " + clientes.size() + " clientes hacia " + describir(destinos) + "\n");
+            int i = 0;
+            for (Conexion c : clientes.values()) {
+                InetSocketAddress d = destinos.get(i++ % destinos.size());
+                c.enviarAlFinal(TramaCompartida.redireccion(d.getHostString(), d.getPort()));
+            }
+            long limite = System.currentTimeMillis() + plazoMs;
+            try {
+                while (!clientes.isEmpty() && System.currentTimeMillis() < limite) Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!clientes.isEmpty()) log("Drenaje: plazo vencido con " + clientes.size() + " clientes.\n");
+        }
+        detener();
+    }
+
+    /** A dónde redirigir (host vacío = el mismo al que el cliente está conectado). */
+    private List<InetSocketAddress> destinosRedireccion() {
+        List<InetSocketAddress> destinos = new ArrayList<>();
+        String conf = System.getProperty("server.drain.redirect", "").trim();
+        if (!conf.isEmpty()) {
+            for (String d : conf.split(",")) {
+                d = d.trim();
+                int dosPuntos = d.lastIndexOf(':');
+                String puertoTxt = d.substring(dosPuntos + 1).trim();
+                if (!puertoTxt.matches("\\d+")) continue;
+                String host = dosPuntos < 0 ? "" : d.substring(0, dosPuntos).trim();
+                destinos.add(InetSocketAddress.createUnresolved(host, Integer.parseInt(puertoTxt)));
+            }
+        } else if (PuertoServidor.compartido()) {
+            // Este proceso ya no escucha: el kernel manda la reconexión a otro trabajador
+            destinos.add(InetSocketAddress.createUnresolved("", puerto));
+        } else if (federacion != null) {
+            for (int p : federacion.nodosConectados()) destinos.add(InetSocketAddress.createUnresolved("", p));
+        }
+        return destinos;
+    }
+
+    private static String describir(List<InetSocketAddress> destinos) {
+        StringBuilder sb = new StringBuilder();
+        for (InetSocketAddress d : destinos) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(d.getHostString().isEmpty() ? "" : d.getHostString() + ":").append(d.getPort());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cierra el puerto y todas las conexiones de clientes.
+     */
+    public synchronized void detener() {
+        corriendo = false;
+        if (motorHilos != null) motorHilos.detener();
+        if (motorNio != null) motorNio.detener();
+        if (salud != null) salud.detener();
+        if (federacion != null) federacion.detener();
+        if (estadisticas != null) estadisticas.detener();
+        Metricas.retirarJmx(nombreJmx);
+        motorHilos = null;
+        motorNio = null;
+        salud = null;
+        federacion = null;
+        estadisticas = null;
+        nombreJmx = null;
+
+        for (Conexion ch : clientes.values()) ch.cerrarConexion();
+        clientes.clear();
+        clientesPorId.clear();
+        olvidarRemotos(r -> true);
+        log("Servidor detenido.\n");
+    }
+
+    private static boolean usarNio() {
+        return "nio".equalsIgnoreCase(System.getProperty("server.engine", "hilos").trim());
+    }
+
+    private static int hilosNio() {
+        try {
+            String v = System.getProperty("server.nio.threads");
+            if (v != null && !v.isBlank()) return Math.max(1, Integer.parseInt(v.trim()));
+        } catch (NumberFormatException ignored) {}
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /* -------------------- Envíos del propio servidor -------------------- */
+
+    /**
+     * Mensaje del servidor a todos los clientes.
+     */
+    public void enviarMensajeATodos(String texto) {
+        difundir(TramaCompartida.mensaje(CodecBinario.ID_SERVIDOR, "Servidor", texto), clientes.values());
+        log("Tú (Servidor): " + texto + "\n");
+    }
+
+    /**
+     * Archivo del servidor a todos los clientes: se abre una sola vez y cada
+     * conexión lo pasa del disco a su socket (transferTo), sin copiarlo al heap.
+     */
+    public void enviarArchivoATodos(File f) throws IOException {
+        ArchivoEnDisco archivo = ArchivoEnDisco.abrir(f.toPath(), () -> {});
+        TramaCompartida cabecera = TramaCompartida.cabeceraArchivo(CodecBinario.ID_SERVIDOR, "Servidor",
+                f.getName(), archivo.getTam());
+        try {
+            for (Conexion ch : clientes.values()) ch.enviarArchivo(cabecera, archivo);
+        } finally {
+            archivo.liberar();
+        }
+        log("Archivo enviado a todos: " + f.getName() + "\n");
+    }
+
+    /**
+     * Broadcast: la trama ya está codificada y cada destino la encola sin copiarla.
+     */
+    private static void difundir(TramaCompartida trama, Collection<Conexion> destinos) {
+        for (Conexion ch : destinos) ch.enviar(trama);
+    }
+
+    /* -------------------- Enrutamiento (común a ambos motores) -------------------- */
+
+    @Override
+    public Metricas getMetricas() {
+        return metricas;
+    }
+
+    @Override
+    public long admitir() {
+        long espera = admision != null ? admision.intentar() : 0;
+        if (espera > 0) metricas.rechazada();
+        else metricas.aceptada();
+        return espera;
+    }
+
+    @Override
+    public void registrar(Conexion c) {
+        clientes.put(c.getNombre(), c);
+        clientesPorId.put(c.getId(), c);
+        log(c.getNombre() + " conectado.\n");
+        listaClientes.alta(c);
+        Federacion f = federacion;
+        if (f != null) f.alta(c.getNombre());
+        entregarDiferidos(c);
+    }
+
+    @Override
+    public void retirar(Conexion c) {
+        if (clientes.remove(c.getNombre(), c)) {
+            retirados.put(c.getId(), c.getNombre());
+            ultimoId.put(c.getNombre(), c.getId());
+            Federacion f = federacion;
+            if (f != null) f.baja(c.getNombre());
+        }
+        clientesPorId.remove(c.getId(), c);
+        listaClientes.baja(c);
+    }
+
+    /* -------------------- Envíos diferidos -------------------- */
+
+    /**
+     * Entrega lo guardado para el cliente: los MSG seguidos van en lotes (una sola
+     * escritura), los archivos salen del disco. Al registrarse el cliente todavía no
+     * negoció el protocolo, así que esto le llega en texto, con nombres.
+     */
+    private void entregarDiferidos(Conexion c) {
+        if (spool != null) spool.retirar(c.getNombre(), diferidos -> entregar(c, diferidos));
+    }
+
+    /** Desde el hilo del spool. */
+    private void entregar(Conexion c, List<Spool.Diferido> diferidos) {
+        if (diferidos.isEmpty()) return;
+        List<TramaCompartida> lote = new ArrayList<>();
+        for (Spool.Diferido d : diferidos) {
+            Conexion rem = clientes.get(d.getRemitente());
+            long remitenteId = rem != null ? rem.getId() : CodecBinario.ID_SERVIDOR;
+            if (d.getArchivo() == null) {
+                lote.add(TramaCompartida.mensaje(remitenteId, d.getRemitente(), d.getTexto()));
+                if (lote.size() < MAX_LOTE) continue;
+            }
+            enviarLote(c, lote);
+            if (d.getArchivo() != null) {
+                TramaCompartida cabecera = TramaCompartida.cabeceraArchivo(remitenteId, d.getRemitente(),
+                        d.getTexto(), d.getArchivo().getTam());
+                try {
+                    c.enviarArchivo(cabecera, d.getArchivo());
+                } finally {
+                    d.getArchivo().liberar();
+                }
+            }
+        }
+        enviarLote(c, lote);
+        log("Entregados " + diferidos.size() + " envíos diferidos a " + c.getNombre() + "\n");
+    }
+
+    private static void enviarLote(Conexion c, List<TramaCompartida> lote) {
+        if (lote.isEmpty()) return;
+        c.enviar(TramaCompartida.lote(lote));
+        lote.clear();
+    }
+
+    /**
+     * Algo se guardó mientras el destinatario volvía a conectarse, aquí o en una
+     * hermana (que ya retiró lo que había cuando se registró).
+     */
+    private void entregarSiConectado(String nombre) {
+        Conexion c = clientes.get(nombre);
+        if (c != null) {
+            entregarDiferidos(c);
+            return;
+        }
+        Federacion f = federacion;
+        Remoto r = remotos.get(nombre);
+        if (spool == null || f == null || r == null || !f.nodosConectados().contains(r.nodo)) return;
+        spool.retirar(nombre, diferidos -> {
+            if (diferidos.isEmpty()) return;
+            for (Spool.Diferido d : diferidos) {
+                if (d.getArchivo() == null) f.mensaje(r.nodo, d.getRemitente(), nombre, d.getTexto());
+                else reenviarArchivo(f, r.nodo, nombre, d);
+            }
+            log("Reenviados " + diferidos.size() + " envíos diferidos a " + nombre
+                    + " (vía instancia " + r.nodo + ")\n");
+        });
+    }
+
+    /** Desde el hilo del spool: copia el archivo guardado al enlace y suelta la referencia. */
+    private static void reenviarArchivo(Federacion f, int nodo, String nombre, Spool.Diferido d) {
+        ArchivoEnDisco datos = d.getArchivo();
+        SalidaArchivo salida = f.archivo(List.of(nodo), d.getRemitente(), nombre, d.getTexto(), datos.getTam());
+        try {
+            if (salida == null) return;
+            ByteBuffer b = ByteBuffer.allocate(BLOQUE_REENVIO);
+            for (long pos = 0; pos < datos.getTam(); ) {
+                b.clear();
+                int n = datos.leer(pos, b);
+                if (n < 0) throw new IOException("Archivo incompleto");
+                b.flip();
+                salida.escribir(b);
+                pos += n;
+            }
+            salida.confirmar();
+        } catch (IOException e) {
+            salida.descartar();
+        } finally {
+            datos.liberar();
+        }
+    }
+
+    @Override
+    public SalidaArchivo salidaExterna(Conexion origen, long destino, String nombreArchivo, long tam,
+                                       boolean hayDestinosLocales) {
+        Federacion f = federacion;
+        if (destino == CodecBinario.ID_TODOS) {
+            return f != null ? f.archivo(f.nodos(), origen.getNombre(), "", nombreArchivo, tam) : null;
+        }
+        Remoto r = remotosPorId.get(destino);
+        if (r != null) {
+            return f != null ? f.archivo(List.of(r.nodo), origen.getNombre(), r.nombre, nombreArchivo, tam) : null;
+        }
+        String ausente = hayDestinosLocales ? null : retirados.get(destino);
+        if (spool == null || ausente == null) return null;
+        return spool.guardarArchivo(ausente, origen.getNombre(), nombreArchivo, tam);
+    }
+
+    @Override
+    public void enviarLista(Conexion c) {
+        listaClientes.enviarLista(c);
+    }
+
+    @Override
+    public void rutearMensaje(Conexion origen, long destino, String texto) {
+        metricas.mensajeEntrada();
+        Federacion f = federacion;
+        Remoto remoto = remotosPorId.get(destino);
+        if (remoto != null) {
+            boolean ok = f != null && f.mensaje(remoto.nodo, origen.getNombre(), remoto.nombre, texto);
+            log(origen.getNombre() + " -> " + remoto.nombre + (ok ? " (vía instancia " + remoto.nodo + ")"
+                    : " (sin enlace con la instancia " + remoto.nodo + ", se descarta)") + ": " + texto + "\n");
+            return;
+        }
+        if (destino == CodecBinario.ID_TODOS && f != null) f.mensajeATodos(origen.getNombre(), texto);
+
+        List<Conexion> lista = destinos(origen, destino);
+        if (lista.isEmpty() && destino != CodecBinario.ID_TODOS && spool != null) {
+            String ausente = retirados.get(destino);
+            if (ausente != null) {
+                spool.guardarMensaje(ausente, origen.getNombre(), texto);
+                log(origen.getNombre() + " -> " + ausente + " (diferido): " + texto + "\n");
+                return;
+            }
+        }
+        difundir(TramaCompartida.mensaje(origen.getId(), origen.getNombre(), texto), lista);
+        log(origen.getNombre() + " -> " + nombreDe(destino) + ": " + texto + "\n");
+    }
+
+    @Override
+    public List<Conexion> destinos(Conexion origen, long destino) {
+        List<Conexion> lista = new ArrayList<>();
+        if (destino == CodecBinario.ID_TODOS) {
+            for (Conexion ch : clientesPorId.values()) {
+                if (!ch.equals(origen)) lista.add(ch);
+            }
+            lista.sort(Comparator.comparingLong(Conexion::getId));
+        } else {
+            Conexion ch = clientesPorId.get(destino);
+            // Id viejo de alguien que ya volvió con otra conexión
+            if (ch == null && retirados.containsKey(destino)) ch = clientes.get(retirados.get(destino));
+            if (ch != null && !ch.equals(origen)) lista.add(ch);
+        }
+        return lista;
+    }
+
+    @Override
+    public long idDe(String nombre) {
+        if (nombre.equals("Todos")) return CodecBinario.ID_TODOS;
+        Conexion ch = clientes.get(nombre);
+        if (ch != null) return ch.getId();
+        Remoto r = remotos.get(nombre);
+        if (r != null) return r.id;
+        Long anterior = ultimoId.get(nombre);      // desconectado hace poco: se le puede diferir
+        return anterior != null ? anterior : ID_DESCONOCIDO;
+    }
+
+    @Override
+    public String nombreDe(long destino) {
+        if (destino == CodecBinario.ID_TODOS) return "Todos";
+        Conexion ch = clientesPorId.get(destino);
+        if (ch != null) return ch.getNombre();
+        Remoto r = remotosPorId.get(destino);
+        if (r != null) return r.nombre;
+        String ausente = retirados.get(destino);
+        return ausente != null ? ausente : "#" + destino;
+    }
+
+    /* -------------------- Federación -------------------- */
+
+    /** Nombres de los clientes locales, para la foto inicial de un enlace. */
+    List<String> nombresLocales() {
+        return new ArrayList<>(clientes.keySet());
+    }
+
+    void altaRemota(int nodo, String nombre) {
+        synchronized (remotos) {
+            Remoto r = remotos.get(nombre);
+            if (r != null && r.nodo == nodo) return;
+            if (r != null) quitarRemoto(r);       // se reconectó en otra instancia
+            r = new Remoto(secuenciaRemotos.incrementAndGet(), nombre, nodo);
+            remotos.put(nombre, r);
+            remotosPorId.put(r.id, r);
+            listaClientes.altaRemota(r.id, nombre);
+        }
+        log(nombre + " conectado en la instancia " + nodo + ".\n");
+        // Lo que se guardó aquí después de que la hermana retiró su buzón
+        entregarSiConectado(nombre);
+    }
+
+    void bajaRemota(int nodo, String nombre) {
+        synchronized (remotos) {
+            Remoto r = remotos.get(nombre);
+            if (r != null && r.nodo == nodo) quitarRemoto(r);
+        }
+    }
+
+    /** La instancia se cayó (o vuelve a mandar su foto completa): salen todos sus clientes. */
+    void olvidarNodo(int nodo) {
+        olvidarRemotos(r -> r.nodo == nodo);
+    }
+
+    private void olvidarRemotos(Predicate<Remoto> cuales) {
+        synchronized (remotos) {
+            for (Remoto r : new ArrayList<>(remotos.values())) {
+                if (cuales.test(r)) quitarRemoto(r);
+            }
+        }
+    }
+
+    private void quitarRemoto(Remoto r) {
+        remotos.remove(r.nombre, r);
+        remotosPorId.remove(r.id);
+        listaClientes.bajaRemota(r.id);
+    }
+
+    /** MSG que llega de otra instancia ({@code destino} vacío = Todos). */
+    void mensajeRemoto(String remitente, String destino, String texto) {
+        TramaCompartida trama = TramaCompartida.mensaje(idRemitente(remitente), remitente, texto);
+        if (destino.isEmpty()) {
+            difundir(trama, clientes.values());
+            log(remitente + " -> Todos: " + texto + "\n");
+            return;
+        }
+        Conexion c = clientes.get(destino);
+        if (c != null) {
+            difundir(trama, List.of(c));
+            log(remitente + " -> " + destino + ": " + texto + "\n");
+            return;
+        }
+        // Se fue entre el envío y la llegada: se le guarda como a cualquier ausente
+        if (spool != null && ultimoId.containsKey(destino)) {
+            spool.guardarMensaje(destino, remitente, texto);
+            log(remitente + " -> " + destino + " (diferido): " + texto + "\n");
+        }
+    }
+
+    /** FILE que llega completo de otra instancia; quien lo llama suelta su referencia. */
+    void archivoRemoto(String remitente, String destino, String nombreArchivo, ArchivoEnDisco datos) {
+        Collection<Conexion> lista;
+        if (destino.isEmpty()) {
+            lista = clientes.values();
+        } else {
+            Conexion c = clientes.get(destino);
+            lista = c != null ? List.of(c) : List.of();
+        }
+        TramaCompartida cabecera = TramaCompartida.cabeceraArchivo(idRemitente(remitente), remitente,
+                nombreArchivo, datos.getTam());
+        for (Conexion c : lista) c.enviarArchivo(cabecera, datos);
+        log(remitente + " envió archivo a " + (destino.isEmpty() ? "Todos" : destino)
+                + (lista.isEmpty() ? " (no está conectado, se descarta)" : "") + ": " + nombreArchivo + "\n");
+    }
+
+    private long idRemitente(String nombre) {
+        Remoto r = remotos.get(nombre);
+        return r != null ? r.id : CodecBinario.ID_SERVIDOR;
+    }
+
+    @Override
+    public void log(String msg) {
+        for (ObservadorServidor o : observadores) o.log(msg);
+    }
+
+    /**
+     * Arranque sin interfaz gráfica. En reserva (-Dserver.standby=true o la variable
+     * de entorno CHAT_STANDBY=1, que pone el Monitor) el puerto llega después por
+     * la entrada estándar; ver {@link #esperarPuerto()}.
+     */
+    public static void main(String[] args) {
+        int puerto = Integer.getInteger("server.port", 5000);
+        ServidorChat servidor = new ServidorChat();
+        servidor.agregarObservador(System.out::print);
+        boolean reserva = Boolean.getBoolean("server.standby") || "1".equals(System.getenv("CHAT_STANDBY"));
+        if (reserva) {
+            int[] orden = esperarPuerto();
+            if (orden == null) return;      // el Monitor cerró la entrada: ya no hace falta
+            puerto = orden[0];
+            if (orden.length > 1) servidor.trabajador = orden[1];
+        }
+        try {
+            servidor.iniciar(puerto);
+        } catch (IOException e) {
+            System.err.println("Error iniciando servidor: " + e.getMessage());
+            System.exit(1);
+        }
+        if (!reserva) servidor.log("Escuchando a los " + servidor.msHastaEscuchar() + " ms del arranque de la JVM\n");
+
+        // Corrida de medición o de entrenamiento del archivo CDS (perfil cds del pom)
+        if (Boolean.getBoolean("server.exitAfterStart")) {
+            servidor.detener();
+            System.exit(0);
+        }
+        // SIGTERM (p. ej. kill o el Monitor): apagado ordenado
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servidor.drenar(plazoDrenajeMs()), "Srv-Shutdown"));
+    }
+
+    /** Plazo para que los clientes se vayan al drenar: server.drain.timeoutSeconds (30). */
+    public static long plazoDrenajeMs() {
+        return Math.max(0, Long.getLong("server.drain.timeoutSeconds", 30)) * 1000;
+    }
+
+    /**
+     * Proceso de reserva: deja cargado lo que usa el servidor sin abrir ningún
+     * puerto, avisa {@link #EN_ESPERA} y espera "BIND &lt;puerto&gt;" en la entrada
+     * estándar. Así tomar el puerto de una instancia caída cuesta poco más que el bind.
+     *
+     * @return el puerto pedido (y el número de trabajador, si vino), o null si la entrada se cerró antes
+     */
+    private static int[] esperarPuerto() {
+        precargar();
+        System.out.println(EN_ESPERA);
+        System.out.flush();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String linea;
+            while ((linea = in.readLine()) != null) {
+                if (!linea.startsWith(ORDEN_BIND)) continue;
+                String[] partes = linea.substring(ORDEN_BIND.length()).trim().split("\\s+");
+                try {
+                    int[] orden = new int[partes.length > 1 ? 2 : 1];
+                    for (int i = 0; i < orden.length; i++) orden[i] = Integer.parseInt(partes[i]);
+                    return orden;
+                } catch (NumberFormatException ignored) {}
+            }
+        } catch (IOException ignored) {}
+        return null;
+    }
+
+    /** Carga e inicializa las clases de ambos motores y del protocolo, y el proveedor de NIO. */
+    private static void precargar() {
+        String[] clases = {
+                "org.vinni.servidor.hilos.MotorHilos", "org.vinni.servidor.hilos.ConexionHilos",
+                "org.vinni.servidor.hilos.TramaBio", "org.vinni.servidor.hilos.ArchivoBio",
+                "org.vinni.servidor.nio.MotorNio", "org.vinni.servidor.nio.ConexionNio",
+                "org.vinni.servidor.nio.BucleEventos", "org.vinni.servidor.nio.ArchivoNio",
+                "org.vinni.servidor.ColaSalida", "org.vinni.servidor.TramaCompartida",
+                "org.vinni.servidor.ServicioSalud", "org.vinni.servidor.Federacion",
+                "org.vinni.servidor.PuertoServidor", "org.vinni.servidor.Metricas",
+                "org.vinni.servidor.Histograma",
+                "org.vinni.protocolo.CodecBinario",
+                "org.vinni.protocolo.LectorBinario", "org.vinni.protocolo.TramaUtf",
+                "org.vinni.protocolo.Salud"
+        };
+        ClassLoader cl = ServidorChat.class.getClassLoader();
+        for (String c : clases) {
+            try { Class.forName(c, true, cl); } catch (ClassNotFoundException ignored) {}
+        }
+        try {
+            ServerSocketChannel.open().close();
+            DatagramChannel.open().close();
+            Selector.open().close();
+        } catch (IOException ignored) {}
+        TramaCompartida.mensaje(CodecBinario.ID_SERVIDOR, "Servidor", "").largo(true);
+    }
+}
@@ -0,0 +1,516 @@
+package org.vinni.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Buzón en disco para destinatarios desconectados (store-and-forward). Lo que se
+ * envía a un cliente que acaba de irse (p. ej. mientras reintenta conectarse) se
+ * guarda y se le entrega todo junto cuando vuelve a registrarse con ese nombre.
+ *
+ * Por destinatario hay un directorio con segmentos de solo agregado (NNN.seg)
+ * que guardan los MSG y las cabeceras FILE; los bytes de cada archivo van aparte
+ * (NNN.dat) y se reenvían desde disco, sin que el remitente los vuelva a mandar.
+ * Un segmento vencido se borra entero: todo lo que tiene es anterior a su
+ * última modificación.
+ *
+ * El directorio lo comparten todas las instancias (el cliente puede volver por
+ * otro puerto): cada operación sobre un buzón toma el bloqueo de su archivo
+ * "bloqueo" y lee el estado del disco, sin guardar nada de una vez a la otra.
+ * Todo el trabajo de disco lo hace el hilo Srv-Spool, en el orden en que se
+ * pidió; los hilos de red solo encolan.
+ *
+ * Configuración (propiedades del sistema):
+ *  - server.spool.enabled      false para no guardar nada (true)
+ *  - server.spool.dir          directorio compartido por las instancias (spool)
+ *  - server.spool.maxBytes     tope por destinatario (268435456)
+ *  - server.spool.ttlSeconds   antigüedad máxima de lo guardado (86400)
+ *  - server.spool.segmentBytes tamaño de un segmento antes de abrir otro (4194304)
+ */
+public class Spool {
+    private static final byte MSG = 1;
+    private static final byte FILE = 2;
+    private static final String BLOQUEO = "bloqueo";
+    private static final String ENTREGANDO = ".entregando";
+
+    /** FileLock es por proceso: entre Spools del mismo proceso se excluyen con estos monitores. */
+    private static final Map<Path, Object> MONITORES = new ConcurrentHashMap<>();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final long segmentoBytes;
+    private final Map<String, Buzon> buzones = new ConcurrentHashMap<>();
+    private volatile Consumer<String> alGuardar = destinatario -> {};
+    private volatile Consumer<String> log = msg -> {};
+
+    private final ScheduledExecutorService disco = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Srv-Spool");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Spool(Path dir, long maxBytes, long ttlMs, long segmentoBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.segmentoBytes = segmentoBytes;
+        long cada = Math.max(1000, Math.min(ttlMs, 60_000));
+        disco.scheduleWithFixedDelay(this::limpiar, 0, cada, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Spool configurado con las propiedades server.spool.*; null si está deshabilitado.
+     */
+    public static Spool desdePropiedades() {
+        if (!Boolean.parseBoolean(System.getProperty("server.spool.enabled", "true"))) return null;
+        return new Spool(Paths.get(System.getProperty("server.spool.dir", "spool")),
+                longProp("server.spool.maxBytes", 256L * 1024 * 1024),
+                longProp("server.spool.ttlSeconds", 86_400) * 1000,
+                longProp("server.spool.segmentBytes", 4L * 1024 * 1024));
+    }
+
+    /** Se invoca (con el destinatario, desde el hilo del spool) cada vez que se guarda algo. */
+    public void setAlGuardar(Consumer<String> alGuardar) {
+        this.alGuardar = alGuardar;
+    }
+
+    /** Dónde avisar lo que no se pudo guardar. */
+    public void setLog(Consumer<String> log) {
+        this.log = log;
+    }
+
+    /**
+     * Guarda un MSG en segundo plano; si supera el tope del destinatario o falla
+     * el disco, se avisa en el log.
+     */
+    public void guardarMensaje(String destinatario, String remitente, String texto) {
+        ByteBuffer r = registro(MSG, remitente, texto, 0, null);
+        disco.execute(() -> {
+            if (buzon(destinatario).agregar(r)) alGuardar.accept(destinatario);
+            else log.accept("No se pudo guardar un MSG de " + remitente + " para " + destinatario + "\n");
+        });
+    }
+
+    /**
+     * Empieza a guardar un FILE de {@code tam} bytes. Si no entra en el tope se
+     * sabe recién en el hilo del spool: lo recibido se descarta y se avisa en el log.
+     */
+    public Escritura guardarArchivo(String destinatario, String remitente, String nombreArchivo, long tam) {
+        return new Escritura(buzon(destinatario), remitente, nombreArchivo, tam);
+    }
+
+    /**
+     * Saca todo lo pendiente (y vigente) para el destinatario, en orden de llegada,
+     * y se lo pasa a {@code entregar} (quizá vacío) desde el hilo del spool. Los archivos se
+     * borran del disco cuando se suelta su última referencia.
+     */
+    public void retirar(String destinatario, Consumer<List<Diferido>> entregar) {
+        disco.execute(() -> {
+            Path d = dir.resolve(carpeta(destinatario));
+            boolean hay = buzones.containsKey(destinatario) || Files.isDirectory(d);
+            entregar.accept(hay ? buzon(destinatario).retirar() : Collections.emptyList());
+        });
+    }
+
+    private Buzon buzon(String destinatario) {
+        return buzones.computeIfAbsent(destinatario, n -> new Buzon(dir.resolve(carpeta(n))));
+    }
+
+    /**
+     * Borra lo vencido de todos los destinatarios (también de otras instancias y
+     * de ejecuciones anteriores).
+     */
+    private void limpiar() {
+        if (!Files.isDirectory(dir)) return;
+        long limite = System.currentTimeMillis() - ttlMs;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path d : ds) {
+                String nombre = destinatario(d.getFileName().toString());
+                if (nombre != null) buzon(nombre).limpiar(limite);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    /* -------------------- Formato -------------------- */
+
+    /**
+     * Registro de un segmento: largo(int) creado(long) tipo(byte) remitente texto|nombreArchivo
+     * y, si es FILE, tam(long) y el nombre del .dat. Los textos van como largo(int) + UTF-8.
+     */
+    private static ByteBuffer registro(byte tipo, String remitente, String texto, long tam, String dat) {
+        byte[] r = remitente.getBytes(StandardCharsets.UTF_8);
+        byte[] t = texto.getBytes(StandardCharsets.UTF_8);
+        byte[] d = dat != null ? dat.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int largo = 8 + 1 + 4 + r.length + 4 + t.length + (tipo == FILE ? 8 + 4 + d.length : 0);
+        ByteBuffer b = ByteBuffer.allocate(4 + largo);
+        b.putInt(largo).putLong(System.currentTimeMillis()).put(tipo);
+        b.putInt(r.length).put(r).putInt(t.length).put(t);
+        if (tipo == FILE) b.putLong(tam).putInt(d.length).put(d);
+        b.flip();
+        return b;
+    }
+
+    private static String campo(ByteBuffer b) {
+        byte[] x = new byte[b.getInt()];
+        b.get(x);
+        return new String(x, StandardCharsets.UTF_8);
+    }
+
+    /** Nombre de carpeta seguro para cualquier nombre de cliente: su UTF-8 en hexadecimal. */
+    private static String carpeta(String destinatario) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : destinatario.getBytes(StandardCharsets.UTF_8)) sb.append(String.format("%02x", x));
+        return sb.toString();
+    }
+
+    private static String destinatario(String carpeta) {
+        if (carpeta.isEmpty() || carpeta.length() % 2 != 0) return null;
+        byte[] b = new byte[carpeta.length() / 2];
+        try {
+            for (int i = 0; i < b.length; i++) b[i] = (byte) Integer.parseInt(carpeta.substring(2 * i, 2 * i + 2), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static long longProp(String clave, long def) {
+        try {
+            String v = System.getProperty(clave);
+            if (v != null && !v.isBlank()) return Long.parseLong(v.trim());
+        } catch (NumberFormatException ignored) {}
+        return def;
+    }
+
+    /* -------------------- Buzón de un destinatario -------------------- */
+
+    /** Solo desde el hilo del spool; el estado está en el disco. */
+    private final class Buzon {
+        private final Path dir;
+
+        Buzon(Path dir) {
+            this.dir = dir;
+        }
+
+        /** Ejecuta {@code op} con el buzón bloqueado para las demás instancias. */
+        private <T> T bloqueado(Operacion<T> op) throws IOException {
+            synchronized (MONITORES.computeIfAbsent(dir.toAbsolutePath().normalize(), p -> new Object())) {
+                Files.createDirectories(dir);
+                try (FileChannel c = FileChannel.open(dir.resolve(BLOQUEO), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE); FileLock ignored = c.lock()) {
+                    return op.ejecutar();
+                }
+            }
+        }
+
+        /** Bytes que cuentan para el tope: segmentos y archivos todavía no retirados. */
+        private long tam() throws IOException {
+            long tam = 0;
+            for (Path p : archivos(".seg")) tam += Files.size(p);
+            for (Path p : archivos(".dat")) tam += Files.size(p);
+            return tam;
+        }
+
+        /** Nombre libre para un segmento o un .dat; con el bloqueo tomado. */
+        private Path nuevo(String extension) throws IOException {
+            long secuencia = 0;
+            for (Path p : archivos("")) secuencia = Math.max(secuencia, numero(p.getFileName().toString()));
+            return dir.resolve(String.format("%012d", secuencia + 1) + extension);
+        }
+
+        boolean hayLugar(long extra) {
+            try {
+                return bloqueado(() -> tam() + extra <= maxBytes);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** Archivo a medio recibir: nombre único, no cuenta ni se numera hasta confirmarlo. */
+        Path nuevoTemporal() throws IOException {
+            Files.createDirectories(dir);
+            return Files.createTempFile(dir, "recibiendo-", ".tmp");
+        }
+
+        /** Agrega un registro al último segmento (o a uno nuevo si está lleno); false si no entra. */
+        boolean agregar(ByteBuffer registro) {
+            try {
+                return bloqueado(() -> {
+                    if (tam() + registro.remaining() > maxBytes) return false;
+                    escribirRegistro(registro);
+                    return true;
+                });
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** Mueve el .tmp a un .dat numerado y agrega su registro; false si no entra. */
+        boolean agregarArchivo(Path tmp, String remitente, String nombreArchivo, long tam) {
+            try {
+                return bloqueado(() -> {
+                    Path dat = nuevo(".dat");
+                    ByteBuffer r = registro(FILE, remitente, nombreArchivo, tam, dat.getFileName().toString());
+                    if (tam() + r.remaining() + tam > maxBytes) return false;
+                    Files.move(tmp, dat, StandardCopyOption.ATOMIC_MOVE);
+                    try {
+                        escribirRegistro(r);
+                    } catch (IOException e) {
+                        borrar(dat);
+                        throw e;
+                    }
+                    return true;
+                });
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void escribirRegistro(ByteBuffer registro) throws IOException {
+            List<Path> segmentos = archivos(".seg");
+            Path seg = segmentos.isEmpty() ? null : segmentos.get(segmentos.size() - 1);
+            if (seg == null || Files.size(seg) >= segmentoBytes) seg = nuevo(".seg");
+            try (FileChannel c = FileChannel.open(seg, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                while (registro.hasRemaining()) c.write(registro);
+            }
+        }
+
+        List<Diferido> retirar() {
+            List<Diferido> diferidos = new ArrayList<>();
+            long limite = System.currentTimeMillis() - ttlMs;
+            try {
+                bloqueado(() -> {
+                    for (Path seg : archivos(".seg")) {
+                        leerSegmento(seg, limite, diferidos);
+                        Files.deleteIfExists(seg);
+                    }
+                    return null;
+                });
+            } catch (IOException ignored) {}
+            return diferidos;
+        }
+
+        private void leerSegmento(Path seg, long limite, List<Diferido> diferidos) throws IOException {
+            ByteBuffer b;
+            try (FileChannel c = FileChannel.open(seg, StandardOpenOption.READ)) {
+                b = ByteBuffer.allocate((int) c.size());
+                while (b.hasRemaining() && c.read(b) >= 0) {}
+            }
+            b.flip();
+            while (b.remaining() >= 4) {
+                int largo = b.getInt();
+                if (largo > b.remaining()) break;       // registro cortado (caída a mitad de escritura)
+                int fin = b.position() + largo;
+                long creado = b.getLong();
+                byte tipo = b.get();
+                String remitente = campo(b);
+                String texto = campo(b);
+                if (tipo == MSG) {
+                    if (creado >= limite) diferidos.add(new Diferido(remitente, texto, null));
+                } else if (tipo == FILE) {
+                    b.getLong();
+                    Path dat = dir.resolve(campo(b));
+                    if (creado >= limite && Files.exists(dat)) {
+                        // Ya retirado: deja de contar para el tope y de numerarse
+                        Path entregando = dir.resolve(dat.getFileName() + ENTREGANDO);
+                        Files.move(dat, entregando, StandardCopyOption.ATOMIC_MOVE);
+                        diferidos.add(new Diferido(remitente, texto, ArchivoEnDisco.abrir(entregando, () -> borrar(entregando))));
+                    } else {
+                        borrar(dat);
+                    }
+                }
+                b.position(fin);
+            }
+        }
+
+        /** Borra lo vencido; también los .tmp y .entregando que dejó una instancia caída. */
+        void limpiar(long limite) {
+            try {
+                bloqueado(() -> {
+                    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                        for (Path p : ds) {
+                            if (p.getFileName().toString().equals(BLOQUEO)) continue;
+                            if (Files.getLastModifiedTime(p).toMillis() < limite) Files.deleteIfExists(p);
+                        }
+                    }
+                    return null;
+                });
+            } catch (IOException ignored) {}
+        }
+
+        /** Segmentos o .dat ({@code extension} vacía: ambos), por número. */
+        private List<Path> archivos(String extension) throws IOException {
+            List<Path> lista = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    String n = p.getFileName().toString();
+                    if (!n.endsWith(".seg") && !n.endsWith(".dat")) continue;
+                    if (n.endsWith(extension)) lista.add(p);
+                }
+            }
+            lista.sort(null);       // el nombre es el número con ceros a la izquierda
+            return lista;
+        }
+
+        private long numero(String archivo) {
+            int punto = archivo.indexOf('.');
+            try {
+                return Long.parseLong(punto < 0 ? archivo : archivo.substring(0, punto));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    private interface Operacion<T> {
+        T ejecutar() throws IOException;
+    }
+
+    private static void borrar(Path p) {
+        try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+    }
+
+    /* -------------------- Tipos públicos -------------------- */
+
+    /**
+     * Algo pendiente de entregar: un MSG o (con {@link #getArchivo()} no null) un FILE.
+     */
+    public static final class Diferido {
+        private final String remitente;
+        private final String texto;
+        private final ArchivoEnDisco archivo;
+
+        private Diferido(String remitente, String texto, ArchivoEnDisco archivo) {
+            this.remitente = remitente;
+            this.texto = texto;
+            this.archivo = archivo;
+        }
+
+        public String getRemitente() {
+            return remitente;
+        }
+
+        /** Texto del MSG o nombre del archivo. */
+        public String getTexto() {
+            return texto;
+        }
+
+        /** Contenido del FILE (quien lo recibe tiene la referencia del creador); null en un MSG. */
+        public ArchivoEnDisco getArchivo() {
+            return archivo;
+        }
+    }
+
+    /**
+     * FILE que se va guardando a medida que llega del remitente. Primero va a un
+     * .tmp; solo al confirmarlo se agrega al segmento y queda para entregar. Los
+     * métodos solo encolan: abre, escribe y confirma el hilo del spool, así que
+     * {@link #confirmar()} no puede saber si se guardó (si no, lo avisa en el log).
+     */
+    public final class Escritura implements SalidaArchivo {
+        private final Buzon buzon;
+        private final String remitente, nombreArchivo;
+        private final long tam;
+        // Solo desde el hilo del spool
+        private Path tmp;
+        private FileChannel canal;
+        private long escritos;
+        private boolean fallo;
+
+        private Escritura(Buzon buzon, String remitente, String nombreArchivo, long tam) {
+            this.buzon = buzon;
+            this.remitente = remitente;
+            this.nombreArchivo = nombreArchivo;
+            this.tam = tam;
+            disco.execute(this::abrir);
+        }
+
+        private void abrir() {
+            try {
+                if (!buzon.hayLugar(tam)) {
+                    fallo = true;
+                    return;
+                }
+                tmp = buzon.nuevoTemporal();
+                canal = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                fallo = true;
+            }
+        }
+
+        /** Copia los bytes restantes del buffer (quien llama lo reutiliza); los escribe el hilo del spool. */
+        @Override
+        public void escribir(ByteBuffer b) {
+            ByteBuffer copia = ByteBuffer.allocate(b.remaining());
+            copia.put(b).flip();
+            disco.execute(() -> {
+                if (fallo) return;
+                try {
+                    while (copia.hasRemaining()) escritos += canal.write(copia);
+                } catch (IOException e) {
+                    fallo = true;
+                }
+            });
+        }
+
+        /** Encola el cierre; el resultado se conoce después, en el hilo del spool. */
+        @Override
+        public boolean confirmar() {
+            disco.execute(() -> {
+                cerrar();
+                if (!fallo && escritos == tam && buzon.agregarArchivo(tmp, remitente, nombreArchivo, tam)) {
+                    alGuardar.accept(destinatarioDe(buzon));
+                    return;
+                }
+                if (tmp != null) borrar(tmp);
+                log.accept("No se pudo guardar el archivo " + nombreArchivo + " de " + remitente
+                        + " para " + destinatarioDe(buzon) + "\n");
+            });
+            return true;
+        }
+
+        /** El remitente se cortó: se descarta lo recibido. */
+        @Override
+        public void descartar() {
+            disco.execute(() -> {
+                cerrar();
+                if (tmp != null) borrar(tmp);
+            });
+        }
+
+        private void cerrar() {
+            if (canal == null) return;
+            try { canal.close(); } catch (IOException e) { fallo = true; }
+            canal = null;
+        }
+
+        @Override
+        public String etiqueta() {
+            return " (diferido)";
+        }
+    }
+
+    private String destinatarioDe(Buzon b) {
+        return destinatario(b.dir.getFileName().toString());
+    }
+}
@@ -0,0 +1,195 @@
+package org.vinni.servidor;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.TramaUtf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Trama codificada una sola vez y compartida por todos sus destinos: cada
+ * conexión escribe los mismos bytes (vistas de solo lectura, sin copias).
+ * Se codifica a lo sumo dos veces, una por protocolo (texto writeUTF o
+ * {@link CodecBinario}), y solo cuando algún destino la necesita; el escritor de
+ * cada conexión elige la variante al momento de escribirla.
+ *
+ * No tiene recursos propios que soltar: es inmutable y la recoge el GC cuando
+ * ninguna cola la tiene. El contenido de un FILE no viaja en la trama: va aparte,
+ * como bloques de la transferencia o como {@link ArchivoEnDisco}, que sí cuenta
+ * referencias (borra su archivo temporal).
+ */
+public final class TramaCompartida {
+    private final boolean chat;
+    private final Supplier<String> texto;          // trama de texto (writeUTF)
+    private final Supplier<ByteBuffer> binario;    // null = igual que la de texto
+    private final TramaCompartida[] partes;         // lote: varias tramas seguidas
+    private final long creada;                      // nanoTime al crear un MSG (0 = no se mide)
+
+    // Ids de flujo (CodecBinario versión 2) únicos en el proceso, así cada conexión los ve distintos
+    private static final AtomicLong FLUJOS = new AtomicLong();
+    // Variante de texto de una trama que no entra en writeUTF (más de 64 KB)
+    private static final byte[] NO_CABE = new byte[0];
+
+    private volatile byte[] deTexto, binaria;
+    private long flujo;                             // solo en cabeceras FILE
+    private boolean lista;                          // LISTA o DELTA
+
+    private TramaCompartida(boolean chat, Supplier<String> texto, Supplier<ByteBuffer> binario) {
+        this.chat = chat;
+        this.texto = texto;
+        this.binario = binario;
+        this.partes = null;
+        this.creada = chat ? System.nanoTime() : 0;
+    }
+
+    private TramaCompartida(TramaCompartida[] partes) {
+        this.chat = false;
+        this.texto = null;
+        this.binario = null;
+        this.partes = partes;
+        this.creada = 0;
+    }
+
+    /** MSG de un cliente (o del servidor, con {@link CodecBinario#ID_SERVIDOR}); descartable con drop-oldest. */
+    public static TramaCompartida mensaje(long remitenteId, String remitente, String texto) {
+        return new TramaCompartida(true,
+                () -> "MSG:" + remitente + ":" + texto,
+                () -> CodecBinario.mensaje(remitenteId, texto));
+    }
+
+    /**
+     * Solo la cabecera FILE: los bytes los reenvía el flujo de la transferencia.
+     * Lleva un id de flujo nuevo, el mismo para todos los destinos que multiplexan.
+     */
+    public static TramaCompartida cabeceraArchivo(long remitenteId, String remitente, String nombreArchivo, long tam) {
+        long flujo = FLUJOS.incrementAndGet();
+        TramaCompartida t = new TramaCompartida(false,
+                () -> "FILE:" + remitente + ":" + nombreArchivo + ":" + tam,
+                () -> CodecBinario.archivo(remitenteId, nombreArchivo, tam, flujo));
+        t.flujo = flujo;
+        return t;
+    }
+
+    /** Lista completa en la versión dada (ids y nombres en el mismo orden). */
+    public static TramaCompartida lista(long version, long[] ids, String[] nombres) {
+        TramaCompartida t = new TramaCompartida(false,
+                () -> "LISTA:" + String.join(",", nombres),
+                () -> CodecBinario.lista(version, ids, nombres));
+        t.lista = true;
+        return t;
+    }
+
+    /**
+     * Cambios de la lista entre dos versiones (nombre null = baja). Los clientes
+     * de texto no entienden deltas: reciben la lista completa resultante.
+     */
+    public static TramaCompartida delta(long base, long version, long[] ids, String[] nombres, String[] todos) {
+        TramaCompartida t = new TramaCompartida(false,
+                () -> "LISTA:" + String.join(",", todos),
+                () -> CodecBinario.delta(base, version, ids, nombres));
+        t.lista = true;
+        return t;
+    }
+
+    /** La instancia se apaga: "REDIRECT:puerto:host" en texto (host vacío = el mismo). */
+    public static TramaCompartida redireccion(String host, int puerto) {
+        return new TramaCompartida(false,
+                () -> "REDIRECT:" + puerto + ":" + host,
+                () -> CodecBinario.redireccion(host, puerto));
+    }
+
+    /** Trama de texto fija, igual en ambos protocolos (INGRESE_NOMBRE, negociación). */
+    public static TramaCompartida control(String texto) {
+        return new TramaCompartida(false, () -> texto, null);
+    }
+
+    /**
+     * Varias tramas (sin datos aparte) escritas como una sola, p. ej. lo diferido
+     * para un cliente que vuelve. En texto se saltean las partes que no entran.
+     */
+    public static TramaCompartida lote(List<TramaCompartida> tramas) {
+        return new TramaCompartida(tramas.toArray(new TramaCompartida[0]));
+    }
+
+    public boolean esChat() {
+        return chat;
+    }
+
+    /** LISTA o DELTA: en cada cola hay a lo sumo una (ver {@link Conexion#enviarLista}). */
+    public boolean esLista() {
+        return lista;
+    }
+
+    /** Flujo de las tramas DATOS que siguen a esta cabecera FILE (0 si no es una). */
+    public long getFlujo() {
+        return flujo;
+    }
+
+    /** Para la latencia de reenvío: nanoTime en que se creó el MSG (0 si no es un MSG). */
+    public long getCreada() {
+        return creada;
+    }
+
+    /** Bytes de la trama en el protocolo pedido (la codifica si hace falta). */
+    public int largo(boolean binario) {
+        return cabecera(binario).length;
+    }
+
+    /**
+     * false si en ese protocolo no entra en una trama: en texto, writeUTF no admite
+     * más de 64 KB. El escritor no se la manda a ese destino y lo anota en el log;
+     * no se recorta, el cliente recibiría otro mensaje.
+     */
+    public boolean cabe(boolean binario) {
+        return cabecera(binario) != NO_CABE;
+    }
+
+    /**
+     * Cabecera codificada para el protocolo pedido (se codifica la primera vez;
+     * si dos hilos coinciden, ambos obtienen los mismos bytes).
+     */
+    private byte[] cabecera(boolean binaria) {
+        if (binario == null && partes == null) binaria = false;
+        byte[] c = binaria ? this.binaria : deTexto;
+        if (c != null) return c;
+
+        if (partes != null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for (TramaCompartida t : partes) bos.writeBytes(t.cabecera(binaria));     // NO_CABE no suma nada
+            c = bos.toByteArray();
+            if (binaria) this.binaria = c;
+            else deTexto = c;
+        } else if (binaria) {
+            c = binario.get().array();
+            this.binaria = c;
+        } else {
+            try {
+                c = TramaUtf.codificar(texto.get()).array();
+            } catch (UTFDataFormatException e) {
+                c = NO_CABE;
+            }
+            deTexto = c;
+        }
+        return c;
+    }
+
+    /**
+     * Buffers de solo lectura con posición propia, para un canal NIO.
+     */
+    public ByteBuffer[] vistas(boolean binario) {
+        return new ByteBuffer[] {ByteBuffer.wrap(cabecera(binario)).asReadOnlyBuffer()};
+    }
+
+    /**
+     * Escribe la trama completa en un stream bloqueante.
+     */
+    public void escribir(OutputStream os, boolean binario) throws IOException {
+        os.write(cabecera(binario));
+    }
+}
@@ -0,0 +1,42 @@
+package org.vinni.servidor.gui;
+
+import org.vinni.servidor.ServidorChat;
+
+import java.io.IOException;
+
+/**
+ * Arranque del servidor con GUI. Con -Dserver.autostart=true el puerto se abre
+ * aquí, antes de cargar una sola clase de AWT/Swing (PrincipalSrv es un JFrame:
+ * cargarla ya trae Swing), y la ventana se construye después con el servidor
+ * escuchando. Con -Djava.awt.headless=true no se abre ventana: es {@link ServidorChat#main}.
+ *
+ * Sin autostart es lo mismo que {@code PrincipalSrv.main}.
+ */
+public final class ArranqueSrv {
+    private ArranqueSrv() {}
+
+    public static void main(String[] args) {
+        if (Boolean.parseBoolean(System.getProperty("java.awt.headless", "false"))) {
+            ServidorChat.main(args);
+            return;
+        }
+        if (!Boolean.parseBoolean(System.getProperty("server.autostart", "false"))) {
+            PrincipalSrv.main(args);
+            return;
+        }
+
+        ServidorChat servidor = new ServidorChat();
+        try {
+            servidor.iniciar(Integer.getInteger("server.port", 5000));
+        } catch (IOException e) {
+            // La ventana queda para elegir otro puerto
+            System.err.println("Error iniciando servidor: " + e.getMessage());
+        }
+        abrirVentana(servidor);
+    }
+
+    /** Aparte para que Swing se cargue recién al llegar aquí. */
+    private static void abrirVentana(ServidorChat servidor) {
+        javax.swing.SwingUtilities.invokeLater(() -> new PrincipalSrv(servidor).setVisible(true));
+    }
+}
@@ -1,19 +1,38 @@
 package org.vinni.servidor.gui;
 
+import org.vinni.servidor.ServidorChat;
+
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Servidor TCP con GUI que permite múltiples clientes.
- * Los clientes pueden enviarse mensajes y archivos entre ellos,
- * pasando primero por el servidor.
+ * GUI opcional del servidor TCP: muestra el log y permite enviar mensajes y
+ * archivos a todos. La red y el enrutamiento están en {@link ServidorChat}, que
+ * también arranca sin interfaz (es lo que conviene para producción y el Monitor).
+ *
+ * Las líneas de log se acumulan y se agregan al área de texto a lo sumo cada
+ * INTERVALO_LOG_MS, y el área conserva solo los últimos MAX_LOG caracteres.
  */
 public class PrincipalSrv extends JFrame {
+    private static final int INTERVALO_LOG_MS = 200;
+    private static final int MAX_LOG = 200_000;
+
+    private final ServidorChat servidor;
+    private final Queue<String> pendientes = new ConcurrentLinkedQueue<>();
+    // Los envíos a todos pueden esperar a clientes lentos: nunca en el EDT
+    private final ExecutorService envios = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Srv-Gui-Envios");
+        t.setDaemon(true);
+        return t;
+    });
+
     // Área de texto para mostrar logs/mensajes
     private JTextArea areaMensajes;
     // Campo para puerto y mensajes de broadcast
@@ -21,15 +40,15 @@ public class PrincipalSrv extends JFrame {
     // Botones de control
     private JButton btnIniciar, btnDetener, btnEnviarMsg, btnEnviarArchivo;
 
-    // ServerSocket y flag de servidor corriendo
-    private ServerSocket serverSocket;
-    private final AtomicBoolean servidorCorriendo = new AtomicBoolean(false);
-
-    // Map de clientes: nombre -> ClienteHandler
-    private final Map<String, ClienteHandler> clientes = new ConcurrentHashMap<>();
-    private final Object sendLock = new Object();
-
     public PrincipalSrv() {
+        this(new ServidorChat());
+    }
+
+    /**
+     * Ventana para un servidor que puede venir ya escuchando (ver {@link ArranqueSrv}).
+     */
+    public PrincipalSrv(ServidorChat servidor) {
+        this.servidor = servidor;
         setTitle("Servidor TCP - Chat y Archivos");
         setSize(600, 420);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -40,6 +59,10 @@ public class PrincipalSrv extends JFrame {
         areaMensajes.setEditable(false);
         add(new JScrollPane(areaMensajes), BorderLayout.CENTER);
 
+        // El núcleo escribe el log desde los hilos de red; aquí se vuelca por tandas
+        servidor.agregarObservador(pendientes::add);
+        new Timer(INTERVALO_LOG_MS, e -> volcarLog()).start();
+
         // Panel superior: puerto y botones iniciar/detener
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         topPanel.add(new JLabel("Puerto:"));
@@ -78,8 +101,14 @@ public class PrincipalSrv extends JFrame {
             campoPuerto.setText(portProp.trim());
         }
 
-        String auto = System.getProperty("server.autostart", "false");
-        if (auto.equalsIgnoreCase("true")) {
+        if (servidor.isCorriendo()) {
+            // Lo abrió ArranqueSrv antes de cargar Swing
+            campoPuerto.setText(String.valueOf(servidor.getPuerto()));
+            btnIniciar.setEnabled(false);
+            btnDetener.setEnabled(true);
+            appendMensaje("Servidor escuchando en puerto " + servidor.getPuerto() + " desde antes de abrir la ventana ("
+                    + servidor.msHastaEscuchar() + " ms desde el arranque de la JVM)\n");
+        } else if (System.getProperty("server.autostart", "false").equalsIgnoreCase("true")) {
             SwingUtilities.invokeLater(this::iniciarServidor);
         }
     }
@@ -88,7 +117,7 @@ public class PrincipalSrv extends JFrame {
      * Inicia el servidor y acepta múltiples clientes.
      */
     private void iniciarServidor() {
-        if (servidorCorriendo.get()) return;
+        if (servidor.isCorriendo()) return;
 
         int puerto;
         try {
@@ -99,26 +128,9 @@ public class PrincipalSrv extends JFrame {
         }
 
         try {
-            serverSocket = new ServerSocket(puerto);
-            servidorCorriendo.set(true);
+            servidor.iniciar(puerto);
             btnIniciar.setEnabled(false);
             btnDetener.setEnabled(true);
-            appendMensaje("Servidor iniciado en puerto " + puerto + "\n");
-
-            // Hilo para aceptar clientes
-            new Thread(() -> {
-                while (servidorCorriendo.get()) {
-                    try {
-                        Socket clienteSocket = serverSocket.accept();
-                        ClienteHandler handler = new ClienteHandler(clienteSocket);
-                        handler.start();
-                    } catch (IOException e) {
-                        if (servidorCorriendo.get())
-                            appendMensaje("Error aceptando cliente: " + e.getMessage() + "\n");
-                    }
-                }
-            }, "Srv-Accept-Thread").start();
-
         } catch (IOException e) {
             appendMensaje("Error iniciando servidor: " + e.getMessage() + "\n");
         }
@@ -128,25 +140,22 @@ public class PrincipalSrv extends JFrame {
      * Detiene el servidor y cierra todas las conexiones de clientes.
      */
     private void detenerServidor() {
-        servidorCorriendo.set(false);
         btnIniciar.setEnabled(true);
         btnDetener.setEnabled(false);
         btnEnviarMsg.setEnabled(false);
         btnEnviarArchivo.setEnabled(false);
 
-        try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignored) {}
-
-        // Cerrar todos los clientes
-        for (ClienteHandler ch : clientes.values()) ch.cerrarConexion();
-        clientes.clear();
-        appendMensaje("Servidor detenido.\n");
-
-        // Cerrar GUI y salir del proceso para que el Monitor lo pueda reiniciar limpio
-        SwingUtilities.invokeLater(() -> {
-            try { setVisible(false); } catch (Exception ignored) {}
-            try { dispose(); } catch (Exception ignored) {}
-            System.exit(0);   // <- clave para que NO quede la ventana vieja
-        });
+        // Drenaje fuera del EDT: redirige a los clientes y espera a que se vayan
+        new Thread(() -> {
+            servidor.drenar(ServidorChat.plazoDrenajeMs());
+
+            // Cerrar GUI y salir del proceso para que el Monitor lo pueda reiniciar limpio
+            SwingUtilities.invokeLater(() -> {
+                try { setVisible(false); } catch (Exception ignored) {}
+                try { dispose(); } catch (Exception ignored) {}
+                System.exit(0);   // <- clave para que NO quede la ventana vieja
+            });
+        }, "Srv-Drenaje").start();
     }
 
 
@@ -157,12 +166,7 @@ public class PrincipalSrv extends JFrame {
         String texto = campoMensaje.getText().trim();
         if (texto.isEmpty()) return;
 
-        synchronized (sendLock) {
-            for (ClienteHandler ch : clientes.values()) {
-                ch.enviarMensaje("Servidor", texto);
-            }
-        }
-        appendMensaje("Tú (Servidor): " + texto + "\n");
+        envios.execute(() -> servidor.enviarMensajeATodos(texto));
         campoMensaje.setText("");
     }
 
@@ -179,168 +183,41 @@ public class PrincipalSrv extends JFrame {
             return;
         }
 
-        synchronized (sendLock) {
-            for (ClienteHandler ch : clientes.values()) {
-                ch.enviarArchivo("Servidor", f);
+        envios.execute(() -> {
+            try {
+                servidor.enviarArchivoATodos(f);
+            } catch (IOException e) {
+                appendMensaje("Error enviando archivo: " + e.getMessage() + "\n");
             }
-        }
-        appendMensaje("Archivo enviado a todos: " + f.getName() + "\n");
+        });
     }
 
     /**
-     * Agrega texto al área de mensajes.
+     * Agrega texto al área de mensajes (en la próxima tanda).
      */
     private void appendMensaje(String msg) {
-        SwingUtilities.invokeLater(() -> areaMensajes.append(msg));
+        pendientes.add(msg);
     }
 
     /**
-     * Clase interna para manejar un cliente individual.
+     * En el EDT: agrega de una vez lo acumulado y recorta lo más viejo.
      */
-    private class ClienteHandler extends Thread {
-        private Socket socket;
-        private DataOutputStream dos;
-        private DataInputStream dis;
-        private String nombre;
-
-        ClienteHandler(Socket s) {
-            this.socket = s;
-        }
-
-        @Override
-        public void run() {
-            try {
-                dos = new DataOutputStream(socket.getOutputStream());
-                dis = new DataInputStream(socket.getInputStream());
-
-                // Primero, recibir nombre del cliente
-                dos.writeUTF("INGRESE_NOMBRE"); // indicación al cliente
-                nombre = dis.readUTF().trim();
-                if (nombre.isEmpty()) nombre = "Cliente" + socket.getPort();
-
-                clientes.put(nombre, this);
-                appendMensaje(nombre + " conectado.\n");
-                actualizarListaClientes();
-
-                // Escuchar mensajes y archivos del cliente
-                while (!socket.isClosed()) {
-                    String mensaje = dis.readUTF();
-                    if (mensaje.startsWith("MSG:")) {
-                        // Formato: MSG:destino:texto
-                        String[] partes = mensaje.split(":", 3);
-                        String destino = partes[1];
-                        String texto = partes[2];
-
-                        if (destino.equals("Todos")) {
-                            for (ClienteHandler ch : clientes.values()) {
-                                if (!ch.equals(this)) ch.enviarMensaje(nombre, texto);
-                            }
-                        } else {
-                            ClienteHandler ch = clientes.get(destino);
-                            if (ch != null && !ch.equals(this)) ch.enviarMensaje(nombre, texto);
-                        }
-                        appendMensaje(nombre + " -> " + destino + ": " + texto + "\n");
-                    } else if (mensaje.startsWith("FILE:")) {
-                        // Formato: FILE:destino:nombreArchivo:tamaño
-                        String[] partes = mensaje.split(":", 4);
-                        String destino = partes[1];
-                        String nombreArchivo = partes[2];
-                        long tam = Long.parseLong(partes[3]);
-
-                        byte[] datos = new byte[(int) tam];
-                        dis.readFully(datos);
-
-                        if (destino.equals("Todos")) {
-                            for (ClienteHandler ch : clientes.values()) {
-                                if (!ch.equals(this)) ch.enviarArchivo(nombre, nombreArchivo, datos);
-                            }
-                        } else {
-                            ClienteHandler ch = clientes.get(destino);
-                            if (ch != null && !ch.equals(this)) ch.enviarArchivo(nombre, nombreArchivo, datos);
-                        }
-                        appendMensaje(nombre + " envió archivo a " + destino + ": " + nombreArchivo + "\n");
-                    }
-                }
-
-            } catch (IOException e) {
-                // Antes: appendMensaje((nombre != null ? nombre : socket.getRemoteSocketAddress()) + " desconectado.\n");
-                if (nombre != null) {                           // 👈 silencia sondas (sin nombre)
-                    appendMensaje(nombre + " desconectado.\n");
-                }
-            } finally {
-                cerrarConexion();
-            }
-
-
-        }
-
-        /**
-         * Envía mensaje a este cliente.
-         */
-        void enviarMensaje(String remitente, String texto) {
-            try {
-                dos.writeUTF("MSG:" + remitente + ":" + texto);
-                dos.flush();
-            } catch (IOException e) {
-                appendMensaje("Error enviando mensaje a " + nombre + ": " + e.getMessage() + "\n");
-            }
-        }
-
-        /**
-         * Envía un archivo desde archivo físico.
-         */
-        void enviarArchivo(String remitente, File f) {
-            try {
-                byte[] datos = new byte[(int) f.length()];
-                try (FileInputStream fis = new FileInputStream(f)) {
-                    fis.read(datos);
-                }
-                enviarArchivo(remitente, f.getName(), datos);
-            } catch (IOException e) {
-                appendMensaje("Error enviando archivo a " + nombre + ": " + e.getMessage() + "\n");
-            }
+    private void volcarLog() {
+        if (pendientes.isEmpty()) return;
+        StringBuilder sb = new StringBuilder();
+        String linea;
+        while ((linea = pendientes.poll()) != null) sb.append(linea);
+        if (sb.length() > MAX_LOG) {
+            areaMensajes.setText(sb.substring(sb.length() - MAX_LOG));
+            return;
         }
+        areaMensajes.append(sb.toString());
 
-        /**
-         * Envía archivo ya leído como byte array.
-         */
-        void enviarArchivo(String remitente, String nombreArchivo, byte[] datos) {
+        int sobra = areaMensajes.getDocument().getLength() - MAX_LOG;
+        if (sobra > 0) {
             try {
-                dos.writeUTF("FILE:" + remitente + ":" + nombreArchivo + ":" + datos.length);
-                dos.write(datos);
-                dos.flush();
-            } catch (IOException e) {
-                appendMensaje("Error enviando archivo a " + nombre + ": " + e.getMessage() + "\n");
-            }
-        }
-
-        /**
-         * Cierra conexión con el cliente.
-         */
-        void cerrarConexion() {
-            if (nombre != null) {                //  proteger clave null
-                clientes.remove(nombre);
-                actualizarListaClientes();
-            }
-            try { if (dis != null) dis.close(); } catch (IOException ignored) {}
-            try { if (dos != null) dos.close(); } catch (IOException ignored) {}
-            try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
-        }
-
-    }
-
-    /**
-     * Actualiza lista de clientes para todos.
-     */
-    private void actualizarListaClientes() {
-        String lista = String.join(",", clientes.keySet());
-        synchronized (sendLock) {
-            for (ClienteHandler ch : clientes.values()) {
-                try {
-                    ch.dos.writeUTF("LISTA:" + lista);
-                    ch.dos.flush();
-                } catch (IOException ignored) {}
-            }
+                areaMensajes.getDocument().remove(0, sobra);
+            } catch (BadLocationException ignored) {}
         }
     }
 
@@ -348,4 +225,3 @@ public class PrincipalSrv extends JFrame {
         SwingUtilities.invokeLater(() -> new PrincipalSrv().setVisible(true));
     }
 }
-
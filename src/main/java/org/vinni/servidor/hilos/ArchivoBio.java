@@ -0,0 +1,125 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.servidor.ArchivoEnDisco;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FILE cuyo contenido ya está en disco: tras la cabecera, los bytes pasan del
+ * archivo al socket con transferTo (sendfile) si el socket tiene canal; si no,
+ * se copian por bloques leyendo con posición propia. Si el destino multiplexa
+ * van en tramas DATOS: una por turno, y vuelve al final de la cola.
+ *
+ * Si el archivo se achicó en disco, al que multiplexa le llega un CORTE en
+ * lugar de la trama DATOS que ya no se puede completar; en línea, EOFException
+ * y el escritor cierra la conexión.
+ */
+class ArchivoBio implements SalidaBio {
+    private static final int BLOQUE = 64 * 1024;
+
+    private final ConexionHilos destino;
+    private final TramaCompartida cabecera;
+    private final ArchivoEnDisco datos;
+    private final SocketChannel canal;          // null: socket sin canal
+    private final AtomicBoolean liberado = new AtomicBoolean(false);
+    private ByteBuffer buffer;
+    private boolean empezado;
+    private boolean multiplexar;
+    private long enviados;
+    private long escritos;
+
+    /** La referencia a los datos ya la tomó quien lo encola. */
+    ArchivoBio(ConexionHilos destino, TramaCompartida cabecera, ArchivoEnDisco datos, SocketChannel canal) {
+        this.destino = destino;
+        this.cabecera = cabecera;
+        this.datos = datos;
+        this.canal = canal;
+    }
+
+    @Override
+    public void escribir(DataOutputStream dos, boolean binario) throws IOException {
+        boolean sigue = false;
+        try {
+            escritos = 0;
+            if (!empezado) {
+                empezado = true;
+                cabecera.escribir(dos, binario);
+                escritos = cabecera.largo(binario);
+                multiplexar = binario && destino.multiplexa();
+            }
+            if (!multiplexar) {
+                enviar(dos, datos.getTam());
+                return;
+            }
+            long hasta = Math.min(datos.getTam(), enviados + CodecBinario.BLOQUE);
+            if (hasta > enviados && datos.disponibles(enviados) < hasta - enviados) {
+                ByteBuffer corte = CodecBinario.corte(cabecera.getFlujo());
+                dos.write(corte.array(), 0, corte.limit());
+                escritos += corte.limit();
+                return;
+            }
+            if (hasta > enviados) {
+                ByteBuffer prefijo = CodecBinario.datos(cabecera.getFlujo(), (int) (hasta - enviados));
+                dos.write(prefijo.array(), 0, prefijo.limit());
+                escritos += prefijo.limit();
+                enviar(dos, hasta);
+            }
+            if (enviados < datos.getTam()) {
+                sigue = true;
+                destino.encolarMasivo(this);
+            }
+        } finally {
+            if (!sigue) liberar();
+        }
+    }
+
+    /** Copia el contenido hasta la posición {@code hasta}. */
+    private void enviar(DataOutputStream dos, long hasta) throws IOException {
+        if (canal != null) {
+            dos.flush();        // lo anterior tiene que salir antes que los bytes
+            while (enviados < hasta) {
+                long n = datos.transferir(enviados, hasta - enviados, canal);
+                if (n <= 0) throw new EOFException("Archivo incompleto");
+                enviados += n;
+                escritos += n;
+            }
+            return;
+        }
+        if (buffer == null) buffer = ByteBuffer.allocate((int) Math.min(BLOQUE, Math.max(datos.getTam(), 1)));
+        while (enviados < hasta) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), hasta - enviados));
+            int n = datos.leer(enviados, buffer);
+            if (n < 0) throw new EOFException("Archivo incompleto");
+            dos.write(buffer.array(), 0, n);
+            enviados += n;
+            escritos += n;
+        }
+    }
+
+    @Override
+    public boolean cabe(boolean binario) {
+        return empezado || cabecera.cabe(binario);
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public long escritos() {
+        return escritos;
+    }
+
+    @Override
+    public void liberar() {
+        if (liberado.compareAndSet(false, true)) datos.liberar();
+    }
+}
@@ -0,0 +1,408 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.protocolo.Canales;
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.LectorBinario;
+import org.vinni.servidor.ArchivoEnDisco;
+import org.vinni.servidor.ColaSalida;
+import org.vinni.servidor.Conexion;
+import org.vinni.servidor.Enrutador;
+import org.vinni.servidor.Metricas;
+import org.vinni.servidor.SalidaArchivo;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Cliente atendido por el motor de hilos.
+ * Su hilo solo lee del socket; lo que va hacia el cliente pasa por su cola de
+ * salida y lo escribe un hilo escritor propio.
+ */
+class ConexionHilos extends Thread implements Conexion {
+    // Tamaño de bloque para reenviar archivos sin cargarlos completos en memoria
+    private static final int BLOQUE_ARCHIVO = 64 * 1024;
+
+    // -Dserver.proto.binary=false: no ofrecer el protocolo binario (todos hablan texto)
+    private static final boolean OFRECER_BINARIO =
+            Boolean.parseBoolean(System.getProperty("server.proto.binary", "true"));
+
+    private final long id;
+    private final Enrutador enrutador;
+    private final Metricas metricas;
+    private final SocketChannel canal;
+    private final Socket socket;        // el del canal: puerto, cierre y estado
+    private final long aceptada = System.nanoTime();
+    private DataOutputStream dos;
+    private DataInputStream dis;
+    private String nombre;
+    private LectorBinario lector;       // no null desde que el cliente aceptó el protocolo binario
+    private int version;                // versión de CodecBinario que aceptó el cliente (0 = texto)
+    private boolean salidaBinaria;      // solo la toca el hilo escritor
+    private boolean multiplexa;         // ídem: versión 2, los archivos salen en tramas DATOS
+    // Versión 2: archivos en recepción por id de flujo (el que eligió el cliente); solo el hilo lector
+    private final Map<Long, Recepcion> entrantes = new HashMap<>();
+    private final ColaSalida<SalidaBio> cola =
+            ColaSalida.desdePropiedades(SalidaBio::esChat, SalidaBio::esMasivo, SalidaBio::liberar);
+    private volatile SalidaBio enCurso;
+
+    ConexionHilos(long id, SocketChannel canal, Enrutador enrutador) {
+        super("Srv-Cliente-" + id);
+        this.id = id;
+        this.canal = canal;
+        this.socket = canal.socket();
+        this.enrutador = enrutador;
+        this.metricas = enrutador.getMetricas();
+    }
+
+    @Override
+    public void run() {
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(Canales.salida(canal), BLOQUE_ARCHIVO));
+            dis = new DataInputStream(contarEntrada(Canales.entrada(canal)));
+            new Thread(this::escribirCola, "Srv-Writer-" + id).start();
+
+            // Primero, recibir nombre del cliente
+            encolar(new TramaBio(TramaCompartida.control("INGRESE_NOMBRE"))); // indicación al cliente
+            if (OFRECER_BINARIO) encolar(new TramaBio(TramaCompartida.control(CodecBinario.OFERTA)));
+            nombre = dis.readUTF().trim();
+            if (nombre.isEmpty()) nombre = "Cliente" + socket.getPort();
+
+            metricas.saludo(System.nanoTime() - aceptada);
+            enrutador.registrar(this);
+
+            // Escuchar mensajes y archivos del cliente
+            while (!socket.isClosed()) {
+                if (lector != null) {
+                    leerBinaria();
+                    continue;
+                }
+                String mensaje = dis.readUTF();
+                if (mensaje.startsWith("MSG:")) {
+                    // Formato: MSG:destino:texto
+                    String[] partes = mensaje.split(":", 3);
+                    enrutador.rutearMensaje(this, enrutador.idDe(partes[1]), partes[2]);
+                } else if (mensaje.startsWith("FILE:")) {
+                    // Formato: FILE:destino:nombreArchivo:tamaño
+                    String[] partes = mensaje.split(":", 4);
+                    reenviarArchivo(enrutador.idDe(partes[1]), partes[2], Long.parseLong(partes[3]));
+                } else if (OFRECER_BINARIO && CodecBinario.versionAceptada(mensaje) > 0) {
+                    // El cliente aceptó: lo que sigue en la entrada ya viene en binario
+                    version = CodecBinario.versionAceptada(mensaje);
+                    lector = new LectorBinario(dis);
+                    encolar(confirmacionBinaria());
+                    enrutador.enviarLista(this);      // con versión, para aplicar los DELTA
+                }
+            }
+
+        } catch (IOException e) {
+            // Antes: appendMensaje((nombre != null ? nombre : socket.getRemoteSocketAddress()) + " desconectado.\n");
+            if (nombre != null) {                           // 👈 silencia sondas (sin nombre)
+                enrutador.log(nombre + " desconectado.\n");
+            }
+        } catch (RuntimeException e) {
+            // Trama mal formada (p. ej. un tamaño negativo o un MSG de texto sin destino): error de protocolo
+            enrutador.log("Trama inválida de " + (nombre != null ? nombre : socket.getRemoteSocketAddress())
+                    + "; se cierra su conexión.\n");
+        } finally {
+            // Archivos multiplexados que el cliente dejó a medias
+            for (Recepcion r : entrantes.values()) r.abortar();
+            entrantes.clear();
+            cerrarConexion();
+        }
+
+
+    }
+
+    /** Lo que se lee del socket suma a los bytes de entrada del servidor. */
+    private InputStream contarEntrada(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) metricas.bytesEntrada(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) metricas.bytesEntrada(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Lee una trama binaria; para decidir el destino solo se leen el tipo y el id.
+     */
+    private void leerBinaria() throws IOException {
+        byte tipo = lector.leer();
+        ByteBuffer b = lector.cuerpo();
+        if (tipo == CodecBinario.MSG) {
+            long destino = CodecBinario.getVarint(b);
+            enrutador.rutearMensaje(this, destino, CodecBinario.getTexto(b, b.remaining()));
+        } else if (tipo == CodecBinario.FILE) {
+            long destino = CodecBinario.getVarint(b);
+            String nombreArchivo = CodecBinario.getCampo(b);
+            long tam = CodecBinario.getVarint(b);
+            long flujo = b.hasRemaining() ? CodecBinario.getVarint(b) : 0;
+            if (version < 2) {
+                reenviarArchivo(destino, nombreArchivo, tam);
+                return;
+            }
+            // El contenido llega después en tramas DATOS de su flujo, entre otras tramas
+            Recepcion r = new Recepcion(destino, nombreArchivo, tam);
+            if (r.completa()) r.terminar();
+            else entrantes.put(flujo, r);
+        } else if (tipo == CodecBinario.DATOS && version >= 2) {
+            long flujo = CodecBinario.getVarint(b);
+            Recepcion r = entrantes.get(flujo);
+            if (r == null) return;
+            r.repartir(b.array(), b.position(), b.remaining());
+            if (r.completa()) entrantes.remove(flujo).terminar();
+        } else if (tipo == CodecBinario.CORTE && version >= 2) {
+            Recepcion r = entrantes.remove(CodecBinario.getVarint(b));
+            if (r != null) {
+                r.abortar();
+                enrutador.log("Archivo de " + nombre + " a " + enrutador.nombreDe(r.destino)
+                        + " cancelado: " + r.nombreArchivo + "\n");
+            }
+        } else if (tipo == CodecBinario.LISTA) {
+            enrutador.enviarLista(this);
+        }
+        // Tipos desconocidos se saltean (versiones futuras)
+    }
+
+    /**
+     * Última trama de texto hacia el cliente; al escribirla la salida pasa a binario.
+     */
+    private SalidaBio confirmacionBinaria() {
+        TramaBio texto = new TramaBio(TramaCompartida.control(CodecBinario.CONFIRMACION));
+        int v = version;
+        return (d, binario) -> {
+            texto.escribir(d, false);
+            salidaBinaria = true;
+            multiplexa = v >= 2;
+        };
+    }
+
+    /**
+     * Hilo escritor: vacía la cola de salida hacia el socket.
+     */
+    private void escribirCola() {
+        try {
+            SalidaBio s;
+            while ((s = cola.tomar()) != null) {
+                if (!s.cabe(salidaBinaria)) {
+                    omitir(s);
+                    continue;
+                }
+                enCurso = s;
+                s.escribir(dos, salidaBinaria);
+                enCurso = null;
+                metricas.bytesSalida(s.escritos());
+                if (s.esChat()) metricas.mensajeSalida(s.creada());
+                if (cola.isEmpty()) dos.flush();
+            }
+        } catch (EOFException e) {
+            if (!socket.isClosed()) enrutador.log("Archivo incompleto hacia " + nombre + "; se cierra su conexión.\n");
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            SalidaBio s = enCurso;
+            if (s != null) s.liberar();
+            for (SalidaBio r : cola.cerrar()) r.liberar();
+            cerrarSocket();   // el hilo lector lo detecta y retira al cliente
+        }
+    }
+
+    /** Trama que no entra en el protocolo de texto: no se recorta, no le llega. */
+    private void omitir(SalidaBio s) {
+        s.liberar();
+        enrutador.log("Trama de más de 64 KB para " + nombre + " (protocolo de texto); no se le envía.\n");
+        if (cola.isEmpty()) {
+            try { dos.flush(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void encolar(SalidaBio s) {
+        // Con "block" espera quien encola (el hilo del remitente, el temporizador de la
+        // lista...), así se frena al remitente; la GUI encola desde su propio hilo
+        if (cola.ofrecer(s, true) == ColaSalida.Resultado.DESBORDADO) {
+            s.liberar();
+            desconectarLento("cola de salida llena");
+        }
+    }
+
+    /**
+     * Encola un bloque de un archivo (o el mismo archivo, que cede el turno) por
+     * encima de la capacidad: ya tiene su propio límite de bloques en vuelo.
+     */
+    void encolarMasivo(SalidaBio s) {
+        if (!cola.forzar(s)) s.liberar();
+    }
+
+    /** Solo desde el hilo escritor: el cliente ya recibe los archivos en tramas DATOS. */
+    boolean multiplexa() {
+        return multiplexa;
+    }
+
+    void desconectarLento(String motivo) {
+        enrutador.log("Cliente lento " + nombre + ": " + motivo + "; se desconecta.\n");
+        cerrarSocket();
+    }
+
+    /**
+     * Reenvía los {@code tam} bytes que siguen a un FILE por bloques de tamaño fijo:
+     * cada bloque se copia una vez y se pasa a los destinos en cuanto llega, así la
+     * memoria no depende del tamaño del archivo y el receptor empieza a recibir de inmediato.
+     */
+    private void reenviarArchivo(long destino, String nombreArchivo, long tam) throws IOException {
+        Recepcion r = new Recepcion(destino, nombreArchivo, tam);
+        byte[] buffer = new byte[(int) Math.min(BLOQUE_ARCHIVO, Math.max(tam, 1))];
+        try {
+            while (!r.completa()) {
+                int n = dis.read(buffer, 0, (int) Math.min(buffer.length, r.restante));
+                if (n == -1) throw new EOFException("Fin inesperado durante recepción de archivo");
+                r.repartir(buffer, 0, n);
+            }
+        } finally {
+            // Si el remitente se cortó, los destinos quedaron desalineados y se cierran
+            if (!r.completa()) r.abortar();
+        }
+        r.terminar();
+    }
+
+    /**
+     * FILE en recepción: sus destinos locales y la salida externa, si la hay.
+     */
+    private final class Recepcion {
+        private final List<FlujoBio> flujos = new ArrayList<>();
+        private final SalidaArchivo externa;
+        private final long destino;
+        private final String nombreArchivo;
+        private long restante;
+
+        Recepcion(long destino, String nombreArchivo, long tam) {
+            if (tam < 0) throw new IllegalArgumentException("Tamaño de archivo inválido: " + tam);
+            this.destino = destino;
+            this.nombreArchivo = nombreArchivo;
+            this.restante = tam;
+            // Cabecera codificada una vez (por protocolo) y compartida por los destinos
+            TramaCompartida cabecera = TramaCompartida.cabeceraArchivo(id, nombre, nombreArchivo, tam);
+            for (Conexion c : enrutador.destinos(ConexionHilos.this, destino)) {
+                flujos.add(((ConexionHilos) c).abrirArchivo(cabecera, tam));
+            }
+            // Destinatario desconectado (spool) o en otra instancia (federación)
+            externa = enrutador.salidaExterna(ConexionHilos.this, destino, nombreArchivo, tam, !flujos.isEmpty());
+        }
+
+        boolean completa() {
+            return restante <= 0;
+        }
+
+        /** Pasa {@code n} bytes a los destinos (lo que exceda el tamaño anunciado se ignora). */
+        void repartir(byte[] datos, int desde, int n) {
+            n = (int) Math.min(n, restante);
+            if (!flujos.isEmpty()) {
+                byte[] bloque = Arrays.copyOfRange(datos, desde, desde + n);
+                flujos.removeIf(f -> !agregarBloque(f, bloque));
+            }
+            if (externa != null) externa.escribir(ByteBuffer.wrap(datos, desde, n));
+            restante -= n;
+        }
+
+        void abortar() {
+            for (FlujoBio f : flujos) f.abortar();
+            if (externa != null) externa.descartar();
+        }
+
+        void terminar() {
+            String via = externa != null && externa.confirmar() ? externa.etiqueta() : "";
+            enrutador.log(nombre + " envió archivo a " + enrutador.nombreDe(destino) + via + ": " + nombreArchivo + "\n");
+        }
+    }
+
+    private boolean agregarBloque(FlujoBio f, byte[] bloque) {
+        try {
+            return f.agregar(bloque);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Encola la cabecera FILE; los bytes llegan después por el flujo devuelto.
+     */
+    FlujoBio abrirArchivo(TramaCompartida cabecera, long tam) {
+        FlujoBio f = new FlujoBio(this, cabecera, tam);
+        encolar(f);
+        return f;
+    }
+
+    private void cerrarSocket() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+
+    @Override
+    public int getPendientes() {
+        return cola.tam();
+    }
+
+    @Override
+    public void enviar(TramaCompartida trama) {
+        encolar(new TramaBio(trama));
+    }
+
+    @Override
+    public void enviarLista(TramaCompartida trama, Supplier<TramaCompartida> completa) {
+        if (cola.contiene(SalidaBio::esLista)) trama = completa.get();
+        cola.reemplazar(new TramaBio(trama), SalidaBio::esLista);
+    }
+
+    @Override
+    public void enviarAlFinal(TramaCompartida trama) {
+        cola.alFinal(new TramaBio(trama));
+    }
+
+    @Override
+    public void enviarArchivo(TramaCompartida cabecera, ArchivoEnDisco datos) {
+        if (datos.retener()) encolar(new ArchivoBio(this, cabecera, datos, canal));
+    }
+
+    /**
+     * Cierra conexión con el cliente.
+     */
+    @Override
+    public void cerrarConexion() {
+        if (nombre != null) {                //  proteger clave null
+            enrutador.retirar(this);
+        }
+        SalidaBio s = enCurso;
+        if (s != null) s.liberar();
+        for (SalidaBio r : cola.cerrar()) r.liberar();
+        try { if (dis != null) dis.close(); } catch (IOException ignored) {}
+        try { if (dos != null) dos.close(); } catch (IOException ignored) {}
+        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+    }
+
+}
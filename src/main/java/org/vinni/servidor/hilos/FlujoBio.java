@@ -0,0 +1,137 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.servidor.ColaSalida;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FILE reenviado por bloques: el hilo del remitente los agrega y el escritor
+ * del destino los va escribiendo. Retiene como máximo BLOQUES_EN_VUELO bloques.
+ * Si el destino multiplexa (CodecBinario versión 2), tras la cabecera deja la
+ * cola y cada bloque se encola aparte como trama DATOS ({@link TrozoBio}); si
+ * no, lo encolado detrás espera a que termine el archivo.
+ */
+class FlujoBio implements SalidaBio {
+    private static final int BLOQUES_EN_VUELO = 4;
+    private static final byte[] ABORTO = new byte[0];
+
+    private final ConexionHilos destino;
+    private final TramaCompartida cabecera;     // compartida con los demás destinos
+    private final long tam;
+    private final Semaphore cupo = new Semaphore(BLOQUES_EN_VUELO);
+    private final BlockingQueue<byte[]> bloques = new LinkedBlockingQueue<>();
+    private volatile boolean cancelado;
+    private boolean empezado;       // el escritor ya tomó la cabecera
+    private boolean multiplexado;   // los bloques van sueltos a la cola
+    private boolean abortado;       // el remitente se cortó antes de que empezara
+    private long escritos;
+
+    FlujoBio(ConexionHilos destino, TramaCompartida cabecera, long tam) {
+        this.destino = destino;
+        this.cabecera = cabecera;
+        this.tam = tam;
+    }
+
+    /**
+     * Lo llama el hilo del remitente. Si el destino no avanza en
+     * server.out.blockTimeoutMs se lo desconecta para no frenar al remitente.
+     */
+    boolean agregar(byte[] bloque) throws InterruptedException {
+        long limite = System.currentTimeMillis() + ColaSalida.esperaMaximaMs();
+        while (!cancelado) {
+            if (cupo.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                entregar(bloque);
+                return true;
+            }
+            if (System.currentTimeMillis() > limite) {
+                destino.desconectarLento("no recibe el archivo");
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void entregar(byte[] bloque) {
+        if (multiplexado) destino.encolarMasivo(new TrozoBio(cabecera.getFlujo(), bloque, cupo));
+        else bloques.add(bloque);
+    }
+
+    /**
+     * El remitente se cortó a mitad del archivo: si el destino multiplexa recibe
+     * un CORTE; si ya lo recibía en línea, su escritor cierra la conexión.
+     */
+    synchronized void abortar() {
+        if (multiplexado) {
+            destino.encolarMasivo(TrozoBio.corte(cabecera.getFlujo()));
+        } else if (!empezado) {
+            abortado = true;
+        } else {
+            bloques.clear();
+            bloques.add(ABORTO);
+        }
+    }
+
+    @Override
+    public void escribir(DataOutputStream dos, boolean binario) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (abortado) {
+                // Al destino todavía no le llegó nada: se lo saltea entero
+                escritos = 0;
+                return;
+            }
+            empezado = true;
+        }
+        cabecera.escribir(dos, binario);
+        escritos = cabecera.largo(binario);
+        if (binario && destino.multiplexa()) {
+            synchronized (this) {
+                multiplexado = true;
+                byte[] b;
+                while ((b = bloques.poll()) != null) {
+                    destino.encolarMasivo(b == ABORTO ? TrozoBio.corte(cabecera.getFlujo())
+                            : new TrozoBio(cabecera.getFlujo(), b, cupo));
+                }
+            }
+            return;
+        }
+        long restante = tam;
+        while (restante > 0) {
+            if (bloques.isEmpty()) dos.flush();     // que el receptor no espere al buffer
+            byte[] b = bloques.take();
+            if (b == ABORTO) throw new EOFException("Archivo incompleto");
+            dos.write(b);
+            cupo.release();
+            escritos += b.length;
+            restante -= b.length;
+        }
+    }
+
+    @Override
+    public boolean cabe(boolean binario) {
+        return cabecera.cabe(binario);
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public long escritos() {
+        return escritos;
+    }
+
+    @Override
+    public void liberar() {
+        cancelado = true;
+        bloques.clear();
+        bloques.offer(ABORTO);
+    }
+}
@@ -0,0 +1,72 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.servidor.Admision;
+import org.vinni.servidor.Enrutador;
+import org.vinni.servidor.PuertoServidor;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Motor de conexiones bloqueante: un hilo acepta y cada cliente tiene un hilo
+ * lector y uno escritor. Los sockets salen de un ServerSocketChannel (en modo
+ * bloqueante) para que los archivos en disco se puedan enviar con transferTo;
+ * se lee y escribe por el canal ({@link org.vinni.protocolo.Canales}).
+ * El puerto puede ser compartido con otros procesos ({@link PuertoServidor}).
+ */
+public class MotorHilos {
+    private final int puerto;
+    private final Enrutador enrutador;
+
+    private ServerSocketChannel servidor;
+    private volatile boolean corriendo;
+    private long secuenciaIds;          // solo lo toca el hilo aceptador
+
+    public MotorHilos(int puerto, Enrutador enrutador) {
+        this.puerto = puerto;
+        this.enrutador = enrutador;
+    }
+
+    /**
+     * Abre el puerto y arranca el hilo que acepta clientes.
+     */
+    public void iniciar() throws IOException {
+        servidor = PuertoServidor.abrir(puerto);
+        corriendo = true;
+
+        new Thread(() -> {
+            while (corriendo) {
+                try {
+                    SocketChannel canal = servidor.accept();
+                    long espera = enrutador.admitir();
+                    if (espera > 0) {
+                        rechazar(canal, espera);
+                        continue;
+                    }
+                    new ConexionHilos(++secuenciaIds, canal, enrutador).start();
+                } catch (IOException e) {
+                    if (corriendo) enrutador.log("Error aceptando cliente: " + e.getMessage() + "\n");
+                }
+            }
+        }, "Srv-Accept-Thread").start();
+    }
+
+    /** Sin turno: se le dice cuándo volver y se cierra, sin hilos ni saludo. */
+    private static void rechazar(SocketChannel canal, long espera) {
+        try {
+            canal.write(Admision.rechazo(espera));
+        } catch (IOException ignored) {
+        } finally {
+            try { canal.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Cierra el puerto; las conexiones las cierra quien las registró.
+     */
+    public void detener() {
+        corriendo = false;
+        try { if (servidor != null) servidor.close(); } catch (IOException ignored) {}
+    }
+}
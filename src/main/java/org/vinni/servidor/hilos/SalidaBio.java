@@ -0,0 +1,47 @@
+package org.vinni.servidor.hilos;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Elemento de la cola de salida de un ClienteHandler.
+ */
+interface SalidaBio {
+    /** @param binario el destino ya negoció el protocolo binario */
+    void escribir(DataOutputStream dos, boolean binario) throws IOException, InterruptedException;
+
+    /**
+     * false si su trama no entra en el protocolo del destino (texto de más de 64 KB):
+     * el escritor la saltea. Se consulta antes de empezar a escribirla.
+     */
+    default boolean cabe(boolean binario) {
+        return true;
+    }
+
+    default boolean esChat() {
+        return false;
+    }
+
+    /** LISTA o DELTA: la cola guarda uno solo sin escribir. */
+    default boolean esLista() {
+        return false;
+    }
+
+    /** Contenido de archivos: va en el carril de baja prioridad de la cola. */
+    default boolean esMasivo() {
+        return false;
+    }
+
+    /** Bytes que escribió la última llamada a {@link #escribir} (para las métricas). */
+    default long escritos() {
+        return 0;
+    }
+
+    /** nanoTime en que llegó el MSG, para la latencia de reenvío (0 = no se mide). */
+    default long creada() {
+        return 0;
+    }
+
+    /** Suelta lo retenido si la conexión se cierra antes de escribirlo. */
+    default void liberar() {}
+}
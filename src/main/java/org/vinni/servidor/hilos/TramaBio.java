@@ -0,0 +1,49 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Trama ya codificada, posiblemente compartida con otros destinos.
+ */
+class TramaBio implements SalidaBio {
+    private final TramaCompartida trama;
+    private long escritos;
+
+    TramaBio(TramaCompartida trama) {
+        this.trama = trama;
+    }
+
+    @Override
+    public void escribir(DataOutputStream dos, boolean binario) throws IOException {
+        trama.escribir(dos, binario);
+        escritos = trama.largo(binario);
+    }
+
+    @Override
+    public boolean cabe(boolean binario) {
+        return trama.cabe(binario);
+    }
+
+    @Override
+    public long escritos() {
+        return escritos;
+    }
+
+    @Override
+    public long creada() {
+        return trama.getCreada();
+    }
+
+    @Override
+    public boolean esChat() {
+        return trama.esChat();
+    }
+
+    @Override
+    public boolean esLista() {
+        return trama.esLista();
+    }
+}
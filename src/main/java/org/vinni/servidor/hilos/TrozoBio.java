@@ -0,0 +1,58 @@
+package org.vinni.servidor.hilos;
+
+import org.vinni.protocolo.CodecBinario;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Trama DATOS (un bloque de un archivo) o CORTE hacia un destino que multiplexa.
+ * Va en el carril masivo de la cola: los mensajes se le adelantan.
+ */
+class TrozoBio implements SalidaBio {
+    private final long flujo;
+    private final byte[] bloque;        // null: CORTE
+    private final Semaphore cupo;       // bloques en vuelo del flujo; se devuelve al escribirlo
+    private final AtomicBoolean liberado = new AtomicBoolean(false);
+    private long escritos;
+
+    TrozoBio(long flujo, byte[] bloque, Semaphore cupo) {
+        this.flujo = flujo;
+        this.bloque = bloque;
+        this.cupo = cupo;
+    }
+
+    static TrozoBio corte(long flujo) {
+        return new TrozoBio(flujo, null, null);
+    }
+
+    @Override
+    public void escribir(DataOutputStream dos, boolean binario) throws IOException {
+        ByteBuffer b = bloque == null ? CodecBinario.corte(flujo) : CodecBinario.datos(flujo, bloque.length);
+        dos.write(b.array(), 0, b.limit());
+        escritos = b.limit();
+        if (bloque != null) {
+            dos.write(bloque);
+            escritos += bloque.length;
+        }
+        liberar();
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public long escritos() {
+        return escritos;
+    }
+
+    @Override
+    public void liberar() {
+        if (cupo != null && liberado.compareAndSet(false, true)) cupo.release();
+    }
+}
@@ -0,0 +1,132 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.servidor.ArchivoEnDisco;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FILE cuyo contenido ya está en disco: tras la cabecera, los bytes pasan del
+ * archivo al socket con transferTo, sin copiarse al heap. Si el destino
+ * multiplexa van en tramas DATOS, una por turno.
+ *
+ * Si el archivo se achicó en disco no llegan los bytes anunciados: al que
+ * multiplexa se le manda un CORTE antes de la trama DATOS que ya no se puede
+ * completar; en línea (o con una DATOS a medias) se cierra la conexión.
+ */
+class ArchivoNio implements Pendiente {
+    private final ConexionNio destino;
+    private final TramaCompartida cabecera;
+    private final ArchivoEnDisco datos;
+    private final AtomicBoolean liberado = new AtomicBoolean(false);
+    private ByteBuffer cab;
+    private boolean multiplexar;
+    private ByteBuffer prefijo;     // tipo, largo y flujo de la trama DATOS en curso
+    private long finTrozo;
+    private long prefijos;          // bytes de los prefijos DATOS ya escritos
+    private long enviados;
+    private long inicioTurno;
+    private boolean cedido;
+    private boolean cortado;        // prefijo es un CORTE: el archivo se achicó
+
+    /** La referencia a los datos ya la tomó quien lo encola. */
+    ArchivoNio(ConexionNio destino, TramaCompartida cabecera, ArchivoEnDisco datos) {
+        this.destino = destino;
+        this.cabecera = cabecera;
+        this.datos = datos;
+    }
+
+    @Override
+    public Resultado escribir(SocketChannel canal, boolean binario) throws IOException {
+        if (cedido) {
+            inicioTurno = total();
+            cedido = false;
+        }
+        if (cab == null) {
+            cab = cabecera.vistas(binario)[0];
+            multiplexar = binario && destino.multiplexa();
+        }
+        if (cab.hasRemaining()) {
+            canal.write(cab);
+            if (cab.hasRemaining()) return Resultado.SOCKET_LLENO;
+        }
+        if (multiplexar) return escribirTrozo(canal);
+        while (enviados < datos.getTam()) {
+            long n = datos.transferir(enviados, datos.getTam() - enviados, canal);
+            if (n <= 0) return lleno();
+            enviados += n;
+        }
+        liberar();
+        return Resultado.TERMINADO;
+    }
+
+    /** Una trama DATOS por turno, así lo que se encoló mientras tanto pasa antes. */
+    private Resultado escribirTrozo(SocketChannel canal) throws IOException {
+        if (enviados < datos.getTam()) {
+            if (prefijo == null) {
+                int n = (int) Math.min(CodecBinario.BLOQUE, datos.getTam() - enviados);
+                cortado = datos.disponibles(enviados) < n;
+                prefijo = cortado ? CodecBinario.corte(cabecera.getFlujo()) : CodecBinario.datos(cabecera.getFlujo(), n);
+                finTrozo = enviados + n;
+            }
+            if (prefijo.hasRemaining()) {
+                canal.write(prefijo);
+                if (prefijo.hasRemaining()) return Resultado.SOCKET_LLENO;
+                prefijos += prefijo.limit();
+            }
+            if (cortado) {
+                liberar();
+                return Resultado.TERMINADO;
+            }
+            while (enviados < finTrozo) {
+                long n = datos.transferir(enviados, finTrozo - enviados, canal);
+                if (n <= 0) return lleno();
+                enviados += n;
+            }
+            prefijo = null;
+        }
+        if (enviados < datos.getTam()) {
+            cedido = true;
+            return Resultado.TURNO;
+        }
+        liberar();
+        return Resultado.TERMINADO;
+    }
+
+    /** transferTo da 0 con el socket lleno, pero también si el archivo ya no llega hasta ahí. */
+    private Resultado lleno() throws IOException {
+        if (datos.disponibles(enviados) == 0) throw new EOFException("Archivo incompleto");
+        return Resultado.SOCKET_LLENO;
+    }
+
+    @Override
+    public boolean cabe(boolean binario) {
+        return cab != null || cabecera.cabe(binario);
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public long escritos() {
+        return total() - inicioTurno;
+    }
+
+    private long total() {
+        long n = (cab == null ? 0 : cab.position()) + enviados + prefijos;
+        if (prefijo != null && prefijo.hasRemaining()) n += prefijo.position();
+        return n;
+    }
+
+    @Override
+    public void liberar() {
+        if (liberado.compareAndSet(false, true)) datos.liberar();
+    }
+}
@@ -0,0 +1,140 @@
+package org.vinni.servidor.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hilo con un Selector propio. Atiende accept (si es el bucle aceptador),
+ * lecturas y escrituras de sus conexiones, y ejecuta tareas encoladas
+ * desde otros hilos (p. ej. "hay datos nuevos para enviar") o programadas
+ * para más tarde.
+ */
+class BucleEventos extends Thread {
+    private final MotorNio motor;
+    private final Selector selector;
+    private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+    // Solo las toca el hilo del bucle
+    private final PriorityQueue<Programada> programadas =
+            new PriorityQueue<>(Comparator.comparingLong((Programada p) -> p.cuando));
+    private volatile boolean corriendo = true;
+
+    BucleEventos(MotorNio motor, String nombreHilo) throws IOException {
+        super(nombreHilo);
+        this.motor = motor;
+        this.selector = Selector.open();
+    }
+
+    void registrarAceptador(ServerSocketChannel servidor) throws ClosedChannelException {
+        servidor.register(selector, SelectionKey.OP_ACCEPT, servidor);
+    }
+
+    /**
+     * Registra una conexión nueva en este bucle (desde cualquier hilo).
+     */
+    void registrar(ConexionNio c) {
+        ejecutar(() -> c.registrar(selector));
+    }
+
+    /**
+     * Ejecuta la tarea dentro del hilo del bucle.
+     */
+    void ejecutar(Runnable tarea) {
+        tareas.add(tarea);
+        selector.wakeup();
+    }
+
+    /**
+     * Ejecuta la tarea dentro del hilo del bucle tras {@code retrasoMs}.
+     */
+    void programar(long retrasoMs, Runnable tarea) {
+        long cuando = System.currentTimeMillis() + retrasoMs;
+        ejecutar(() -> programadas.add(new Programada(cuando, tarea)));
+    }
+
+    boolean enBucle() {
+        return Thread.currentThread() == this;
+    }
+
+    void detener() {
+        corriendo = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (corriendo) {
+            try {
+                Programada proxima = programadas.peek();
+                if (proxima == null) selector.select();
+                else selector.select(Math.max(1, proxima.cuando - System.currentTimeMillis()));
+            } catch (IOException e) {
+                break;
+            }
+
+            Runnable t;
+            while ((t = tareas.poll()) != null) correr(t);
+
+            long ahora = System.currentTimeMillis();
+            while (!programadas.isEmpty() && programadas.peek().cuando <= ahora) {
+                correr(programadas.poll().tarea);
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                if (!k.isValid()) continue;
+
+                try {
+                    if (k.isAcceptable()) {
+                        motor.aceptar((ServerSocketChannel) k.attachment(), this);
+                    } else {
+                        ((ConexionNio) k.attachment()).alEstarListo(k);
+                    }
+                } catch (CancelledKeyException e) {
+                    // Otro hilo cerró el canal entre isValid y la consulta
+                    if (k.attachment() instanceof ConexionNio) ((ConexionNio) k.attachment()).cerrarConexion();
+                } catch (RuntimeException e) {
+                    motor.log("Error en " + getName() + ": " + e + "\n");
+                }
+            }
+        }
+
+        // Cierre: soltar todas las conexiones del bucle
+        for (SelectionKey k : selector.keys()) {
+            if (k.attachment() instanceof ConexionNio) ((ConexionNio) k.attachment()).cerrarConexion();
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    /**
+     * Una tarea que falla no puede tirar el hilo: dejaría sin atender a todas las
+     * conexiones del bucle. Las de una conexión ya la cierran ellas mismas.
+     */
+    private void correr(Runnable tarea) {
+        try {
+            tarea.run();
+        } catch (RuntimeException e) {
+            motor.log("Error en una tarea de " + getName() + ": " + e + "\n");
+        }
+    }
+
+    private static final class Programada {
+        final long cuando;
+        final Runnable tarea;
+
+        Programada(long cuando, Runnable tarea) {
+            this.cuando = cuando;
+            this.tarea = tarea;
+        }
+    }
+}
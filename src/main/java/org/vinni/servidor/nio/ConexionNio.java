@@ -0,0 +1,618 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.protocolo.CodecBinario;
+import org.vinni.protocolo.TramaUtf;
+import org.vinni.servidor.ArchivoEnDisco;
+import org.vinni.servidor.ColaSalida;
+import org.vinni.servidor.Conexion;
+import org.vinni.servidor.Enrutador;
+import org.vinni.servidor.Metricas;
+import org.vinni.servidor.SalidaArchivo;
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cliente atendido por un bucle de eventos. Habla los mismos protocolos que
+ * ClienteHandler (texto INGRESE_NOMBRE / MSG: / FILE: / LISTA: o binario
+ * negociado) pero sin bloquear: las tramas se reconstruyen a partir de lo que
+ * llega en cada lectura y las escrituras se encolan y se vacían cuando el
+ * socket lo permite.
+ */
+class ConexionNio implements Conexion {
+    private static final int BUF_INICIAL = 8 * 1024;
+    static final int BLOQUE_ARCHIVO = 64 * 1024;
+
+    // Conexión cuyas tramas está procesando el bucle actual (remitente de lo que se encola)
+    private static final ThreadLocal<ConexionNio> EN_PROCESO = new ThreadLocal<>();
+
+    // -Dserver.proto.binary=false: no ofrecer el protocolo binario (todos hablan texto)
+    private static final boolean OFRECER_BINARIO =
+            Boolean.parseBoolean(System.getProperty("server.proto.binary", "true"));
+
+    private final long id;
+    private final SocketChannel canal;
+    private final BucleEventos bucle;
+    private final Enrutador enrutador;
+    private final Metricas metricas;
+    private final long aceptada = System.nanoTime();
+    private SelectionKey clave;
+    private volatile String nombre;
+
+    // Lectura (solo desde el hilo del bucle)
+    private ByteBuffer entrada = ByteBuffer.allocate(BUF_INICIAL);
+    private int necesario;              // bytes que debe admitir el buffer para la trama en curso
+    // Motivos para dejar de leer: demasiados bytes de archivo sin entregar, o
+    // destinos con la cola llena (política "block")
+    private boolean esperandoArchivo;
+    private final Set<ConexionNio> esperandoColas = new HashSet<>();
+    private int version;                // versión de CodecBinario que aceptó el cliente (0 = texto)
+
+    // Lo cambia el bucle al escribir la confirmación; las tramas eligen su codificación al escribirse
+    private boolean salidaBinaria;
+    private boolean multiplexa;         // versión 2: los archivos salen en tramas DATOS
+
+    // Archivo en recepción: FILE:destino:nombreArchivo:tamaño seguido de los bytes
+    private volatile TransferenciaNio transferencia;
+    // Versión 2: archivos en recepción por id de flujo (el que eligió el cliente)
+    private final Map<Long, TransferenciaNio> entrantes = new HashMap<>();
+
+    // Escritura (cualquier hilo encola en la cola acotada, solo el bucle escribe)
+    private final ColaSalida<Pendiente> salida =
+            ColaSalida.desdePropiedades(Pendiente::esChat, Pendiente::esMasivo, Pendiente::liberar);
+    private volatile Pendiente actual;  // trama a medio escribir (ya fuera de la cola)
+    private long contados;              // bytes de "actual" ya sumados a las métricas (solo el bucle)
+    private final AtomicBoolean escrituraPendiente = new AtomicBoolean(false);
+    private final AtomicBoolean cerrada = new AtomicBoolean(false);
+    // Remitentes frenados hasta que esta cola tenga lugar
+    private final Set<ConexionNio> remitentesEnEspera = ConcurrentHashMap.newKeySet();
+    private final AtomicLong liberaciones = new AtomicLong();
+
+    ConexionNio(long id, SocketChannel canal, BucleEventos bucle, Enrutador enrutador) {
+        this.id = id;
+        this.canal = canal;
+        this.bucle = bucle;
+        this.enrutador = enrutador;
+        this.metricas = enrutador.getMetricas();
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * Se invoca en el hilo del bucle: registra el canal y pide el nombre.
+     */
+    void registrar(Selector selector) {
+        try {
+            clave = canal.register(selector, SelectionKey.OP_READ, this);
+            encolar(Pendiente.de(TramaUtf.codificar("INGRESE_NOMBRE")));
+            if (OFRECER_BINARIO) encolar(Pendiente.de(TramaUtf.codificar(CodecBinario.OFERTA)));
+        } catch (IOException | RuntimeException e) {
+            cerrarConexion();
+        }
+    }
+
+    /**
+     * El selector indica que el canal es legible y/o escribible.
+     */
+    void alEstarListo(SelectionKey k) {
+        try {
+            if (k.isWritable()) vaciar();
+            if (k.isValid() && k.isReadable() && !lecturaSuspendida()) leer();
+        } catch (EOFException e) {
+            abortarArchivo();
+        } catch (IOException | RuntimeException e) {
+            desconectado();
+        }
+    }
+
+    private boolean lecturaSuspendida() {
+        return esperandoArchivo || !esperandoColas.isEmpty();
+    }
+
+    private void desconectado() {
+        if (nombre != null) {                           // silencia sondas (sin nombre)
+            enrutador.log(nombre + " desconectado.\n");
+        }
+        cerrarConexion();
+    }
+
+    private void leer() throws IOException {
+        int n = canal.read(entrada);
+        if (n == -1) throw new IOException("Fin de stream");
+        metricas.bytesEntrada(n);
+        procesarEntrada();
+    }
+
+    private void procesarEntrada() throws IOException {
+        entrada.flip();
+        EN_PROCESO.set(this);
+        try {
+            procesar();
+        } finally {
+            EN_PROCESO.remove();
+        }
+        entrada.compact();
+
+        // La trama en curso no cabe: crecer hasta el máximo de writeUTF
+        if (necesario > entrada.capacity()) {
+            ByteBuffer nuevo = ByteBuffer.allocate(necesario);
+            entrada.flip();
+            nuevo.put(entrada);
+            entrada = nuevo;
+        }
+    }
+
+    /**
+     * Consume todas las tramas completas del buffer (en modo lectura).
+     */
+    private void procesar() throws IOException {
+        necesario = 0;
+        while (entrada.hasRemaining() && !lecturaSuspendida()) {
+            TransferenciaNio t = transferencia;
+            if (t != null) {
+                if (t.saturada()) {
+                    esperarArchivo(t);
+                    return;
+                }
+                t.consumir(entrada);
+                if (t.completa()) {
+                    transferencia = null;
+                    finArchivo(t);
+                }
+                continue;
+            }
+
+            if (version > 0) {
+                int largo = CodecBinario.largoTrama(entrada);
+                if (largo < 0) return;
+                if (entrada.remaining() < largo) {
+                    necesario = largo;
+                    return;
+                }
+                if (!manejarBinaria()) return;
+                continue;
+            }
+
+            if (entrada.remaining() < 2) return;
+            int len = entrada.getShort(entrada.position()) & 0xFFFF;
+            if (entrada.remaining() < 2 + len) {
+                necesario = 2 + len;
+                return;
+            }
+            entrada.position(entrada.position() + 2);
+            manejarTrama(TramaUtf.decodificar(entrada, len));
+        }
+    }
+
+    private void manejarTrama(String mensaje) throws IOException {
+        // Primero, recibir nombre del cliente
+        if (nombre == null) {
+            String n = mensaje.trim();
+            if (n.isEmpty()) n = "Cliente" + canal.socket().getPort();
+            nombre = n;
+            metricas.saludo(System.nanoTime() - aceptada);
+            enrutador.registrar(this);
+            return;
+        }
+
+        if (mensaje.startsWith("MSG:")) {
+            // Formato: MSG:destino:texto
+            String[] partes = mensaje.split(":", 3);
+            enrutador.rutearMensaje(this, enrutador.idDe(partes[1]), partes[2]);
+        } else if (mensaje.startsWith("FILE:")) {
+            // Formato: FILE:destino:nombreArchivo:tamaño
+            String[] partes = mensaje.split(":", 4);
+            TransferenciaNio t = iniciarArchivo(enrutador.idDe(partes[1]), partes[2], Long.parseLong(partes[3]));
+            if (!t.completa()) transferencia = t;
+        } else if (OFRECER_BINARIO && CodecBinario.versionAceptada(mensaje) > 0) {
+            // El cliente aceptó: lo que sigue en la entrada ya viene en binario
+            version = CodecBinario.versionAceptada(mensaje);
+            encolar(confirmacionBinaria());
+            enrutador.enviarLista(this);    // con versión, para aplicar los DELTA
+        }
+    }
+
+    /**
+     * Trama binaria completa en la posición actual. Para decidir el destino solo
+     * se leen el tipo y el id (sin Strings intermedios).
+     *
+     * @return false si es un bloque de un archivo cuyos destinos no dan abasto:
+     *         la trama queda sin consumir y se deja de leer hasta que avancen
+     */
+    private boolean manejarBinaria() throws IOException {
+        int inicio = entrada.position();
+        byte tipo = entrada.get(inicio);
+        int limite = CodecBinario.abrirCuerpo(entrada);
+        int fin = entrada.limit();
+
+        long destino = 0;
+        String texto = null;
+        long tam = 0;
+        long flujo = 0;
+        if (tipo == CodecBinario.MSG) {
+            destino = CodecBinario.getVarint(entrada);
+            texto = CodecBinario.getTexto(entrada, entrada.remaining());
+        } else if (tipo == CodecBinario.FILE) {
+            destino = CodecBinario.getVarint(entrada);
+            texto = CodecBinario.getCampo(entrada);
+            tam = CodecBinario.getVarint(entrada);
+            if (entrada.hasRemaining()) flujo = CodecBinario.getVarint(entrada);
+        } else if (tipo == CodecBinario.DATOS || tipo == CodecBinario.CORTE) {
+            flujo = CodecBinario.getVarint(entrada);
+        }
+        if (tipo == CodecBinario.DATOS && version >= 2) {
+            TransferenciaNio t = entrantes.get(flujo);
+            if (t != null && t.saturada()) {
+                entrada.limit(limite);
+                entrada.position(inicio);
+                esperarArchivo(t);
+                return false;
+            }
+            if (t != null) {
+                t.consumir(entrada);
+                if (t.completa()) finArchivo(entrantes.remove(flujo));
+            }
+        }
+        // Tipos desconocidos se saltean (versiones futuras)
+        entrada.limit(limite);
+        entrada.position(fin);
+
+        if (tipo == CodecBinario.MSG) {
+            enrutador.rutearMensaje(this, destino, texto);
+        } else if (tipo == CodecBinario.FILE) {
+            TransferenciaNio t = iniciarArchivo(destino, texto, tam);
+            // Versión 2: el contenido llega después en tramas DATOS de su flujo
+            if (version >= 2 && !t.completa()) entrantes.put(flujo, t);
+            else if (!t.completa()) transferencia = t;
+        } else if (tipo == CodecBinario.CORTE && version >= 2) {
+            TransferenciaNio t = entrantes.remove(flujo);
+            if (t != null) abortarEntrante(t);
+        } else if (tipo == CodecBinario.LISTA) {
+            enrutador.enviarLista(this);
+        }
+        return true;
+    }
+
+    /**
+     * Última trama de texto hacia el cliente; al terminar de escribirla la salida pasa a binario.
+     */
+    private Pendiente confirmacionBinaria() throws IOException {
+        Pendiente texto = Pendiente.de(TramaUtf.codificar(CodecBinario.CONFIRMACION));
+        return (canal, binario) -> {
+            Pendiente.Resultado r = texto.escribir(canal, false);
+            if (r == Pendiente.Resultado.TERMINADO) {
+                salidaBinaria = true;
+                multiplexa = version >= 2;
+            }
+            return r;
+        };
+    }
+
+    /* -------------------- Reenvío de archivos por bloques -------------------- */
+
+    private TransferenciaNio iniciarArchivo(long destino, String nombreArchivo, long tam) {
+        if (tam < 0) throw new IllegalArgumentException("Tamaño de archivo inválido: " + tam);
+        List<FlujoNio> flujos = new ArrayList<>();
+        // Cabecera codificada una vez (por protocolo) y compartida por los destinos
+        TramaCompartida cabecera = TramaCompartida.cabeceraArchivo(id, nombre, nombreArchivo, tam);
+        for (Conexion c : enrutador.destinos(this, destino)) {
+            flujos.add(((ConexionNio) c).abrirArchivo(cabecera, tam));
+        }
+        // Destinatario desconectado (spool) o en otra instancia (federación)
+        SalidaArchivo externa = enrutador.salidaExterna(this, destino, nombreArchivo, tam, !flujos.isEmpty());
+        TransferenciaNio t = new TransferenciaNio(this, enrutador.nombreDe(destino), nombreArchivo, tam, flujos, externa);
+
+        // Bloques de hasta BLOQUE_ARCHIVO por lectura mientras dure el archivo
+        if (entrada.capacity() < BLOQUE_ARCHIVO && version < 2) {
+            ByteBuffer nuevo = ByteBuffer.allocate(BLOQUE_ARCHIVO);
+            nuevo.put(entrada);
+            nuevo.flip();
+            entrada = nuevo;
+        }
+        if (tam == 0) finArchivo(t);
+        return t;
+    }
+
+    private void finArchivo(TransferenciaNio t) {
+        enrutador.log(nombre + " envió archivo a " + t.destino + t.confirmarExterna() + ": " + t.nombreArchivo + "\n");
+    }
+
+    /**
+     * Encola la cabecera FILE y un flujo que irá recibiendo los bloques.
+     */
+    FlujoNio abrirArchivo(TramaCompartida cabecera, long tam) {
+        FlujoNio f = new FlujoNio(this, cabecera, tam);
+        encolar(f);
+        return f;
+    }
+
+    /**
+     * Versión 2: el remitente canceló el archivo (CORTE) o se desconectó con él a medias.
+     */
+    private void abortarEntrante(TransferenciaNio t) {
+        t.abortar();
+        enrutador.log("Archivo de " + nombre + " a " + t.destino + " cancelado: " + t.nombreArchivo + "\n");
+    }
+
+    /**
+     * Encola un bloque o un CORTE de un archivo multiplexado (tiene su propio límite de bloques en vuelo).
+     */
+    void encolarMasivo(Pendiente p) {
+        if (!salida.forzar(p) || cerrada.get()) {
+            p.liberar();
+            return;
+        }
+        despertar();
+    }
+
+    /** Solo desde el bucle: el cliente ya recibe los archivos en tramas DATOS. */
+    boolean multiplexa() {
+        return multiplexa;
+    }
+
+    /**
+     * El remitente de un archivo hacia esta conexión se cortó, o el archivo en
+     * disco se achicó (EOFException al escribir): el stream quedó desalineado.
+     */
+    void abortarArchivo() {
+        enrutador.log("Archivo incompleto hacia " + nombre + "; se cierra su conexión.\n");
+        cerrarConexion();
+    }
+
+    private void esperarArchivo(TransferenciaNio t) {
+        esperandoArchivo = true;
+        actualizarLectura();
+
+        // Si en el plazo nadie avanza, el destino lento no debe frenar al remitente
+        long entregados = t.getEntregados();
+        bucle.programar(ColaSalida.esperaMaximaMs(), () -> {
+            if (esperandoArchivo && !t.completa() && t.getEntregados() == entregados) t.descartarLentos();
+        });
+    }
+
+    /**
+     * Los destinos del archivo liberaron espacio: volver a leer (desde cualquier hilo).
+     */
+    void reanudarLectura() {
+        bucle.ejecutar(() -> {
+            if (!esperandoArchivo) return;
+            esperandoArchivo = false;
+            retomar();
+        });
+    }
+
+    /**
+     * Un destino con la cola llena: no leer más de este remitente hasta que se vacíe.
+     */
+    private void esperarCola(ConexionNio destino) {
+        esperandoColas.add(destino);
+        actualizarLectura();
+    }
+
+    private void colaLiberada(ConexionNio destino) {
+        if (esperandoColas.remove(destino)) retomar();
+    }
+
+    /**
+     * Si ya no hay motivos para esperar, reactiva OP_READ y procesa lo que quedó en el buffer.
+     */
+    private void retomar() {
+        if (cerrada.get() || lecturaSuspendida()) return;
+        try {
+            actualizarLectura();
+            procesarEntrada();
+        } catch (IOException | RuntimeException e) {
+            desconectado();
+        }
+    }
+
+    private void actualizarLectura() {
+        if (clave == null || !clave.isValid()) return;
+        if (lecturaSuspendida()) clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+        else clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /* -------------------- Envío -------------------- */
+
+    @Override
+    public int getPendientes() {
+        return salida.tam();
+    }
+
+    @Override
+    public void enviar(TramaCompartida trama) {
+        encolar(Pendiente.de(trama));
+    }
+
+    @Override
+    public void enviarLista(TramaCompartida trama, Supplier<TramaCompartida> completa) {
+        if (salida.contiene(Pendiente::esLista)) trama = completa.get();
+        if (salida.reemplazar(Pendiente.de(trama), Pendiente::esLista) && !cerrada.get()) despertar();
+    }
+
+    @Override
+    public void enviarAlFinal(TramaCompartida trama) {
+        if (salida.alFinal(Pendiente.de(trama)) && !cerrada.get()) despertar();
+    }
+
+    @Override
+    public void enviarArchivo(TramaCompartida cabecera, ArchivoEnDisco datos) {
+        if (datos.retener()) encolar(new ArchivoNio(this, cabecera, datos));
+    }
+
+    private void encolar(Pendiente p) {
+        // Los bucles nunca esperan: con "block" se frena al remitente en lugar del hilo
+        ColaSalida.Resultado r = salida.ofrecer(p, !(Thread.currentThread() instanceof BucleEventos));
+        if (r == ColaSalida.Resultado.CERRADA) return;
+        if (r == ColaSalida.Resultado.DESBORDADO) {
+            ConexionNio remitente = EN_PROCESO.get();
+            if (salida.getPolitica() != ColaSalida.Politica.BLOQUEAR || remitente == null || remitente == this) {
+                p.liberar();
+                desconectarLento("cola de salida llena");
+                return;
+            }
+            if (!salida.forzar(p)) {
+                p.liberar();
+                return;
+            }
+            frenar(remitente);
+        }
+        if (cerrada.get()) {
+            p.liberar();
+            return;
+        }
+        despertar();
+    }
+
+    /**
+     * Política "block" en NIO: el remitente deja de leer hasta que esta cola tenga
+     * lugar; si en server.out.blockTimeoutMs no se vacía, se desconecta a este cliente.
+     */
+    private void frenar(ConexionNio remitente) {
+        remitente.esperarCola(this);
+        if (remitentesEnEspera.add(remitente) && remitentesEnEspera.size() == 1) {
+            // Solo cuenta si la cola no tuvo lugar en todo el plazo
+            long vez = liberaciones.get();
+            bucle.programar(ColaSalida.esperaMaximaMs(), () -> {
+                if (liberaciones.get() != vez || remitentesEnEspera.isEmpty()) return;
+                if (salida.hayLugar()) soltarRemitentes();
+                else desconectarLento("cola de salida llena");
+            });
+        }
+        // El escritor pudo vaciar la cola entre el desborde y el registro
+        if (salida.hayLugar()) soltarRemitentes();
+    }
+
+    /**
+     * Avisa a los remitentes frenados (cada uno en su bucle) que ya pueden seguir.
+     */
+    private void soltarRemitentes() {
+        liberaciones.incrementAndGet();
+        for (ConexionNio r : remitentesEnEspera) {
+            remitentesEnEspera.remove(r);
+            r.bucle.ejecutar(() -> r.colaLiberada(this));
+        }
+    }
+
+    void desconectarLento(String motivo) {
+        enrutador.log("Cliente lento " + nombre + ": " + motivo + "; se desconecta.\n");
+        cerrarConexion();
+    }
+
+    /**
+     * Si no hay un vaciado en marcha, lo agenda en el bucle.
+     */
+    void despertar() {
+        if (escrituraPendiente.compareAndSet(false, true)) {
+            if (bucle.enBucle()) vaciarSeguro();
+            else bucle.ejecutar(this::vaciarSeguro);
+        }
+    }
+
+    /**
+     * Si otro hilo cerró el canal, interestOps lanza CancelledKeyException: se
+     * desconecta solo esta conexión. EOFException: un archivo en disco se achicó
+     * y ya no llega a lo anunciado.
+     */
+    private void vaciarSeguro() {
+        try {
+            vaciar();
+        } catch (EOFException e) {
+            abortarArchivo();
+        } catch (IOException | RuntimeException e) {
+            desconectado();
+        }
+    }
+
+    /**
+     * Escribe lo que el socket acepte; si queda pendiente, espera OP_WRITE.
+     */
+    private void vaciar() throws IOException {
+        if (clave == null || !clave.isValid()) return;
+        while (true) {
+            Pendiente p = actual != null ? actual : salida.sacar();
+            while (p != null) {
+                if (!p.cabe(salidaBinaria)) {
+                    omitir(p);
+                    p = salida.sacar();
+                    actual = p;
+                    continue;
+                }
+                actual = p;
+                Pendiente.Resultado r = p.escribir(canal, salidaBinaria);
+                long escritos = p.escritos();
+                metricas.bytesSalida(escritos - contados);
+                contados = escritos;
+                if (r == Pendiente.Resultado.SOCKET_LLENO) {
+                    clave.interestOps(clave.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (r == Pendiente.Resultado.SIN_DATOS) break;
+                if (p.esChat()) metricas.mensajeSalida(p.creada());
+                contados = 0;
+                // Cede el turno: vuelve al final de su carril, detrás de lo que llegó mientras tanto
+                if (r == Pendiente.Resultado.TURNO && !salida.forzar(p)) p.liberar();
+                p = salida.sacar();
+                actual = p;
+                if (!remitentesEnEspera.isEmpty() && salida.hayLugar()) soltarRemitentes();
+            }
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_WRITE);
+            escrituraPendiente.set(false);
+            // Alguien pudo encolar (o llegar un bloque) entre la última revisión y el set(false)
+            boolean hayMas = p != null ? p.hayDatos() : !salida.isEmpty();
+            if (!hayMas || !escrituraPendiente.compareAndSet(false, true)) return;
+        }
+    }
+
+    /** Trama que no entra en el protocolo de texto: no se recorta, no le llega. */
+    private void omitir(Pendiente p) {
+        p.liberar();
+        enrutador.log("Trama de más de 64 KB para " + nombre + " (protocolo de texto); no se le envía.\n");
+    }
+
+    private void abortarEntrantes() {
+        for (TransferenciaNio t : entrantes.values()) t.abortar();
+        entrantes.clear();
+    }
+
+    @Override
+    public void cerrarConexion() {
+        if (cerrada.getAndSet(true)) return;
+        try { canal.close(); } catch (IOException ignored) {}
+
+        Pendiente p = actual;
+        if (p != null) p.liberar();
+        for (Pendiente r : salida.cerrar()) r.liberar();
+        TransferenciaNio t = transferencia;
+        if (t != null && !t.completa()) t.abortar();
+        // Solo el bucle toca el mapa: si el cierre viene de otro hilo, se aborta allá
+        if (bucle.enBucle()) abortarEntrantes();
+        else bucle.ejecutar(this::abortarEntrantes);
+        soltarRemitentes();
+
+        if (nombre != null) enrutador.retirar(this);
+    }
+}
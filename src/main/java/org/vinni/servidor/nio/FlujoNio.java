@@ -0,0 +1,154 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lado receptor de una TransferenciaNio: ocupa un lugar en la cola de salida del
+ * destino y escribe la cabecera FILE seguida de los bloques a medida que llegan.
+ * Si el destino multiplexa (CodecBinario versión 2), tras la cabecera deja la
+ * cola y cada bloque se encola aparte como trama DATOS ({@link TrozoNio}); si
+ * no, las tramas encoladas detrás esperan a que termine el archivo.
+ */
+class FlujoNio implements Pendiente {
+    private final ConexionNio destino;
+    private final TramaCompartida cabecera;    // compartida con los demás destinos
+    private final long flujo;
+    private ByteBuffer cab;
+    private final Queue<TransferenciaNio.Bloque> bloques = new ArrayDeque<>();
+    private final AtomicInteger enCola = new AtomicInteger();
+    private ByteBuffer actual;
+    private long restante;
+    private long escritos;
+    private boolean liberado;
+    private boolean multiplexar;    // se decide al empezar a escribir la cabecera
+    private boolean multiplexado;   // cabecera escrita: los bloques van sueltos a la cola
+    private boolean abortado;       // el remitente se cortó antes de que empezara el contenido
+
+    FlujoNio(ConexionNio destino, TramaCompartida cabecera, long tam) {
+        this.destino = destino;
+        this.cabecera = cabecera;
+        this.flujo = cabecera.getFlujo();
+        this.restante = tam;
+    }
+
+    /**
+     * Lo invoca el bucle del remitente con cada bloque nuevo.
+     */
+    void agregar(TransferenciaNio.Bloque b) {
+        synchronized (this) {
+            if (liberado) {
+                b.liberar();
+                return;
+            }
+            if (!multiplexado) {
+                bloques.add(b);
+                b = null;
+            } else {
+                destino.encolarMasivo(TrozoNio.datos(flujo, b, enCola));
+            }
+        }
+        if (b == null) destino.despertar();
+    }
+
+    @Override
+    public synchronized Resultado escribir(SocketChannel canal, boolean binario) throws IOException {
+        if (cab == null) {
+            if (abortado) {
+                // Al destino todavía no le llegó nada: se lo saltea entero
+                liberar();
+                return Resultado.TERMINADO;
+            }
+            cab = cabecera.vistas(binario)[0];
+            multiplexar = binario && destino.multiplexa();
+        }
+        if (cab.hasRemaining()) {
+            escritos += canal.write(cab);
+            if (cab.hasRemaining()) return Resultado.SOCKET_LLENO;
+        }
+        if (multiplexar) {
+            multiplexado = true;
+            TransferenciaNio.Bloque b;
+            while ((b = bloques.poll()) != null) destino.encolarMasivo(TrozoNio.datos(flujo, b, enCola));
+            if (abortado) destino.encolarMasivo(TrozoNio.corte(flujo));
+            return Resultado.TERMINADO;
+        }
+        while (restante > 0) {
+            if (actual == null) {
+                TransferenciaNio.Bloque b = bloques.peek();
+                if (b == null) return Resultado.SIN_DATOS;
+                actual = b.vista();
+            }
+            escritos += canal.write(actual);
+            if (actual.hasRemaining()) return Resultado.SOCKET_LLENO;
+
+            TransferenciaNio.Bloque b = bloques.poll();
+            restante -= b.tam();
+            b.liberar();
+            actual = null;
+        }
+        return Resultado.TERMINADO;
+    }
+
+    @Override
+    public synchronized boolean cabe(boolean binario) {
+        return cab != null || cabecera.cabe(binario);
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public synchronized long escritos() {
+        return escritos;
+    }
+
+    @Override
+    public synchronized boolean hayDatos() {
+        return !bloques.isEmpty();
+    }
+
+    /** Bloques de este destino que todavía no se escribieron (en el flujo o en su cola). */
+    synchronized boolean retieneBloques() {
+        return !bloques.isEmpty() || enCola.get() > 0;
+    }
+
+    @Override
+    public synchronized void liberar() {
+        liberado = true;
+        TransferenciaNio.Bloque b;
+        while ((b = bloques.poll()) != null) b.liberar();
+        actual = null;
+    }
+
+    void descartarLento() {
+        destino.desconectarLento("no recibe el archivo");
+    }
+
+    /**
+     * El remitente se cortó: si el destino multiplexa recibe un CORTE y sigue
+     * conectado; si ya empezó a recibirlo en línea, su stream quedó desalineado.
+     */
+    void abortar() {
+        synchronized (this) {
+            if (restante == 0) return;
+            if (multiplexado) {
+                destino.encolarMasivo(TrozoNio.corte(flujo));
+                return;
+            }
+            if (cab == null || multiplexar) {
+                abortado = true;
+                return;
+            }
+        }
+        destino.abortarArchivo();
+    }
+}
@@ -0,0 +1,123 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.servidor.Admision;
+import org.vinni.servidor.Enrutador;
+import org.vinni.servidor.PuertoServidor;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Motor de conexiones no bloqueante: un ServerSocketChannel y un pool fijo de
+ * bucles de eventos (Selector). Cada cliente aceptado se asigna por turnos a un
+ * bucle, que atiende todas sus lecturas y escrituras sin hilos dedicados.
+ *
+ * Con el puerto compartido ({@link PuertoServidor}) cada bucle tiene su propio
+ * socket de escucha y se queda con lo que acepta: el kernel reparte las
+ * conexiones y no hay un único bucle aceptador.
+ */
+public class MotorNio {
+    private final int puerto;
+    private final int numHilos;
+    private final Enrutador enrutador;
+
+    private ServerSocketChannel[] servidores;
+    private BucleEventos[] bucles;
+    private int siguiente;              // solo lo toca el bucle aceptador
+    private final AtomicLong secuenciaIds = new AtomicLong();
+
+    public MotorNio(int puerto, int numHilos, Enrutador enrutador) {
+        this.puerto = puerto;
+        this.numHilos = Math.max(1, numHilos);
+        this.enrutador = enrutador;
+    }
+
+    /**
+     * Abre el puerto y arranca los bucles de eventos.
+     */
+    public void iniciar() throws IOException {
+        bucles = new BucleEventos[numHilos];
+        for (int i = 0; i < numHilos; i++) {
+            bucles[i] = new BucleEventos(this, "Srv-Nio-" + i);
+        }
+        // Puerto compartido: un socket de escucha por bucle; si no, el primer bucle atiende los accept
+        servidores = new ServerSocketChannel[PuertoServidor.compartido() ? numHilos : 1];
+        for (int i = 0; i < servidores.length; i++) {
+            servidores[i] = PuertoServidor.abrir(puerto);
+            servidores[i].configureBlocking(false);
+            bucles[i].registrarAceptador(servidores[i]);
+        }
+        for (BucleEventos b : bucles) b.start();
+    }
+
+    /** true si el hilo actual es un bucle de eventos (de cualquier motor): no debe esperar. */
+    public static boolean enBucleEventos() {
+        return Thread.currentThread() instanceof BucleEventos;
+    }
+
+    /**
+     * Deja de aceptar clientes; las conexiones abiertas siguen atendiéndose.
+     */
+    public void cerrarPuerto() {
+        if (servidores == null) return;
+        for (ServerSocketChannel s : servidores) {
+            try { if (s != null) s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Cierra el puerto y todas las conexiones.
+     */
+    public void detener() {
+        cerrarPuerto();
+        if (bucles != null) {
+            for (BucleEventos b : bucles) b.detener();
+        }
+    }
+
+    public int getNumHilos() {
+        return numHilos;
+    }
+
+    void log(String texto) {
+        enrutador.log(texto);
+    }
+
+    /**
+     * Acepta todas las conexiones pendientes (se invoca desde el bucle que escucha
+     * en {@code servidor}).
+     */
+    void aceptar(ServerSocketChannel servidor, BucleEventos bucle) {
+        while (true) {
+            SocketChannel canal;
+            try {
+                canal = servidor.accept();
+                if (canal == null) return;
+                canal.configureBlocking(false);
+                long espera = enrutador.admitir();
+                if (espera > 0) {
+                    // Sin turno: la trama cabe entera en el buffer de un socket recién aceptado
+                    try {
+                        canal.write(Admision.rechazo(espera));
+                    } finally {
+                        canal.close();
+                    }
+                    continue;
+                }
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                if (servidor.isOpen()) enrutador.log("Error aceptando cliente: " + e.getMessage() + "\n");
+                return;
+            }
+            BucleEventos b = bucle;
+            if (servidores.length == 1) {
+                b = bucles[siguiente];
+                siguiente = (siguiente + 1) % bucles.length;
+            }
+            b.registrar(new ConexionNio(secuenciaIds.incrementAndGet(), canal, b, enrutador));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.servidor.TramaCompartida;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Elemento de la cola de salida de una ConexionNio: una trama ya codificada o
+ * un archivo que se va reenviando a medida que llega.
+ */
+interface Pendiente {
+
+    /** TURNO: escribió un bloque y cede el lugar; vuelve al final de la cola. */
+    enum Resultado { TERMINADO, SOCKET_LLENO, SIN_DATOS, TURNO }
+
+    /**
+     * Escribe lo que el socket acepte sin bloquear.
+     *
+     * @param binario el destino ya negoció el protocolo binario
+     */
+    Resultado escribir(SocketChannel canal, boolean binario) throws IOException;
+
+    /** Tras SIN_DATOS: indica si ya llegó algo más para escribir. */
+    default boolean hayDatos() {
+        return true;
+    }
+
+    /**
+     * false si su trama no entra en el protocolo del destino (texto de más de 64 KB):
+     * el bucle la saltea. Se consulta antes de empezar a escribirla.
+     */
+    default boolean cabe(boolean binario) {
+        return true;
+    }
+
+    /** Mensaje de chat: se puede descartar con la política drop-oldest. */
+    default boolean esChat() {
+        return false;
+    }
+
+    /** Contenido de archivos: va en el carril de baja prioridad de la cola. */
+    default boolean esMasivo() {
+        return false;
+    }
+
+    /** LISTA o DELTA: la cola guarda uno solo sin escribir. */
+    default boolean esLista() {
+        return false;
+    }
+
+    /** Bytes escritos en este turno, sumando todas sus llamadas (para las métricas). */
+    default long escritos() {
+        return 0;
+    }
+
+    /** nanoTime en que llegó el MSG, para la latencia de reenvío (0 = no se mide). */
+    default long creada() {
+        return 0;
+    }
+
+    /** Suelta los recursos retenidos si la conexión se cierra antes de terminar. */
+    default void liberar() {}
+
+    /**
+     * Trama fija formada por uno o más buffers consecutivos.
+     */
+    static Pendiente de(ByteBuffer... buffers) {
+        return new Buffers(buffers);
+    }
+
+    /**
+     * Trama compartida entre destinos.
+     */
+    static Pendiente de(TramaCompartida trama) {
+        return new Compartida(trama);
+    }
+
+    final class Buffers implements Pendiente {
+        private final ByteBuffer[] buffers;
+
+        private Buffers(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public Resultado escribir(SocketChannel canal, boolean binario) throws IOException {
+            canal.write(buffers);
+            return buffers[buffers.length - 1].hasRemaining() ? Resultado.SOCKET_LLENO : Resultado.TERMINADO;
+        }
+
+        @Override
+        public long escritos() {
+            return posiciones(buffers);
+        }
+    }
+
+    private static long posiciones(ByteBuffer[] buffers) {
+        long n = 0;
+        for (ByteBuffer b : buffers) n += b.position();
+        return n;
+    }
+
+    /**
+     * Escribe una TramaCompartida con sus propias vistas de los bytes.
+     */
+    final class Compartida implements Pendiente {
+        private final TramaCompartida trama;
+        private ByteBuffer[] buffers;
+
+        private Compartida(TramaCompartida trama) {
+            this.trama = trama;
+        }
+
+        @Override
+        public Resultado escribir(SocketChannel canal, boolean binario) throws IOException {
+            // El protocolo se decide al escribir: las tramas encoladas antes del cambio salen en texto
+            if (buffers == null) buffers = trama.vistas(binario);
+            canal.write(buffers);
+            return buffers[buffers.length - 1].hasRemaining() ? Resultado.SOCKET_LLENO : Resultado.TERMINADO;
+        }
+
+        @Override
+        public boolean cabe(boolean binario) {
+            return buffers != null || trama.cabe(binario);
+        }
+
+        @Override
+        public boolean esChat() {
+            return trama.esChat();
+        }
+
+        @Override
+        public boolean esLista() {
+            return trama.esLista();
+        }
+
+        @Override
+        public long escritos() {
+            return buffers == null ? 0 : posiciones(buffers);
+        }
+
+        @Override
+        public long creada() {
+            return trama.getCreada();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.servidor.SalidaArchivo;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FILE en recepción desde un cliente NIO. Cada porción que llega se copia una
+ * sola vez a un bloque de solo lectura compartido por todos los destinos; el
+ * bloque se suelta cuando el último destino lo termina de escribir.
+ *
+ * Los bytes en vuelo (recibidos pero no entregados) están acotados por LIMITE:
+ * al superarlo se deja de leer del remitente hasta que los destinos avancen, así
+ * la memoria del servidor no depende del tamaño del archivo.
+ */
+class TransferenciaNio {
+    static final int LIMITE = 4 * ConexionNio.BLOQUE_ARCHIVO;
+
+    private final ConexionNio origen;
+    private final List<FlujoNio> flujos;
+    private final SalidaArchivo externa;        // spool o federación; puede ser null
+    private final AtomicLong enVuelo = new AtomicLong();
+    private final AtomicLong entregados = new AtomicLong();
+    private volatile long restante;
+
+    final String destino, nombreArchivo;
+
+    TransferenciaNio(ConexionNio origen, String destino, String nombreArchivo, long tam,
+                     List<FlujoNio> flujos, SalidaArchivo externa) {
+        this.origen = origen;
+        this.destino = destino;
+        this.nombreArchivo = nombreArchivo;
+        this.restante = tam;
+        this.flujos = flujos;
+        this.externa = externa;
+    }
+
+    /**
+     * Toma de la entrada los bytes del archivo que haya disponibles y los reparte.
+     */
+    void consumir(ByteBuffer entrada) {
+        int n = (int) Math.min(entrada.remaining(), restante);
+        int limite = entrada.limit();
+        entrada.limit(entrada.position() + n);
+        // Sin destinos ni salida externa solo se descarta, para mantener el stream alineado
+        if (externa != null) externa.escribir(entrada.duplicate());
+        if (!flujos.isEmpty()) {
+            ByteBuffer copia = ByteBuffer.allocate(n);
+            copia.put(entrada);
+            copia.flip();
+
+            Bloque b = new Bloque(copia.asReadOnlyBuffer(), flujos.size());
+            enVuelo.addAndGet(n);
+            for (FlujoNio f : flujos) f.agregar(b);
+        }
+        entrada.position(entrada.limit());
+        entrada.limit(limite);
+        restante -= n;
+    }
+
+    /** Al completarse: cierra la salida externa; devuelve su aclaración para el log, o "". */
+    String confirmarExterna() {
+        return externa != null && externa.confirmar() ? externa.etiqueta() : "";
+    }
+
+    boolean saturada() {
+        return enVuelo.get() >= LIMITE;
+    }
+
+    boolean completa() {
+        return restante == 0;
+    }
+
+    /** Bytes ya escritos a todos los destinos (sirve para detectar estancamiento). */
+    long getEntregados() {
+        return entregados.get();
+    }
+
+    /**
+     * Lleva server.out.blockTimeoutMs sin avanzar: se desconecta a los destinos que
+     * retienen bloques, para que un cliente lento no frene al remitente ni al resto.
+     */
+    void descartarLentos() {
+        for (FlujoNio f : flujos) {
+            if (f.retieneBloques()) f.descartarLento();
+        }
+    }
+
+    /**
+     * El remitente se cortó a mitad del archivo: los destinos que multiplexan
+     * reciben un CORTE; a los demás ya les llegó una cabecera FILE con un tamaño
+     * que no se va a cumplir, así que se cierran.
+     */
+    void abortar() {
+        for (FlujoNio f : flujos) f.abortar();
+        if (externa != null) externa.descartar();
+    }
+
+    /**
+     * Porción del archivo compartida entre destinos, con cuenta de referencias.
+     */
+    class Bloque {
+        private final ByteBuffer datos;
+        private final AtomicInteger refs;
+
+        Bloque(ByteBuffer datos, int refs) {
+            this.datos = datos;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        /** Vista independiente (posición propia) sin copiar los bytes. */
+        ByteBuffer vista() {
+            return datos.duplicate();
+        }
+
+        int tam() {
+            return datos.capacity();
+        }
+
+        void liberar() {
+            if (refs.decrementAndGet() != 0) return;
+            entregados.addAndGet(tam());
+            long v = enVuelo.addAndGet(-tam());
+            if (v < LIMITE && v + tam() >= LIMITE) origen.reanudarLectura();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.vinni.servidor.nio;
+
+import org.vinni.protocolo.CodecBinario;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trama DATOS (un bloque de una transferencia) o CORTE hacia un destino que
+ * multiplexa. Va en el carril masivo de su cola: los mensajes se le adelantan.
+ */
+class TrozoNio implements Pendiente {
+    private final ByteBuffer[] buffers;
+    private final TransferenciaNio.Bloque bloque;   // null: CORTE
+    private final AtomicInteger enCola;             // bloques del flujo aún sin escribir
+    private final AtomicBoolean liberado = new AtomicBoolean(false);
+
+    private TrozoNio(ByteBuffer[] buffers, TransferenciaNio.Bloque bloque, AtomicInteger enCola) {
+        this.buffers = buffers;
+        this.bloque = bloque;
+        this.enCola = enCola;
+    }
+
+    /** Toma la referencia del bloque que ya tenía el flujo. */
+    static TrozoNio datos(long flujo, TransferenciaNio.Bloque b, AtomicInteger enCola) {
+        enCola.incrementAndGet();
+        return new TrozoNio(new ByteBuffer[] {CodecBinario.datos(flujo, b.tam()), b.vista()}, b, enCola);
+    }
+
+    static TrozoNio corte(long flujo) {
+        return new TrozoNio(new ByteBuffer[] {CodecBinario.corte(flujo)}, null, null);
+    }
+
+    @Override
+    public Resultado escribir(SocketChannel canal, boolean binario) throws IOException {
+        canal.write(buffers);
+        if (buffers[buffers.length - 1].hasRemaining()) return Resultado.SOCKET_LLENO;
+        liberar();
+        return Resultado.TERMINADO;
+    }
+
+    @Override
+    public boolean esMasivo() {
+        return true;
+    }
+
+    @Override
+    public long escritos() {
+        long n = 0;
+        for (ByteBuffer b : buffers) n += b.position();
+        return n;
+    }
+
+    @Override
+    public void liberar() {
+        if (bloque == null || !liberado.compareAndSet(false, true)) return;
+        enCola.decrementAndGet();
+        bloque.liberar();
+    }
+}
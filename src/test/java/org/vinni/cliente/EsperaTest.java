@@ -0,0 +1,51 @@
+package org.vinni.cliente;
+
+import junit.framework.TestCase;
+
+/**
+ * Límites de las esperas entre reintentos (son al azar: se repite cada caso).
+ */
+public class EsperaTest extends TestCase {
+
+    private static final int VECES = 1000;
+
+    public void testEntreBaseYTope() {
+        Espera e = new Espera(100, 5000);
+        long anterior = 100;
+        for (int i = 0; i < VECES; i++) {
+            long ms = e.siguiente(0);
+            assertTrue(ms + " < base", ms >= 100);
+            assertTrue(ms + " > tope", ms <= 5000);
+            assertTrue(ms + " > 3 veces la anterior", ms <= Math.max(100, anterior * 3));
+            anterior = ms;
+        }
+    }
+
+    public void testInicialHastaLaBase() {
+        Espera e = new Espera(100, 5000);
+        for (int i = 0; i < VECES; i++) {
+            long ms = e.inicial();
+            assertTrue(ms >= 0 && ms <= 100);
+        }
+    }
+
+    public void testRespetaLaSugerenciaDelServidor() {
+        Espera e = new Espera(100, 5000);
+        for (int i = 0; i < VECES; i++) assertTrue(e.siguiente(3000) >= 3000);
+        // Aunque supere el tope: la sugerencia manda
+        assertEquals(8000, new Espera(100, 5000).siguiente(8000));
+    }
+
+    public void testReiniciarVuelveALaBase() {
+        Espera e = new Espera(100, 100_000);
+        for (int i = 0; i < 50; i++) e.siguiente(0);
+        e.reiniciar();
+        assertTrue(e.siguiente(0) <= 300);
+    }
+
+    public void testParametrosDegenerados() {
+        Espera e = new Espera(0, 0);
+        assertEquals(1, e.siguiente(0));
+        assertTrue(e.inicial() <= 1);
+    }
+}
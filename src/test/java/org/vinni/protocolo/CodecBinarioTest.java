@@ -0,0 +1,215 @@
+package org.vinni.protocolo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Varints y delimitación de tramas de CodecBinario.
+ */
+public class CodecBinarioTest extends TestCase {
+
+    private static final long[] LIMITES = {
+            0, 1, 127, 128, 16383, 16384, 2097151, 2097152,
+            Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1
+    };
+
+    public void testVarintIdaYVueltaEnLosLimites() throws Exception {
+        for (long v : LIMITES) {
+            ByteBuffer b = ByteBuffer.allocate(10);
+            CodecBinario.putVarint(b, v);
+            assertEquals("tamaño de " + v, CodecBinario.tamVarint(v), b.position());
+            b.flip();
+            assertEquals(v, CodecBinario.getVarint(b));
+            assertFalse(b.hasRemaining());
+
+            b.rewind();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b.array(), 0, b.limit()));
+            assertEquals(v, CodecBinario.leerVarint(in));
+        }
+    }
+
+    public void testTamVarint() {
+        assertEquals(1, CodecBinario.tamVarint(0));
+        assertEquals(1, CodecBinario.tamVarint(127));
+        assertEquals(2, CodecBinario.tamVarint(128));
+        assertEquals(3, CodecBinario.tamVarint(16384));
+        assertEquals(9, CodecBinario.tamVarint(Long.MAX_VALUE));
+        assertEquals(10, CodecBinario.tamVarint(-1));
+    }
+
+    public void testVarintDemasiadoLargo() {
+        ByteBuffer b = ByteBuffer.allocate(11);
+        for (int i = 0; i < 10; i++) b.put((byte) 0x80);
+        b.put((byte) 0);
+        b.flip();
+        try {
+            CodecBinario.getVarint(b);
+            fail("un varint de más de 64 bits no es válido");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+    }
+
+    public void testVarintTruncado() {
+        // Un cuerpo que termina a mitad de un varint es un error de protocolo, no un BufferUnderflowException
+        ByteBuffer b = ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80});
+        try {
+            CodecBinario.getVarint(b);
+            fail("el varint sigue después del último byte");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+        try {
+            CodecBinario.getVarint(ByteBuffer.allocate(0));
+            fail("cuerpo vacío");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+    }
+
+    public void testLargoTramaCompleta() throws Exception {
+        ByteBuffer m = CodecBinario.mensaje(300, "hola");
+        int largo = m.limit();
+        assertEquals(largo, CodecBinario.largoTrama(m));
+        assertEquals("no consume nada", 0, m.position());
+
+        int limite = CodecBinario.abrirCuerpo(m);
+        assertEquals(300, CodecBinario.getVarint(m));
+        assertEquals("hola", CodecBinario.getTexto(m, m.remaining()));
+        assertEquals(largo, limite);
+    }
+
+    public void testLargoTramaConCabeceraIncompleta() throws Exception {
+        // Cuerpo de 200 bytes: la longitud ocupa dos bytes de varint
+        ByteBuffer b = ByteBuffer.allocate(3 + 200);
+        b.put(CodecBinario.MSG);
+        CodecBinario.putVarint(b, 200);
+        b.flip();
+        for (int n = 0; n <= 2; n++) {
+            ByteBuffer parcial = b.duplicate();
+            parcial.limit(n);
+            assertEquals("con " + n + " bytes", -1, CodecBinario.largoTrama(parcial));
+        }
+        b.limit(b.capacity());
+        assertEquals(3 + 200, CodecBinario.largoTrama(b));
+    }
+
+    public void testLargoTramaEnMaxCuerpo() throws Exception {
+        assertEquals(1 + CodecBinario.tamVarint(CodecBinario.MAX_CUERPO) + CodecBinario.MAX_CUERPO,
+                CodecBinario.largoTrama(cabecera(CodecBinario.MAX_CUERPO)));
+        try {
+            CodecBinario.largoTrama(cabecera(CodecBinario.MAX_CUERPO + 1));
+            fail("un cuerpo mayor a MAX_CUERPO no se acepta");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+    }
+
+    public void testLargoTramaConLongitudInvalida() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.put(CodecBinario.MSG);
+        for (int i = 0; i < 6; i++) b.put((byte) 0x80);
+        b.flip();
+        try {
+            CodecBinario.largoTrama(b);
+            fail("una longitud de más de 5 bytes no es válida");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+    }
+
+    public void testCampoTruncado() {
+        ByteBuffer b = ByteBuffer.allocate(3);
+        CodecBinario.putVarint(b, 10);
+        b.put((byte) 'a').put((byte) 'b');
+        b.flip();
+        try {
+            CodecBinario.getCampo(b);
+            fail("el campo dice 10 bytes y hay 2");
+        } catch (ProtocolException esperado) {
+            // ok
+        }
+    }
+
+    public void testVersionAceptada() {
+        assertEquals(2, CodecBinario.versionAceptada(CodecBinario.OFERTA));
+        assertEquals(1, CodecBinario.versionAceptada(CodecBinario.OFERTA_V1));
+        assertEquals(0, CodecBinario.versionAceptada("MSG:x:y"));
+    }
+
+    /**
+     * Versión 2: un FILE con su flujo, el contenido en tramas DATOS intercaladas con
+     * mensajes y un CORTE de otro flujo, leídos de vuelta con LectorBinario.
+     */
+    public void testDatosYCorteIntercalados() throws Exception {
+        byte[] contenido = new byte[CodecBinario.BLOQUE + 10];
+        for (int i = 0; i < contenido.length; i++) contenido[i] = (byte) i;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        escribir(out, CodecBinario.archivo(7, "a.bin", contenido.length, 300));
+        escribir(out, CodecBinario.datos(300, CodecBinario.BLOQUE));
+        out.write(contenido, 0, CodecBinario.BLOQUE);
+        escribir(out, CodecBinario.mensaje(7, "entre bloques"));
+        escribir(out, CodecBinario.corte(301));
+        ByteBuffer ultimo = CodecBinario.datos(300, 10);
+        escribir(out, ultimo);
+        out.write(contenido, CodecBinario.BLOQUE, 10);
+
+        byte[] todo = out.toByteArray();
+        // Cada prefijo DATOS más su contenido es una trama completa para largoTrama
+        ByteBuffer completo = ByteBuffer.wrap(todo);
+        int tramas = 0;
+        while (completo.hasRemaining()) {
+            int largo = CodecBinario.largoTrama(completo);
+            assertTrue(largo > 0 && largo <= completo.remaining());
+            completo.position(completo.position() + largo);
+            tramas++;
+        }
+        assertEquals(5, tramas);
+
+        LectorBinario lector = new LectorBinario(new DataInputStream(new ByteArrayInputStream(todo)));
+        assertEquals(CodecBinario.FILE, lector.leer());
+        ByteBuffer b = lector.cuerpo();
+        assertEquals(7, CodecBinario.getVarint(b));
+        assertEquals("a.bin", CodecBinario.getCampo(b));
+        assertEquals(contenido.length, CodecBinario.getVarint(b));
+        assertEquals(300, CodecBinario.getVarint(b));
+
+        ByteArrayOutputStream recibido = new ByteArrayOutputStream();
+        assertEquals(CodecBinario.DATOS, lector.leer());
+        assertEquals(300, CodecBinario.getVarint(lector.cuerpo()));
+        recibido.write(lector.cuerpo().array(), lector.cuerpo().position(), lector.cuerpo().remaining());
+
+        assertEquals(CodecBinario.MSG, lector.leer());
+        assertEquals(7, CodecBinario.getVarint(lector.cuerpo()));
+        assertEquals("entre bloques", CodecBinario.getTexto(lector.cuerpo(), lector.cuerpo().remaining()));
+
+        assertEquals(CodecBinario.CORTE, lector.leer());
+        assertEquals(301, CodecBinario.getVarint(lector.cuerpo()));
+        assertFalse(lector.cuerpo().hasRemaining());
+
+        assertEquals(CodecBinario.DATOS, lector.leer());
+        assertEquals(300, CodecBinario.getVarint(lector.cuerpo()));
+        recibido.write(lector.cuerpo().array(), lector.cuerpo().position(), lector.cuerpo().remaining());
+        assertTrue(Arrays.equals(contenido, recibido.toByteArray()));
+    }
+
+    private static void escribir(ByteArrayOutputStream out, ByteBuffer trama) {
+        out.write(trama.array(), trama.position(), trama.remaining());
+    }
+
+    /** Solo tipo y longitud: largoTrama no mira el cuerpo. */
+    private static ByteBuffer cabecera(int cuerpo) {
+        ByteBuffer b = ByteBuffer.allocate(6);
+        b.put(CodecBinario.DATOS);
+        CodecBinario.putVarint(b, cuerpo);
+        b.flip();
+        return b;
+    }
+}
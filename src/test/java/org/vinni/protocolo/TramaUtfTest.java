@@ -0,0 +1,74 @@
+package org.vinni.protocolo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TramaUtf tiene que producir exactamente lo mismo que DataOutputStream.writeUTF.
+ */
+public class TramaUtfTest extends TestCase {
+
+    private static final String[] TEXTOS = {
+            "",
+            "MSG:Todos:hola",
+            "nul \u0000 en medio",          // writeUTF lo codifica en dos bytes
+            "ñandú, acción, €",
+            "߿ࠀ￿",
+            "emoji 😀 (par sustituto)"
+    };
+
+    public void testIgualQueWriteUtf() throws IOException {
+        for (String s : TEXTOS) {
+            ByteBuffer b = TramaUtf.codificar(s);
+            assertTrue(s, Arrays.equals(writeUtf(s), Arrays.copyOf(b.array(), b.limit())));
+            assertEquals(s, b.limit() - 2, TramaUtf.longitud(s));
+        }
+    }
+
+    public void testIdaYVuelta() throws IOException {
+        for (String s : TEXTOS) {
+            ByteBuffer b = TramaUtf.codificar(s);
+            int len = b.getShort() & 0xFFFF;
+            assertEquals(s, TramaUtf.decodificar(b, len));
+            assertFalse(b.hasRemaining());
+        }
+    }
+
+    public void testLimiteDeLongitud() throws IOException {
+        char[] justo = new char[TramaUtf.MAX_BYTES];
+        Arrays.fill(justo, 'x');
+        assertEquals(2 + TramaUtf.MAX_BYTES, TramaUtf.codificar(new String(justo)).limit());
+
+        // 21846 caracteres de 3 bytes: 65538 bytes, uno de más aunque sean menos caracteres
+        char[] largo = new char[TramaUtf.MAX_BYTES / 3 + 1];
+        Arrays.fill(largo, '€');
+        try {
+            TramaUtf.codificar(new String(largo));
+            fail("más de 65535 bytes no entra en una trama");
+        } catch (UTFDataFormatException esperado) {
+            // ok
+        }
+    }
+
+    public void testTruncadaEsInvalida() {
+        ByteBuffer b = ByteBuffer.wrap(new byte[] {(byte) 0xE2, (byte) 0x82});
+        try {
+            TramaUtf.decodificar(b, 2);
+            fail("un carácter de 3 bytes con 2 está truncado");
+        } catch (UTFDataFormatException esperado) {
+            // ok
+        }
+    }
+
+    private static byte[] writeUtf(String s) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        new DataOutputStream(b).writeUTF(s);
+        return b.toByteArray();
+    }
+}
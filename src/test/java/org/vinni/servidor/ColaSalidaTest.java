@@ -0,0 +1,193 @@
+package org.vinni.servidor;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Políticas de ColaSalida con una cola llena. Los items son textos: los que
+ * empiezan con "chat" se pueden descartar y los que empiezan con "archivo" van
+ * al carril masivo.
+ */
+public class ColaSalidaTest extends TestCase {
+
+    private final List<String> descartados = new ArrayList<>();
+
+    private ColaSalida<String> cola(int capacidad, ColaSalida.Politica politica, long esperaMs) {
+        return new ColaSalida<>(capacidad, politica, esperaMs,
+                s -> s.startsWith("chat"), s -> s.startsWith("archivo"), descartados::add);
+    }
+
+    public void testBloquearSinPoderEsperarDesborda() {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.BLOQUEAR, 5000);
+        assertEquals(ColaSalida.Resultado.ENCOLADO, c.ofrecer("chat1", false));
+        long t0 = System.nanoTime();
+        assertEquals(ColaSalida.Resultado.DESBORDADO, c.ofrecer("chat2", false));
+        assertTrue("no espera", System.nanoTime() - t0 < 1_000_000_000L);
+        assertEquals(1, c.tam());
+    }
+
+    public void testBloquearVencePlazo() {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.BLOQUEAR, 100);
+        c.ofrecer("chat1", true);
+        long t0 = System.nanoTime();
+        assertEquals(ColaSalida.Resultado.DESBORDADO, c.ofrecer("chat2", true));
+        assertTrue("esperó el plazo", System.nanoTime() - t0 >= 90_000_000L);
+    }
+
+    public void testBloquearEsperaLugar() throws Exception {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.BLOQUEAR, 5000);
+        c.ofrecer("chat1", true);
+        Thread escritor = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {}
+            c.sacar();
+        });
+        escritor.start();
+        assertEquals(ColaSalida.Resultado.ENCOLADO, c.ofrecer("chat2", true));
+        escritor.join();
+        assertEquals("chat2", c.sacar());
+    }
+
+    public void testBloquearCerradaMientrasEspera() throws Exception {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.BLOQUEAR, 5000);
+        c.ofrecer("chat1", true);
+        Thread cierre = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {}
+            c.cerrar();
+        });
+        cierre.start();
+        assertEquals(ColaSalida.Resultado.CERRADA, c.ofrecer("chat2", true));
+        cierre.join();
+        assertEquals("la trama no encolada se suelta", Arrays.asList("chat2"), descartados);
+    }
+
+    public void testDescartarAntiguoSacaElChatMasViejo() {
+        ColaSalida<String> c = cola(3, ColaSalida.Politica.DESCARTAR_ANTIGUO, 0);
+        c.ofrecer("control", true);
+        c.ofrecer("chat1", true);
+        c.ofrecer("chat2", true);
+        assertEquals(ColaSalida.Resultado.DESCARTADO, c.ofrecer("chat3", true));
+        assertEquals(Arrays.asList("chat1"), descartados);
+        assertEquals(1, c.getDescartados());
+        assertEquals("control", c.sacar());
+        assertEquals("chat2", c.sacar());
+        assertEquals("chat3", c.sacar());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testDescartarAntiguoSueltaFueraDelMonitor() {
+        List<Boolean> conLock = new ArrayList<>();
+        ColaSalida<String>[] c = new ColaSalida[1];
+        c[0] = new ColaSalida<>(1, ColaSalida.Politica.DESCARTAR_ANTIGUO, 0,
+                s -> s.startsWith("chat"), s -> false, s -> conLock.add(Thread.holdsLock(c[0])));
+        c[0].ofrecer("chat1", true);
+        c[0].ofrecer("chat2", true);      // saca chat1
+        c[0].ofrecer("control", true);    // saca chat2
+        c[0].ofrecer("chat3", true);      // no hay chat en cola: se descarta chat3
+        assertEquals(Arrays.asList(false, false, false), conLock);
+    }
+
+    public void testDescartarAntiguoSinChatEnCola() {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.DESCARTAR_ANTIGUO, 0);
+        c.ofrecer("control1", true);
+        // Si la nueva es chat se descarta ella; si no, no hay qué sacar
+        assertEquals(ColaSalida.Resultado.DESCARTADO, c.ofrecer("chat1", true));
+        assertEquals(Arrays.asList("chat1"), descartados);
+        assertEquals(ColaSalida.Resultado.DESBORDADO, c.ofrecer("control2", true));
+        assertEquals(1, c.tam());
+    }
+
+    public void testDesconectarDesborda() {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.DESCONECTAR, 0);
+        c.ofrecer("chat1", true);
+        assertEquals(ColaSalida.Resultado.DESBORDADO, c.ofrecer("chat2", true));
+        assertTrue(descartados.isEmpty());
+    }
+
+    public void testForzarPasaLaCapacidad() {
+        ColaSalida<String> c = cola(1, ColaSalida.Politica.DESCONECTAR, 0);
+        c.ofrecer("chat1", true);
+        assertTrue(c.forzar("control"));
+        assertEquals(2, c.tam());
+        assertFalse(c.hayLugar());
+        c.cerrar();
+        assertFalse("cerrada no acepta", c.forzar("control2"));
+    }
+
+    public void testReemplazarDejaUnaSolaEnSuLugar() {
+        ColaSalida<String> c = cola(3, ColaSalida.Politica.DESCONECTAR, 0);
+        c.ofrecer("chat1", true);
+        assertTrue(c.reemplazar("lista1", s -> s.startsWith("lista")));
+        c.ofrecer("chat2", true);
+        assertFalse(c.hayLugar());
+        assertTrue(c.contiene(s -> s.startsWith("lista")));
+        // Llena y con una lista pendiente: la nueva toma su lugar, delante de chat2
+        assertTrue(c.reemplazar("lista2", s -> s.startsWith("lista")));
+        assertEquals(Arrays.asList("lista1"), descartados);
+        assertEquals(3, c.tam());
+        assertEquals("chat1", c.sacar());
+        assertEquals("lista2", c.sacar());
+        assertEquals("chat2", c.sacar());
+        assertFalse(c.contiene(s -> s.startsWith("lista")));
+        c.cerrar();
+        assertFalse(c.reemplazar("lista3", s -> s.startsWith("lista")));
+        assertEquals(Arrays.asList("lista1", "lista3"), descartados);
+    }
+
+    public void testMasivoDespuesDeLoUrgente() {
+        ColaSalida<String> c = cola(10, ColaSalida.Politica.BLOQUEAR, 0);
+        c.ofrecer("archivo1", true);
+        c.ofrecer("chat1", true);
+        c.ofrecer("archivo2", true);
+        c.ofrecer("chat2", true);
+        assertEquals("chat1", c.sacar());
+        assertEquals("chat2", c.sacar());
+        assertEquals("archivo1", c.sacar());
+        assertEquals("archivo2", c.sacar());
+        assertNull(c.sacar());
+    }
+
+    public void testUrgenteAdelantaAUnArchivoQueCedeElTurno() {
+        ColaSalida<String> c = cola(10, ColaSalida.Politica.BLOQUEAR, 0);
+        c.ofrecer("archivo1", true);
+        assertEquals("archivo1", c.sacar());
+        c.ofrecer("chat1", true);           // llega mientras se escribe un bloque
+        assertTrue(c.forzar("archivo1"));   // el archivo cede el turno
+        assertEquals("chat1", c.sacar());
+        assertEquals("archivo1", c.sacar());
+    }
+
+    public void testAlFinalSaleDetrasDeLosDosCarriles() {
+        ColaSalida<String> c = cola(2, ColaSalida.Politica.DESCONECTAR, 0);
+        c.ofrecer("archivo1", true);
+        c.ofrecer("chat1", true);
+        assertTrue("entra aunque la cola esté llena", c.alFinal("redirect"));
+        assertEquals(3, c.tam());
+        assertEquals("chat1", c.sacar());
+        assertEquals("archivo1", c.sacar());
+        // El archivo vuelve a su carril antes de que se saque otra trama: no lo adelanta
+        assertTrue(c.forzar("archivo1"));
+        assertEquals("archivo1", c.sacar());
+        c.ofrecer("chat2", true);
+        assertEquals("chat2", c.sacar());
+        assertEquals("redirect", c.sacar());
+        assertTrue(c.isEmpty());
+    }
+
+    public void testCerrarDevuelveElRestoYSueltaLoNuevo() {
+        ColaSalida<String> c = cola(10, ColaSalida.Politica.BLOQUEAR, 0);
+        c.ofrecer("archivo1", true);
+        c.ofrecer("chat1", true);
+        c.alFinal("redirect");
+        assertEquals(Arrays.asList("chat1", "archivo1", "redirect"), c.cerrar());
+        assertFalse(c.alFinal("redirect2"));
+        assertEquals(ColaSalida.Resultado.CERRADA, c.ofrecer("chat2", true));
+        assertEquals(Arrays.asList("chat2"), descartados);
+    }
+}
@@ -0,0 +1,65 @@
+package org.vinni.servidor;
+
+import junit.framework.TestCase;
+
+/**
+ * Percentiles de Histograma: error relativo de a lo sumo 1/16 y nunca por encima del máximo.
+ */
+public class HistogramaTest extends TestCase {
+
+    public void testVacio() {
+        Histograma h = new Histograma();
+        assertEquals(0, h.percentil(50));
+        assertEquals(0, h.getCuenta());
+        assertEquals(0, h.getPromedio());
+    }
+
+    public void testValoresChicosSonExactos() {
+        Histograma h = new Histograma();
+        for (int v = 0; v < 16; v++) h.registrar(v);
+        assertEquals(0, h.percentil(0));
+        assertEquals(7, h.percentil(50));
+        assertEquals(15, h.percentil(100));
+    }
+
+    public void testErrorAcotado() {
+        Histograma h = new Histograma();
+        for (long v = 1; v <= 100_000; v++) h.registrar(v * 1000);
+        for (double p : new double[] {1, 10, 50, 90, 99, 99.9}) {
+            long exacto = (long) Math.ceil(100_000 * p / 100.0) * 1000;
+            long medido = h.percentil(p);
+            assertTrue("p" + p + " " + medido + " < " + exacto, medido >= exacto);
+            assertTrue("p" + p + " " + medido + " lejos de " + exacto, medido - exacto <= exacto / 16);
+        }
+        assertEquals(100_000_000L, h.percentil(100));
+    }
+
+    public void testNoSuperaElMaximo() {
+        Histograma h = new Histograma();
+        h.registrar(1000);
+        // La cubeta de 1000 llega hasta 1023, pero no se registró nada mayor a 1000
+        assertEquals(1000, h.percentil(99));
+        assertEquals(1000, h.getMaximo());
+    }
+
+    public void testExtremos() {
+        Histograma h = new Histograma();
+        h.registrar(-5);
+        h.registrar(Long.MAX_VALUE);
+        assertEquals("los negativos cuentan como 0", 0, h.percentil(50));
+        assertEquals(Long.MAX_VALUE, h.percentil(100));
+    }
+
+    public void testPromedioYReinicio() {
+        Histograma h = new Histograma();
+        h.registrar(10);
+        h.registrar(20);
+        h.registrar(30);
+        assertEquals(3, h.getCuenta());
+        assertEquals(20, h.getPromedio());
+        h.reiniciar();
+        assertEquals(0, h.getCuenta());
+        assertEquals(0, h.getMaximo());
+        assertEquals(0, h.percentil(99));
+    }
+}
@@ -0,0 +1,153 @@
+package org.vinni.servidor;
+
+import junit.framework.TestCase;
+import org.vinni.protocolo.CodecBinario;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Versiones de la lista: LISTA al entrar, DELTA encadenados después, y nunca
+ * más de una trama de la lista en la cola de un cliente que no lee.
+ */
+public class ListaClientesTest extends TestCase {
+
+    private static final long ESPERA_MS = 2000;
+
+    /** Guarda lo que recibe como lo haría su cola; si "lee", lo entregado pasa a recibidas. */
+    private static final class ConexionPrueba implements Conexion {
+        final long id;
+        final String nombre;
+        final List<String> recibidas = new ArrayList<>();
+        TramaCompartida pendiente;
+        volatile boolean lee = true;
+
+        ConexionPrueba(long id, String nombre) {
+            this.id = id;
+            this.nombre = nombre;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getNombre() {
+            return nombre;
+        }
+
+        @Override
+        public synchronized void enviarLista(TramaCompartida trama, Supplier<TramaCompartida> completa) {
+            if (pendiente != null) trama = completa.get();
+            pendiente = trama;
+            if (lee) entregar();
+            notifyAll();
+        }
+
+        synchronized void entregar() {
+            if (pendiente == null) return;
+            recibidas.add(describir(pendiente));
+            pendiente = null;
+        }
+
+        synchronized String esperar(int n) throws InterruptedException {
+            long limite = System.currentTimeMillis() + ESPERA_MS;
+            while (recibidas.size() < n && System.currentTimeMillis() < limite) wait(50);
+            assertTrue("llegaron " + recibidas, recibidas.size() >= n);
+            return recibidas.get(n - 1);
+        }
+
+        @Override
+        public void enviar(TramaCompartida trama) {}
+
+        @Override
+        public void enviarAlFinal(TramaCompartida trama) {}
+
+        @Override
+        public void enviarArchivo(TramaCompartida cabecera, ArchivoEnDisco datos) {}
+
+        @Override
+        public int getPendientes() {
+            return 0;
+        }
+
+        @Override
+        public void cerrarConexion() {}
+    }
+
+    public void testListaAlEntrarYDeltasEncadenados() throws Exception {
+        ListaClientes lista = new ListaClientes();
+        ConexionPrueba a = new ConexionPrueba(1, "ana");
+        ConexionPrueba b = new ConexionPrueba(2, "beto");
+
+        lista.alta(a);
+        assertEquals("LISTA 0 []", a.esperar(1));
+        assertEquals("DELTA 0>1 +1:ana", a.esperar(2));
+
+        lista.alta(b);
+        assertEquals("LISTA 1 [1:ana]", b.esperar(1));
+        assertEquals("DELTA 1>2 +2:beto", b.esperar(2));
+        assertEquals("DELTA 1>2 +2:beto", a.esperar(3));
+
+        lista.baja(a);
+        assertEquals("DELTA 2>3 -1", b.esperar(3));
+        assertEquals(3, a.recibidas.size());
+    }
+
+    public void testClienteQueNoLeeTieneUnaSolaTrama() throws Exception {
+        ListaClientes lista = new ListaClientes();
+        ConexionPrueba lento = new ConexionPrueba(1, "lento");
+        lista.alta(lento);
+        lento.esperar(2);
+        lento.lee = false;
+
+        ConexionPrueba otro = null;
+        for (int i = 2; i <= 6; i++) {
+            otro = new ConexionPrueba(i, "c" + i);
+            lista.alta(otro);
+            otro.esperar(2);        // cada alta sale en su propio DELTA
+        }
+        lento.lee = true;
+        lento.entregar();
+        // En lugar de cinco DELTA queda la lista completa en la última versión
+        assertEquals("LISTA 6 [1:lento, 2:c2, 3:c3, 4:c4, 5:c5, 6:c6]", lento.esperar(3));
+        assertEquals(3, lento.recibidas.size());
+        assertEquals("DELTA 5>6 +6:c6", otro.recibidas.get(1));
+    }
+
+    private static String describir(TramaCompartida t) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            t.escribir(out, true);
+            ByteBuffer b = ByteBuffer.wrap(out.toByteArray());
+            byte tipo = b.get(0);
+            CodecBinario.abrirCuerpo(b);
+            StringBuilder sb = new StringBuilder();
+            if (tipo == CodecBinario.LISTA) {
+                sb.append("LISTA ").append(CodecBinario.getVarint(b)).append(" [");
+                long n = CodecBinario.getVarint(b);
+                for (long i = 0; i < n; i++) {
+                    if (i > 0) sb.append(", ");
+                    sb.append(CodecBinario.getVarint(b)).append(':').append(CodecBinario.getCampo(b));
+                }
+                return sb.append(']').toString();
+            }
+            assertEquals(CodecBinario.DELTA, tipo);
+            sb.append("DELTA ").append(CodecBinario.getVarint(b)).append('>').append(CodecBinario.getVarint(b));
+            long n = CodecBinario.getVarint(b);
+            for (long i = 0; i < n; i++) {
+                boolean alta = b.get() == CodecBinario.ALTA;
+                sb.append(' ').append(alta ? '+' : '-').append(CodecBinario.getVarint(b));
+                if (alta) sb.append(':').append(CodecBinario.getCampo(b));
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.vinni.servidor;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Dos Spool sobre el mismo directorio hacen de dos instancias: lo que guarda una
+ * lo retira la otra.
+ */
+public class SpoolTest extends TestCase {
+
+    private Path dir;
+    private final LinkedBlockingQueue<String> eventos = new LinkedBlockingQueue<>();
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("spool-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private Spool spool(long maxBytes) {
+        Spool s = new Spool(dir, maxBytes, 60_000, 4096);
+        s.setAlGuardar(d -> eventos.add("guardado " + d));
+        s.setLog(m -> eventos.add(m.trim()));
+        return s;
+    }
+
+    private String evento() throws InterruptedException {
+        String e = eventos.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no llegó el aviso del spool", e);
+        return e;
+    }
+
+    private static List<Spool.Diferido> retirar(Spool s, String destinatario) throws Exception {
+        CompletableFuture<List<Spool.Diferido>> f = new CompletableFuture<>();
+        s.retirar(destinatario, f::complete);
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    public void testOtraInstanciaRetiraLoGuardado() throws Exception {
+        Spool a = spool(1 << 20);
+        Spool b = spool(1 << 20);
+        a.guardarMensaje("bob", "ana", "hola");
+        Spool.Escritura e = a.guardarArchivo("bob", "ana", "foto.png", 5);
+        e.escribir(ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+        e.escribir(ByteBuffer.wrap("de".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(e.confirmar());
+        a.guardarMensaje("bob", "ana", "chau");
+        assertEquals("guardado bob", evento());
+        assertEquals("guardado bob", evento());
+        assertEquals("guardado bob", evento());
+
+        List<Spool.Diferido> d = retirar(b, "bob");
+        assertEquals(3, d.size());
+        assertEquals("hola", d.get(0).getTexto());
+        assertNull(d.get(0).getArchivo());
+        assertEquals("foto.png", d.get(1).getTexto());
+        ArchivoEnDisco datos = d.get(1).getArchivo();
+        ByteBuffer contenido = ByteBuffer.allocate(5);
+        datos.leer(0, contenido);
+        assertEquals("abcde", new String(contenido.array(), StandardCharsets.UTF_8));
+        datos.liberar();
+        assertEquals("chau", d.get(2).getTexto());
+        assertEquals("ana", d.get(2).getRemitente());
+
+        a.guardarMensaje("bob", "ana", "otra");
+        assertEquals("guardado bob", evento());
+        d = retirar(a, "bob");
+        assertEquals("lo retirado por la otra no vuelve", 1, d.size());
+    }
+
+    public void testTopePorDestinatario() throws Exception {
+        Spool s = spool(100);
+        s.guardarMensaje("bob", "ana", "uno");
+        assertEquals("guardado bob", evento());
+        s.guardarMensaje("bob", "ana", new String(new char[100]).replace('\0', 'x'));
+        assertEquals("No se pudo guardar un MSG de ana para bob", evento());
+        Spool.Escritura e = s.guardarArchivo("bob", "ana", "grande.bin", 200);
+        e.escribir(ByteBuffer.allocate(200));
+        e.confirmar();
+        assertEquals("No se pudo guardar el archivo grande.bin de ana para bob", evento());
+        assertEquals(1, retirar(s, "bob").size());
+    }
+
+    public void testArchivoRetiradoDejaDeContar() throws Exception {
+        // Cada archivo con su registro ocupa más de la mitad del tope
+        Spool s = spool(150);
+        Spool.Escritura e = s.guardarArchivo("bob", "ana", "a.bin", 80);
+        e.escribir(ByteBuffer.allocate(80));
+        e.confirmar();
+        assertEquals("guardado bob", evento());
+        List<Spool.Diferido> d = retirar(s, "bob");
+        assertEquals(1, d.size());
+        // Mientras se entrega sigue en disco, pero ya no ocupa el buzón
+        e = s.guardarArchivo("bob", "ana", "b.bin", 80);
+        e.escribir(ByteBuffer.allocate(80));
+        e.confirmar();
+        assertEquals("guardado bob", evento());
+        d.get(0).getArchivo().liberar();
+    }
+}
@@ -0,0 +1,41 @@
+package org.vinni.servidor;
+
+import junit.framework.TestCase;
+import org.vinni.protocolo.TramaUtf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Arrays;
+
+/**
+ * Un MSG que no entra en writeUTF no se recorta: no cabe en texto y sí en binario.
+ */
+public class TramaCompartidaTest extends TestCase {
+
+    public void testTextoDeMasDe64KbNoCabe() {
+        char[] largo = new char[TramaUtf.MAX_BYTES];
+        Arrays.fill(largo, 'x');
+        TramaCompartida t = TramaCompartida.mensaje(1, "ana", new String(largo));
+        assertFalse(t.cabe(false));
+        assertTrue(t.cabe(true));
+        assertTrue(TramaCompartida.mensaje(1, "ana", "hola").cabe(false));
+    }
+
+    public void testLoteSalteaLoQueNoCabeEnTexto() throws Exception {
+        char[] largo = new char[TramaUtf.MAX_BYTES];
+        Arrays.fill(largo, 'x');
+        TramaCompartida lote = TramaCompartida.lote(Arrays.asList(
+                TramaCompartida.mensaje(1, "ana", "uno"),
+                TramaCompartida.mensaje(1, "ana", new String(largo)),
+                TramaCompartida.mensaje(1, "ana", "dos")));
+        assertTrue(lote.cabe(false));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lote.escribir(out, false);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("MSG:ana:uno", in.readUTF());
+        assertEquals("MSG:ana:dos", in.readUTF());
+        assertEquals(0, in.available());
+    }
+}